@@ -0,0 +1,102 @@
+package com.example.play_opencv;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.TermCriteria;
+import org.opencv.ml.Boost;
+import org.opencv.ml.CompiledForest;
+import org.opencv.ml.DTrees;
+import org.opencv.ml.Ml;
+import org.opencv.ml.RTrees;
+import org.opencv.ml.StatModel;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link CompiledForest} predicts exactly like the native model it was compiled from.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompiledForestTest {
+    private static final int VARS = 6;
+    private static final int[] FLAGS = { DTrees.PREDICT_SUM, DTrees.PREDICT_MAX_VOTE, StatModel.RAW_OUTPUT };
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initLocal());
+    }
+
+    @Test
+    public void rtreesMatchesNative() {
+        Random rng = new Random(1);
+        Mat train = samples(500, rng, 0), responses = labels(train, 3);
+        RTrees model = RTrees.create();
+        model.setMaxDepth(8);
+        model.setMinSampleCount(2);
+        model.setTermCriteria(new TermCriteria(TermCriteria.MAX_ITER, 25, 0));
+        assertTrue(model.train(train, Ml.ROW_SAMPLE, responses));
+        check(model, rng);
+        train.release();
+        responses.release();
+    }
+
+    @Test
+    public void boostMatchesNative() {
+        Random rng = new Random(2);
+        Mat train = samples(500, rng, 0), responses = labels(train, 2);
+        Boost model = Boost.create();
+        model.setWeakCount(30);
+        model.setMaxDepth(3);
+        assertTrue(model.train(train, Ml.ROW_SAMPLE, responses));
+        check(model, rng);
+        train.release();
+        responses.release();
+    }
+
+    private static void check(DTrees model, Random rng) {
+        CompiledForest forest = new CompiledForest(model);
+        Mat complete = samples(300, rng, 0), missing = samples(300, rng, 0.1);
+        try {
+            for (int flags : FLAGS) {
+                assertEquals("flags " + flags, 0, forest.verify(model, complete, flags));
+                assertEquals("flags " + flags + ", missing values", 0, forest.verify(model, missing, flags));
+            }
+        } finally {
+            complete.release();
+            missing.release();
+            forest.release();
+        }
+    }
+
+    // uniform samples in [-1, 1), a fraction of the values replaced by the missing marker
+    private static Mat samples(int n, Random rng, double missingRate) {
+        float[] data = new float[n * VARS];
+        for (int i = 0; i < data.length; i++)
+            data[i] = rng.nextDouble() < missingRate ? Float.MAX_VALUE : 2 * rng.nextFloat() - 1;
+        Mat m = new Mat(n, VARS, CvType.CV_32F);
+        m.put(0, 0, data);
+        return m;
+    }
+
+    // class from a few oblique boundaries, so trees of several levels are needed
+    private static Mat labels(Mat samples, int classes) {
+        int n = samples.rows();
+        float[] x = new float[n * VARS];
+        samples.get(0, 0, x);
+        int[] y = new int[n];
+        for (int i = 0; i < n; i++) {
+            float a = x[i * VARS] + 0.5f * x[i * VARS + 1], b = x[i * VARS + 2] - x[i * VARS + 3] * x[i * VARS + 4];
+            y[i] = classes == 2 ? (a * b > 0 ? 1 : 0) : (a > 0.3f ? 2 : b > 0 ? 1 : 0);
+        }
+        Mat m = new Mat(n, 1, CvType.CV_32S);
+        m.put(0, 0, y);
+        return m;
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.play_opencv;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.DMatch;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.BFMatcher;
+import org.opencv.features2d.HammingMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link HammingMatcher} with the native {@link BFMatcher} on 256-bit descriptors: the
+ * distances must agree, and the timings of both are logged under {@value #TAG}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HammingMatcherBenchmark {
+    private static final String TAG = "HammingMatcherBenchmark";
+    private static final int[] TRAIN_SIZES = { 1000, 5000, 20000 };
+    private static final int QUERIES = 1000;
+    private static final int BYTES = 32;
+    private static final int K = 2;
+    private static final int RUNS = 5;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initLocal());
+    }
+
+    @Test
+    public void knnMatchAgainstBFMatcher() {
+        Random rng = new Random(7);
+        BFMatcher bf = BFMatcher.create(Core.NORM_HAMMING, false);
+        HammingMatcher hamming = new HammingMatcher();
+        try {
+            for (int n : TRAIN_SIZES) {
+                byte[] train = new byte[n * BYTES];
+                rng.nextBytes(train);
+                Mat trainMat = descriptors(train, n);
+                Mat queryMat = descriptors(queries(train, n, rng), QUERIES);
+
+                List<MatOfDMatch> expected = new ArrayList<MatOfDMatch>();
+                List<MatOfDMatch> actual = new ArrayList<MatOfDMatch>();
+                long[] bfTimes = new long[RUNS], hammingTimes = new long[RUNS];
+                // the first run of each warms up the JIT and the native caches
+                for (int run = -1; run < RUNS; run++) {
+                    release(expected);
+                    long start = System.nanoTime();
+                    bf.knnMatch(queryMat, trainMat, expected, K);
+                    long mid = System.nanoTime();
+                    release(actual);
+                    hamming.knnMatch(queryMat, trainMat, actual, K);
+                    long end = System.nanoTime();
+                    if (run >= 0) {
+                        bfTimes[run] = mid - start;
+                        hammingTimes[run] = end - mid;
+                    }
+                }
+                check(expected, actual);
+                Log.i(TAG, String.format("%d train x %d queries, k=%d: BFMatcher %.2f ms, HammingMatcher %.2f ms",
+                        n, QUERIES, K, median(bfTimes) / 1e6, median(hammingTimes) / 1e6));
+
+                release(expected);
+                release(actual);
+                trainMat.release();
+                queryMat.release();
+            }
+        } finally {
+            hamming.release();
+        }
+    }
+
+    // train rows with about a tenth of the bits flipped, so that the best match is meaningful
+    private static byte[] queries(byte[] train, int n, Random rng) {
+        byte[] q = new byte[QUERIES * BYTES];
+        for (int i = 0; i < QUERIES; i++) {
+            System.arraycopy(train, rng.nextInt(n) * BYTES, q, i * BYTES, BYTES);
+            for (int b = 0; b < BYTES; b++)
+                q[i * BYTES + b] ^= (byte) (rng.nextInt() & rng.nextInt() & rng.nextInt());
+        }
+        return q;
+    }
+
+    private static Mat descriptors(byte[] data, int rows) {
+        Mat m = new Mat(rows, BYTES, CvType.CV_8UC1);
+        m.put(0, 0, data);
+        return m;
+    }
+
+    // ties may be broken differently, so only the distances are compared
+    private static void check(List<MatOfDMatch> expected, List<MatOfDMatch> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int q = 0; q < expected.size(); q++) {
+            DMatch[] e = expected.get(q).toArray(), a = actual.get(q).toArray();
+            assertEquals("query " + q, e.length, a.length);
+            for (int i = 0; i < e.length; i++)
+                assertEquals("query " + q + ", match " + i, e[i].distance, a[i].distance, 0);
+        }
+    }
+
+    private static void release(List<MatOfDMatch> matches) {
+        for (MatOfDMatch m : matches)
+            m.release();
+        matches.clear();
+    }
+
+    private static long median(long[] times) {
+        long[] t = times.clone();
+        Arrays.sort(t);
+        return t[t.length / 2];
+    }
+}
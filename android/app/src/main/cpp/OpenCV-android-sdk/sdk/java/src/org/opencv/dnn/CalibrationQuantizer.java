@@ -0,0 +1,350 @@
+package org.opencv.dnn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * INT8 quantization workflow for {@link Net} with streamed calibration data.
+ * <p>
+ * Calibration images are read from a directory in chunks of {@link #setChunkSize(int)} images;
+ * each chunk is decoded, turned into a single batched blob and released before the next chunk is
+ * read, so at most one chunk of decoded images is resident at a time. Only the preprocessed blobs
+ * are kept for {@link Net#quantize}, and their count is bounded by {@link #setMaxSamples(int)}
+ * (reservoir sampling over the directory listing).
+ * <p>
+ * The dnn module cannot serialize a quantized network, so the calibration set is persisted
+ * instead: {@link #saveCalibration(String)} / {@link #loadCalibration(String)} allow the quantized
+ * network to be rebuilt from the float model without scanning the dataset again.
+ */
+public class CalibrationQuantizer {
+    private static final int MAGIC   = 0x4f434342; // "OCCB"
+    private static final int VERSION = 1;
+
+    private final Net              mFloatNet;
+    private final Image2BlobParams mBlobParams;
+    private final List<Mat>        mCalibBlobs = new ArrayList<Mat>();
+    private int                    mChunkSize  = 8;
+    private int                    mMaxSamples = 512;
+    private long                   mSeed       = 0x5eed;
+
+    /**
+     * @param floatNet network to be quantized, used unchanged as the reference for comparisons.
+     * @param blobParams preprocessing used both for calibration and for evaluation images.
+     */
+    public CalibrationQuantizer(Net floatNet, Image2BlobParams blobParams) {
+        if (floatNet == null || floatNet.empty())
+            throw new IllegalArgumentException("Float network is empty");
+        mFloatNet = floatNet;
+        mBlobParams = blobParams;
+    }
+
+    public Net getFloatNet() {
+        return mFloatNet;
+    }
+
+    /**
+     * Number of images decoded and packed into one calibration blob.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        mChunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Upper bound of calibration images taken from a directory, whatever its size.
+     */
+    public void setMaxSamples(int maxSamples) {
+        if (maxSamples < 1)
+            throw new IllegalArgumentException("Sample limit must be positive");
+        mMaxSamples = maxSamples;
+    }
+
+    public int getMaxSamples() {
+        return mMaxSamples;
+    }
+
+    /**
+     * Seed of the sampling used when a directory holds more than {@link #getMaxSamples()} images.
+     */
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    /**
+     * Returns the number of calibration images collected so far.
+     */
+    public int getSampleCount() {
+        int count = 0;
+        for (Mat blob : mCalibBlobs)
+            count += blob.size(0);
+        return count;
+    }
+
+    /**
+     * Streams calibration images from a directory and appends them to the calibration set.
+     *
+     * @return number of images added.
+     */
+    public int collect(File dir) {
+        List<File> files = sampleFiles(listImages(dir), mMaxSamples - getSampleCount(), new Random(mSeed));
+        int added = 0;
+        List<Mat> chunk = new ArrayList<Mat>(mChunkSize);
+        for (int i = 0; i < files.size(); i++) {
+            Mat img = Imgcodecs.imread(files.get(i).getAbsolutePath(), Imgcodecs.IMREAD_COLOR);
+            if (!img.empty())
+                chunk.add(img);
+            else
+                img.release();
+            if (chunk.size() == mChunkSize || (i == files.size() - 1 && !chunk.isEmpty())) {
+                mCalibBlobs.add(Dnn.blobFromImagesWithParams(chunk, mBlobParams));
+                added += chunk.size();
+                releaseAll(chunk);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Quantizes the float network with the collected calibration set.
+     *
+     * @see Net#quantize(List, int, int, boolean)
+     */
+    public Net quantize(int inputsDtype, int outputsDtype, boolean perChannel) {
+        if (mCalibBlobs.isEmpty())
+            throw new CvException("No calibration data collected");
+        return mFloatNet.quantize(mCalibBlobs, inputsDtype, outputsDtype, perChannel);
+    }
+
+    /**
+     * Writes the calibration blobs to a binary file (float32, native shapes).
+     */
+    public void saveCalibration(String path) throws IOException {
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(mCalibBlobs.size());
+            for (Mat blob : mCalibBlobs) {
+                Mat f32 = blob;
+                if (blob.depth() != CvType.CV_32F) {
+                    f32 = new Mat();
+                    blob.convertTo(f32, CvType.CV_32F);
+                }
+                int dims = f32.dims();
+                os.writeInt(dims);
+                for (int d = 0; d < dims; d++)
+                    os.writeInt(f32.size(d));
+                float[] data = new float[(int) f32.total()];
+                f32.get(new int[dims], data);
+                for (float v : data)
+                    os.writeFloat(v);
+                if (f32 != blob)
+                    f32.release();
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Replaces the calibration set with the blobs stored by {@link #saveCalibration(String)}.
+     */
+    public void loadCalibration(String path) throws IOException {
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION)
+                throw new IOException("Not a calibration file: " + path);
+            int count = is.readInt();
+            List<Mat> blobs = new ArrayList<Mat>(count);
+            for (int i = 0; i < count; i++) {
+                int[] shape = new int[is.readInt()];
+                int total = 1;
+                for (int d = 0; d < shape.length; d++) {
+                    shape[d] = is.readInt();
+                    total *= shape[d];
+                }
+                float[] data = new float[total];
+                for (int k = 0; k < total; k++)
+                    data[k] = is.readFloat();
+                Mat blob = new Mat(shape, CvType.CV_32F);
+                blob.put(new int[shape.length], data);
+                blobs.add(blob);
+            }
+            clear();
+            mCalibBlobs.addAll(blobs);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Runs both networks over the images of a directory and reports their latency and agreement.
+     *
+     * @param quantized network returned by {@link #quantize}.
+     * @param evalDir directory with evaluation images.
+     * @param maxImages upper bound of evaluated images, or 0 for all of them.
+     */
+    public Comparison compare(Net quantized, File evalDir, int maxImages) {
+        List<File> files = listImages(evalDir);
+        if (maxImages > 0 && files.size() > maxImages)
+            files = files.subList(0, maxImages);
+
+        MatOfFloat scales = new MatOfFloat();
+        MatOfInt zeropoints = new MatOfInt();
+        quantized.getOutputDetails(scales, zeropoints);
+        float scale = scales.empty() ? 1.f : scales.toArray()[0];
+        int zeropoint = zeropoints.empty() ? 0 : zeropoints.toArray()[0];
+        scales.release();
+        zeropoints.release();
+
+        Comparison result = new Comparison();
+        long floatNanos = 0, quantNanos = 0;
+        boolean warmedUp = false;
+        for (File file : files) {
+            Mat img = Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_COLOR);
+            if (img.empty()) {
+                img.release();
+                continue;
+            }
+            Mat blob = Dnn.blobFromImageWithParams(img, mBlobParams);
+            img.release();
+
+            if (!warmedUp) {
+                forward(mFloatNet, blob).release();
+                forward(quantized, blob).release();
+                warmedUp = true;
+            }
+
+            long t0 = System.nanoTime();
+            Mat ref = forward(mFloatNet, blob);
+            long t1 = System.nanoTime();
+            Mat out = forward(quantized, blob);
+            long t2 = System.nanoTime();
+            floatNanos += t1 - t0;
+            quantNanos += t2 - t1;
+
+            if (out.depth() != CvType.CV_32F) {
+                Mat deq = new Mat();
+                out.convertTo(deq, CvType.CV_32F, scale, -zeropoint * scale);
+                out.release();
+                out = deq;
+            }
+            Mat refRow = ref.reshape(1, 1);
+            Mat outRow = out.reshape(1, 1);
+            result.meanAbsError += Core.norm(refRow, outRow, Core.NORM_L1) / refRow.total();
+            if (Core.minMaxLoc(refRow).maxLoc.x == Core.minMaxLoc(outRow).maxLoc.x)
+                result.top1Agreement += 1;
+            result.samples++;
+
+            refRow.release();
+            outRow.release();
+            ref.release();
+            out.release();
+            blob.release();
+        }
+        if (result.samples > 0) {
+            result.floatLatencyMs = floatNanos / 1e6 / result.samples;
+            result.quantizedLatencyMs = quantNanos / 1e6 / result.samples;
+            result.meanAbsError /= result.samples;
+            result.top1Agreement /= result.samples;
+        }
+        return result;
+    }
+
+    /**
+     * Drops the collected calibration set.
+     */
+    public void clear() {
+        releaseAll(mCalibBlobs);
+    }
+
+    public void release() {
+        clear();
+    }
+
+    /**
+     * Returns the files of a directory that have an image decoder, sorted by name.
+     */
+    public static List<File> listImages(File dir) {
+        File[] entries = dir.listFiles();
+        if (entries == null)
+            throw new CvException("Cannot list directory " + dir);
+        Arrays.sort(entries);
+        List<File> files = new ArrayList<File>();
+        for (File f : entries)
+            if (f.isFile() && Imgcodecs.haveImageReader(f.getAbsolutePath()))
+                files.add(f);
+        return files;
+    }
+
+    private static List<File> sampleFiles(List<File> files, int limit, Random rnd) {
+        if (limit <= 0)
+            return new ArrayList<File>();
+        if (files.size() <= limit)
+            return files;
+        List<File> reservoir = new ArrayList<File>(files.subList(0, limit));
+        for (int i = limit; i < files.size(); i++) {
+            int j = rnd.nextInt(i + 1);
+            if (j < limit)
+                reservoir.set(j, files.get(i));
+        }
+        return reservoir;
+    }
+
+    private static Mat forward(Net net, Mat blob) {
+        net.setInput(blob);
+        return net.forward();
+    }
+
+    private static void releaseAll(List<Mat> mats) {
+        for (Mat m : mats)
+            m.release();
+        mats.clear();
+    }
+
+    /**
+     * Accuracy and latency of a quantized network relative to its float counterpart.
+     */
+    public static class Comparison {
+        public int    samples;
+        public double floatLatencyMs;
+        public double quantizedLatencyMs;
+        /** Mean absolute difference of the (dequantized) outputs. */
+        public double meanAbsError;
+        /** Fraction of samples with the same arg-max output element. */
+        public double top1Agreement;
+
+        public double getSpeedup() {
+            return quantizedLatencyMs > 0 ? floatLatencyMs / quantizedLatencyMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("samples=%d float=%.2fms int8=%.2fms speedup=%.2fx mae=%.5f top1=%.3f",
+                    samples, floatLatencyMs, quantizedLatencyMs, getSpeedup(), meanAbsError, top1Agreement);
+        }
+    }
+}
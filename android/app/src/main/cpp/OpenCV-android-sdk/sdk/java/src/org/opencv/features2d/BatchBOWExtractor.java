@@ -0,0 +1,300 @@
+package org.opencv.features2d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.TermCriteria;
+
+/**
+ * Bag-of-words histograms for batches of images.
+ * <p>
+ * Where {@link BOWImgDescriptorExtractor} matches one image at a time against the whole
+ * vocabulary, this extractor processes a batch of images on a work-stealing pool and finds the
+ * visual word of every descriptor through an inverted-file index: the words are grouped around
+ * about {@code sqrt(k)} coarse centres, and a descriptor is compared only with the words of its
+ * {@link #setProbes(int) nearest groups}. Histograms are returned in sparse form, normalized by
+ * the number of descriptors like the native extractor.
+ */
+public class BatchBOWExtractor {
+    /**
+     * Creates the feature extractor of one worker.
+     */
+    public interface Factory {
+        Feature2D create();
+    }
+
+    /**
+     * Non-zero bins of a bag-of-words histogram.
+     */
+    public static class SparseHistogram {
+        /** Word indices in increasing order. */
+        public final int[]   words;
+        /** Bin values, in the order of {@link #words}. */
+        public final float[] values;
+
+        public SparseHistogram(int[] words, float[] values) {
+            this.words = words;
+            this.values = values;
+        }
+
+        /**
+         * Writes the histogram as a dense {@code 1 x vocabularySize} CV_32F row.
+         */
+        public void toDense(int vocabularySize, Mat dense) {
+            float[] row = new float[vocabularySize];
+            for (int i = 0; i < words.length; i++)
+                row[words[i]] = values[i];
+            dense.create(1, vocabularySize, CvType.CV_32F);
+            dense.put(0, 0, row);
+        }
+    }
+
+    private final ForkJoinPool             mPool;
+    private final BlockingQueue<Feature2D> mExtractors;
+    private final int                      mWords;
+    private final int                      mDims;
+    private final float[]                  mVocabulary;
+    private final int                      mGroups;
+    private final float[]                  mGroupCenters;
+    private final int[][]                  mGroupWords;
+    private int                            mProbes = 3;
+
+    /**
+     * @param vocabulary one visual word per row, e.g. from {@link MiniBatchBOWTrainer#cluster()}.
+     * @param factory creates one feature extractor per worker, may be null when only
+     *                {@link #compute(List, List)} with descriptors is used.
+     * @param threads number of workers.
+     */
+    public BatchBOWExtractor(Mat vocabulary, Factory factory, int threads) {
+        if (vocabulary.empty() || vocabulary.channels() != 1)
+            throw new IllegalArgumentException("Vocabulary must be a non-empty single-channel matrix");
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mWords = vocabulary.rows();
+        mDims = vocabulary.cols();
+        Mat voc = new Mat();
+        vocabulary.convertTo(voc, CvType.CV_32F);
+        mVocabulary = new float[mWords * mDims];
+        voc.get(0, 0, mVocabulary);
+
+        mGroups = Math.max(1, (int) Math.round(Math.sqrt(mWords)));
+        mGroupCenters = new float[mGroups * mDims];
+        int[] labels = new int[mWords];
+        if (mGroups > 1) {
+            Mat labelsMat = new Mat(), centers = new Mat();
+            Core.kmeans(voc, mGroups, labelsMat,
+                    new TermCriteria(TermCriteria.MAX_ITER + TermCriteria.EPS, 20, 1e-4),
+                    1, Core.KMEANS_PP_CENTERS, centers);
+            labelsMat.get(0, 0, labels);
+            centers.get(0, 0, mGroupCenters);
+            labelsMat.release();
+            centers.release();
+        } else {
+            System.arraycopy(mVocabulary, 0, mGroupCenters, 0, mDims);
+        }
+        voc.release();
+        int[] sizes = new int[mGroups];
+        for (int l : labels)
+            sizes[l]++;
+        mGroupWords = new int[mGroups][];
+        for (int g = 0; g < mGroups; g++)
+            mGroupWords[g] = new int[sizes[g]];
+        Arrays.fill(sizes, 0);
+        for (int w = 0; w < mWords; w++)
+            mGroupWords[labels[w]][sizes[labels[w]]++] = w;
+
+        mExtractors = new ArrayBlockingQueue<Feature2D>(threads);
+        if (factory != null)
+            for (int i = 0; i < threads; i++)
+                mExtractors.add(factory.create());
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public BatchBOWExtractor(Mat vocabulary, Factory factory) {
+        this(vocabulary, factory, Runtime.getRuntime().availableProcessors());
+    }
+
+    public int descriptorSize() {
+        return mWords;
+    }
+
+    /**
+     * Number of coarse groups searched per descriptor; the number of groups gives an exact search.
+     */
+    public void setProbes(int probes) {
+        mProbes = Math.max(1, Math.min(probes, mGroups));
+    }
+
+    public int getProbes() {
+        return mProbes;
+    }
+
+    public int getGroupCount() {
+        return mGroups;
+    }
+
+    /**
+     * Histograms of a batch of descriptor sets, one per image.
+     */
+    public void compute(List<Mat> descriptors, List<SparseHistogram> histograms) {
+        final SparseHistogram[] out = new SparseHistogram[descriptors.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < out.length; i++) {
+            final int index = i;
+            final Mat desc = descriptors.get(i);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    out[index] = histogram(desc);
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+        histograms.clear();
+        histograms.addAll(Arrays.asList(out));
+    }
+
+    /**
+     * Detects and describes features in a batch of images and returns their histograms.
+     */
+    public void computeImages(List<Mat> images, List<SparseHistogram> histograms) {
+        if (mExtractors.isEmpty())
+            throw new CvException("No feature extractor factory was given");
+        final SparseHistogram[] out = new SparseHistogram[images.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < out.length; i++) {
+            final int index = i;
+            final Mat image = images.get(i);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    MatOfKeyPoint keypoints = new MatOfKeyPoint();
+                    Mat desc = new Mat();
+                    Mat mask = new Mat();
+                    Feature2D extractor = mExtractors.take();
+                    try {
+                        extractor.detectAndCompute(image, mask, keypoints, desc);
+                    } finally {
+                        mExtractors.add(extractor);
+                    }
+                    out[index] = histogram(desc);
+                    keypoints.release();
+                    desc.release();
+                    mask.release();
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+        histograms.clear();
+        histograms.addAll(Arrays.asList(out));
+    }
+
+    public void release() {
+        mPool.shutdown();
+        mExtractors.clear();
+    }
+
+    private SparseHistogram histogram(Mat descriptors) {
+        if (descriptors.empty())
+            return new SparseHistogram(new int[0], new float[0]);
+        if (descriptors.cols() != mDims)
+            throw new IllegalArgumentException("Descriptor length " + descriptors.cols() + " differs from " + mDims);
+        int rows = descriptors.rows();
+        float[] data = new float[rows * mDims];
+        if (descriptors.depth() == CvType.CV_32F && descriptors.isContinuous()) {
+            descriptors.get(0, 0, data);
+        } else {
+            Mat f = new Mat();
+            descriptors.convertTo(f, CvType.CV_32F);
+            f.get(0, 0, data);
+            f.release();
+        }
+
+        int[] counts = new int[mWords];
+        int[] groups = new int[mProbes];
+        float[] groupDist = new float[mProbes];
+        for (int r = 0; r < rows; r++)
+            counts[nearestWord(data, r * mDims, groups, groupDist)]++;
+
+        int nonZero = 0;
+        for (int c : counts)
+            if (c > 0)
+                nonZero++;
+        int[] words = new int[nonZero];
+        float[] values = new float[nonZero];
+        for (int w = 0, n = 0; w < mWords; w++) {
+            if (counts[w] > 0) {
+                words[n] = w;
+                values[n++] = (float) counts[w] / rows;
+            }
+        }
+        return new SparseHistogram(words, values);
+    }
+
+    private int nearestWord(float[] q, int offset, int[] groups, float[] groupDist) {
+        // nearest mProbes groups by insertion into a small sorted array
+        int found = 0;
+        for (int g = 0; g < mGroups; g++) {
+            float d = distance(mGroupCenters, g * mDims, q, offset,
+                    found == mProbes ? groupDist[mProbes - 1] : Float.MAX_VALUE);
+            if (found == mProbes && d >= groupDist[mProbes - 1])
+                continue;
+            int j = found < mProbes ? found++ : mProbes - 1;
+            while (j > 0 && groupDist[j - 1] > d) {
+                groupDist[j] = groupDist[j - 1];
+                groups[j] = groups[j - 1];
+                j--;
+            }
+            groupDist[j] = d;
+            groups[j] = g;
+        }
+        int best = 0;
+        float bestDist = Float.MAX_VALUE;
+        for (int p = 0; p < found; p++) {
+            for (int w : mGroupWords[groups[p]]) {
+                float d = distance(mVocabulary, w * mDims, q, offset, bestDist);
+                if (d < bestDist) {
+                    bestDist = d;
+                    best = w;
+                }
+            }
+        }
+        return best;
+    }
+
+    // squared L2 distance, stopping early once it exceeds the bound
+    private float distance(float[] a, int aOff, float[] q, int qOff, float bound) {
+        float d = 0;
+        for (int j = 0; j < mDims && d < bound; j++) {
+            float diff = a[aOff + j] - q[qOff + j];
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    private void run(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : mPool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Extraction interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Extraction failed: " + e.getCause());
+        }
+    }
+}
@@ -0,0 +1,566 @@
+package org.opencv.features2d;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opencv.core.CvType;
+import org.opencv.core.DMatch;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+
+/**
+ * Persistent descriptor index with incremental insert and delete.
+ * <p>
+ * Unlike {@link DescriptorMatcher}, rows are indexed as they are {@link #add added} and can be
+ * {@link #remove removed} (tombstoned) without rebuilding anything. Every row carries an image
+ * label that is reported as {@link DMatch#imgIdx}; {@link DMatch#trainIdx} is the global row.
+ * <p>
+ * {@link #save(String)} writes a little-endian snapshot whose large sections (descriptors, labels,
+ * index entries) are memory-mapped back by {@link #load(String)}, so reloading does not read or
+ * re-index the data. Rows added after a load live in memory next to the mapped ones until the next
+ * snapshot.
+ *
+ * @see LshIndex
+ * @see KMeansTreeIndex
+ */
+public abstract class DescriptorIndex {
+    private static final int MAGIC       = 0x58444e49; // "INDX"
+    private static final int VERSION     = 1;
+    static final int         TYPE_LSH    = 1;
+    static final int         TYPE_KMEANS = 2;
+    // rows of one mapped descriptor chunk are kept below 1 GiB
+    private static final long CHUNK_BYTES = 1L << 30;
+
+    final int            mDepth;
+    final int            mCols;
+    /** Row stride: longs per row for binary descriptors, floats per row otherwise. */
+    final int            mStride;
+
+    private ByteBuffer[] mBaseChunks = new ByteBuffer[0];
+    private int          mRowsPerChunk = 1;
+    private IntBuffer    mBaseLabels;
+    int                  mBaseRows;
+
+    private long[]       mBinRows = new long[0];
+    private float[]      mFloatRows = new float[0];
+    private int[]        mLabels = new int[0];
+    int                  mRows;
+
+    private final BitSet mDeleted = new BitSet();
+    private int          mDeletedCount;
+
+    /**
+     * @param depth {@link CvType#CV_8U} for binary (Hamming) or {@link CvType#CV_32F} for float
+     * (L2) descriptors.
+     * @param cols descriptor length in bytes or floats.
+     */
+    DescriptorIndex(int depth, int cols) {
+        if (depth != CvType.CV_8U && depth != CvType.CV_32F)
+            throw new IllegalArgumentException("Descriptors must be CV_8U or CV_32F");
+        if (cols < 1)
+            throw new IllegalArgumentException("Invalid descriptor length " + cols);
+        mDepth = depth;
+        mCols = cols;
+        mStride = depth == CvType.CV_8U ? (cols + 7) / 8 : cols;
+    }
+
+    public boolean isBinary() {
+        return mDepth == CvType.CV_8U;
+    }
+
+    public int getDescriptorLength() {
+        return mCols;
+    }
+
+    /**
+     * Number of rows ever added, removed ones included.
+     */
+    public int size() {
+        return mRows;
+    }
+
+    /**
+     * Number of rows that are not removed.
+     */
+    public int getLiveCount() {
+        return mRows - mDeletedCount;
+    }
+
+    /**
+     * Appends the rows of {@code descriptors} under one image label and indexes them.
+     *
+     * @return global index of the first added row.
+     */
+    public synchronized int add(Mat descriptors, int imgIdx) {
+        if (descriptors.empty())
+            return mRows;
+        checkQuery(descriptors);
+        int n = descriptors.rows();
+        int first = mRows;
+        ensureCapacity(mRows - mBaseRows + n);
+        int local = mRows - mBaseRows;
+        if (isBinary()) {
+            byte[] data = new byte[n * mCols];
+            descriptors.get(0, 0, data);
+            for (int r = 0; r < n; r++)
+                pack(data, r * mCols, mCols, mBinRows, (local + r) * mStride);
+        } else {
+            float[] data = new float[n * mCols];
+            descriptors.get(0, 0, data);
+            System.arraycopy(data, 0, mFloatRows, local * mStride, data.length);
+        }
+        Arrays.fill(mLabels, local, local + n, imgIdx);
+        mRows += n;
+        onRowsAdded(first, mRows);
+        return first;
+    }
+
+    /**
+     * Removes all rows of the given image labels.
+     *
+     * @return number of rows removed.
+     */
+    public synchronized int remove(int... imgIdx) {
+        Set<Integer> labels = new HashSet<Integer>();
+        for (int l : imgIdx)
+            labels.add(l);
+        int removed = 0;
+        for (int row = 0; row < mRows; row++) {
+            if (!mDeleted.get(row) && labels.contains(label(row))) {
+                mDeleted.set(row);
+                removed++;
+            }
+        }
+        mDeletedCount += removed;
+        return removed;
+    }
+
+    public boolean isRemoved(int row) {
+        return mDeleted.get(row);
+    }
+
+    /**
+     * Finds the best match of each query row.
+     *
+     * @see DescriptorMatcher#match(Mat, MatOfDMatch)
+     */
+    public void match(Mat queryDescriptors, MatOfDMatch matches) {
+        List<MatOfDMatch> knn = new ArrayList<MatOfDMatch>();
+        knnMatch(queryDescriptors, knn, 1);
+        List<DMatch> best = new ArrayList<DMatch>(knn.size());
+        for (MatOfDMatch m : knn) {
+            DMatch[] a = m.toArray();
+            if (a.length > 0)
+                best.add(a[0]);
+            m.release();
+        }
+        if (best.isEmpty())
+            matches.release();
+        else
+            matches.fromList(best);
+    }
+
+    /**
+     * Finds the k best matches of each query row, closest first.
+     *
+     * @see DescriptorMatcher#knnMatch(Mat, List, int)
+     */
+    public synchronized void knnMatch(Mat queryDescriptors, List<MatOfDMatch> matches, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("Number of matches must be positive, got " + k);
+        matches.clear();
+        if (queryDescriptors.empty())
+            return;
+        checkQuery(queryDescriptors);
+        prepareSearch();
+        int n = queryDescriptors.rows();
+        long[] qb = null;
+        float[] qf = null;
+        if (isBinary()) {
+            byte[] data = new byte[n * mCols];
+            queryDescriptors.get(0, 0, data);
+            qb = new long[n * mStride];
+            for (int r = 0; r < n; r++)
+                pack(data, r * mCols, mCols, qb, r * mStride);
+        } else {
+            qf = new float[n * mCols];
+            queryDescriptors.get(0, 0, qf);
+        }
+        TopK top = new TopK(k);
+        for (int q = 0; q < n; q++) {
+            top.clear();
+            search(qb, qf, q * mStride, top);
+            DMatch[] res = new DMatch[top.size];
+            for (int i = 0; i < top.size; i++) {
+                int row = top.rows[i];
+                float d = isBinary() ? top.dist[i] : (float) Math.sqrt(top.dist[i]);
+                res[i] = new DMatch(q, row, label(row), d);
+            }
+            matches.add(new MatOfDMatch(res));
+        }
+    }
+
+    /**
+     * Writes a snapshot of the index, removed rows included. The path must differ from the
+     * snapshot this index was loaded from, which is still mapped.
+     */
+    public synchronized void save(String path) throws IOException {
+        prepareSearch();
+        FileOutputStream fos = new FileOutputStream(path);
+        Writer w = new Writer(fos.getChannel());
+        try {
+            w.putInt(MAGIC);
+            w.putInt(VERSION);
+            w.putInt(indexType());
+            w.putInt(mDepth);
+            w.putInt(mCols);
+            w.putInt(mRows);
+            writeParams(w);
+            w.align();
+            for (int row = 0; row < mRows; row++)
+                w.putInt(label(row));
+            w.align();
+            long[] bits = mDeleted.toLongArray();
+            for (int i = 0; i < (mRows + 63) / 64; i++)
+                w.putLong(i < bits.length ? bits[i] : 0);
+            for (int row = 0; row < mRows; row++) {
+                if (isBinary())
+                    for (int i = 0; i < mStride; i++)
+                        w.putLong(binWord(row, i));
+                else
+                    for (int i = 0; i < mStride; i++)
+                        w.putFloat(floatAt(row, i));
+            }
+            w.align();
+            writeStructure(w);
+            w.flush();
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Maps a snapshot written by {@link #save(String)}.
+     */
+    public static DescriptorIndex load(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+        try {
+            Reader r = new Reader(file.getChannel());
+            if (r.getInt() != MAGIC || r.getInt() != VERSION)
+                throw new IOException("Not a descriptor index snapshot: " + path);
+            int type = r.getInt();
+            int depth = r.getInt();
+            int cols = r.getInt();
+            int rows = r.getInt();
+            DescriptorIndex index;
+            if (type == TYPE_LSH)
+                index = LshIndex.readParams(depth, cols, r);
+            else if (type == TYPE_KMEANS)
+                index = KMeansTreeIndex.readParams(depth, cols, r);
+            else
+                throw new IOException("Unknown index type " + type);
+            r.align();
+            index.mBaseRows = rows;
+            index.mRows = rows;
+            index.mBaseLabels = r.map(4L * rows).asIntBuffer();
+            r.align();
+            ByteBuffer deleted = r.map(8L * ((rows + 63) / 64));
+            long[] bits = new long[(rows + 63) / 64];
+            deleted.asLongBuffer().get(bits);
+            index.mDeleted.or(BitSet.valueOf(bits));
+            index.mDeletedCount = index.mDeleted.cardinality();
+            long rowBytes = 8L * index.mStride;
+            if (index.mDepth == CvType.CV_32F)
+                rowBytes = 4L * index.mStride;
+            index.mRowsPerChunk = (int) Math.max(1, CHUNK_BYTES / rowBytes);
+            int chunks = (rows + index.mRowsPerChunk - 1) / index.mRowsPerChunk;
+            index.mBaseChunks = new ByteBuffer[chunks];
+            for (int c = 0; c < chunks; c++) {
+                int n = Math.min(index.mRowsPerChunk, rows - c * index.mRowsPerChunk);
+                index.mBaseChunks[c] = r.map(rowBytes * n);
+            }
+            r.align();
+            index.readStructure(r);
+            return index;
+        } finally {
+            // mappings stay valid after the channel is closed
+            file.close();
+        }
+    }
+
+    // --- index-specific parts ---
+
+    abstract int indexType();
+
+    /** Indexes the rows [from, to) that were just appended. */
+    abstract void onRowsAdded(int from, int to);
+
+    /** Called before searching or saving, e.g. to build a structure lazily. */
+    void prepareSearch() {}
+
+    /** Adds the live candidates of query {@code qb/qf} at {@code offset} to {@code top}. */
+    abstract void search(long[] qb, float[] qf, int offset, TopK top);
+
+    abstract void writeParams(Writer w) throws IOException;
+
+    abstract void writeStructure(Writer w) throws IOException;
+
+    abstract void readStructure(Reader r) throws IOException;
+
+    // --- row access shared by the indexes ---
+
+    final int label(int row) {
+        return row < mBaseRows ? mBaseLabels.get(row) : mLabels[row - mBaseRows];
+    }
+
+    final long binWord(int row, int i) {
+        if (row < mBaseRows)
+            return mBaseChunks[row / mRowsPerChunk].getLong(((row % mRowsPerChunk) * mStride + i) * 8);
+        return mBinRows[(row - mBaseRows) * mStride + i];
+    }
+
+    final float floatAt(int row, int i) {
+        if (row < mBaseRows)
+            return mBaseChunks[row / mRowsPerChunk].getFloat(((row % mRowsPerChunk) * mStride + i) * 4);
+        return mFloatRows[(row - mBaseRows) * mStride + i];
+    }
+
+    final int hamming(int row, long[] q, int offset) {
+        int d = 0;
+        for (int i = 0; i < mStride; i++)
+            d += Long.bitCount(binWord(row, i) ^ q[offset + i]);
+        return d;
+    }
+
+    /** Squared L2 distance, abandoned early once it exceeds {@code bound}. */
+    final float l2sq(int row, float[] q, int offset, float bound) {
+        float d = 0;
+        for (int i = 0; i < mStride; i++) {
+            float diff = floatAt(row, i) - q[offset + i];
+            d += diff * diff;
+            if (d > bound)
+                return d;
+        }
+        return d;
+    }
+
+    /** Offers a row to {@code top} if it is live. */
+    final void consider(int row, long[] qb, float[] qf, int offset, TopK top) {
+        if (mDeleted.get(row))
+            return;
+        if (qb != null)
+            top.offer(row, hamming(row, qb, offset));
+        else
+            top.offer(row, l2sq(row, qf, offset, top.bound()));
+    }
+
+    private void checkQuery(Mat m) {
+        if (m.depth() != mDepth || m.cols() * m.channels() != mCols)
+            throw new IllegalArgumentException("Descriptors do not match the index (" + CvType.typeToString(m.type())
+                    + ", " + m.cols() + " cols)");
+        if (!m.isContinuous())
+            throw new IllegalArgumentException("Descriptors must be continuous");
+    }
+
+    private void ensureCapacity(int rows) {
+        if (mLabels.length >= rows)
+            return;
+        int cap = Math.max(rows, mLabels.length * 2);
+        mLabels = Arrays.copyOf(mLabels, cap);
+        if (isBinary())
+            mBinRows = Arrays.copyOf(mBinRows, cap * mStride);
+        else
+            mFloatRows = Arrays.copyOf(mFloatRows, cap * mStride);
+    }
+
+    static void pack(byte[] src, int off, int len, long[] dst, int dstOff) {
+        for (int i = 0; i < len; i++)
+            dst[dstOff + (i >> 3)] |= (src[off + i] & 0xffL) << ((i & 7) * 8);
+    }
+
+    /**
+     * Bounded list of the k closest rows, kept sorted by distance.
+     */
+    static final class TopK {
+        final int     k;
+        final int[]   rows;
+        final float[] dist;
+        int           size;
+
+        TopK(int k) {
+            this.k = k;
+            rows = new int[k];
+            dist = new float[k];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        float bound() {
+            return size < k ? Float.MAX_VALUE : dist[k - 1];
+        }
+
+        void offer(int row, float d) {
+            if (size == k && d >= dist[k - 1])
+                return;
+            // a row may be reached through several buckets or branches
+            for (int j = 0; j < size; j++)
+                if (rows[j] == row)
+                    return;
+            int i = size < k ? size++ : k - 1;
+            while (i > 0 && dist[i - 1] > d) {
+                dist[i] = dist[i - 1];
+                rows[i] = rows[i - 1];
+                i--;
+            }
+            dist[i] = d;
+            rows[i] = row;
+        }
+    }
+
+    /**
+     * Growable list of row indices.
+     */
+    static final class IntList {
+        int[] data = new int[4];
+        int   size;
+
+        void add(int v) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+    }
+
+    /**
+     * Little-endian sequential writer for snapshots.
+     */
+    static final class Writer {
+        private final FileChannel mChannel;
+        private final ByteBuffer  mBuf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long              mPos;
+
+        Writer(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        void putInt(int v) throws IOException {
+            room(4);
+            mBuf.putInt(v);
+            mPos += 4;
+        }
+
+        void putLong(long v) throws IOException {
+            room(8);
+            mBuf.putLong(v);
+            mPos += 8;
+        }
+
+        void putFloat(float v) throws IOException {
+            room(4);
+            mBuf.putFloat(v);
+            mPos += 4;
+        }
+
+        /** Pads to an 8-byte boundary so that mapped sections are aligned. */
+        void align() throws IOException {
+            while ((mPos & 7) != 0) {
+                room(1);
+                mBuf.put((byte) 0);
+                mPos++;
+            }
+        }
+
+        void flush() throws IOException {
+            mBuf.flip();
+            while (mBuf.hasRemaining())
+                mChannel.write(mBuf);
+            mBuf.clear();
+        }
+
+        private void room(int n) throws IOException {
+            if (mBuf.remaining() < n)
+                flush();
+        }
+    }
+
+    /**
+     * Little-endian sequential reader for snapshots: scalars are read through a small buffer,
+     * large sections are mapped.
+     */
+    static final class Reader {
+        private final FileChannel mChannel;
+        // holds the bytes from mPos on; empty after a mapped section
+        private final ByteBuffer  mBuf = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+        private long              mPos;
+
+        Reader(FileChannel channel) {
+            mChannel = channel;
+            mBuf.limit(0);
+        }
+
+        int getInt() throws IOException {
+            fill(4);
+            mPos += 4;
+            return mBuf.getInt();
+        }
+
+        long getLong() throws IOException {
+            fill(8);
+            mPos += 8;
+            return mBuf.getLong();
+        }
+
+        float getFloat() throws IOException {
+            fill(4);
+            mPos += 4;
+            return mBuf.getFloat();
+        }
+
+        ByteBuffer map(long bytes) throws IOException {
+            if (bytes > Integer.MAX_VALUE)
+                throw new IOException("Snapshot section too large: " + bytes);
+            ByteBuffer b = mChannel.map(FileChannel.MapMode.READ_ONLY, mPos, bytes).order(ByteOrder.LITTLE_ENDIAN);
+            mPos += bytes;
+            mBuf.limit(0);
+            return b;
+        }
+
+        void align() {
+            long aligned = (mPos + 7) & ~7L;
+            int skip = (int) (aligned - mPos);
+            if (skip <= mBuf.remaining())
+                mBuf.position(mBuf.position() + skip);
+            else
+                mBuf.limit(0);
+            mPos = aligned;
+        }
+
+        private void fill(int n) throws IOException {
+            if (mBuf.remaining() >= n)
+                return;
+            mBuf.clear();
+            long pos = mPos;
+            while (mBuf.position() < n) {
+                int read = mChannel.read(mBuf, pos);
+                if (read < 0)
+                    throw new IOException("Unexpected end of snapshot");
+                pos += read;
+            }
+            mBuf.flip();
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package org.opencv.features2d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.CvException;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Grid-bucketed keypoint detection with per-cell quotas and a global budget.
+ * <p>
+ * The frame is split into a grid and each cell (plus a margin of context) is passed to its own
+ * detector call on a work-stealing pool; a cell keeps at most its quota of strongest keypoints.
+ * For {@link FastFeatureDetector}, {@link AgastFeatureDetector}, {@link ORB} and
+ * {@link GFTTDetector} the detection threshold of every cell is adapted from frame to frame so
+ * that textureless cells still yield points and busy cells stop wasting time. Cells are visited
+ * in an order that covers the whole frame early, and no new cell is started once the keypoint
+ * or time budget is spent.
+ * <p>
+ * A detector cannot be used from several threads at once, so one per worker is created by the
+ * factory.
+ */
+public class GridFeatureDetector {
+    /**
+     * Creates the detector of one worker.
+     */
+    public interface Factory {
+        Feature2D create();
+    }
+
+    private final ForkJoinPool              mPool;
+    private final BlockingQueue<Feature2D>  mDetectors;
+    private final int                       mThreads;
+    private final int                       mGridCols;
+    private final int                       mGridRows;
+    private final int[]                     mOrder;
+    private final double[]                  mThresholds;
+    private final double                    mInitialThreshold;
+    private int                             mMaxKeypoints = 1000;
+    private int                             mCellQuota;
+    private double                          mTimeBudget;
+    private int                             mMargin;
+    private boolean                         mAdaptive = true;
+
+    private final Mat                       mGray = new Mat();
+    private Mat                             mFrame;
+    private int                             mLastCells;
+    private double                          mLastTime;
+    private boolean                         mBudgetHit;
+
+    /**
+     * @param factory creates one detector per worker.
+     * @param gridCols number of grid columns.
+     * @param gridRows number of grid rows.
+     * @param threads number of workers.
+     */
+    public GridFeatureDetector(Factory factory, int gridCols, int gridRows, int threads) {
+        if (gridCols < 1 || gridRows < 1)
+            throw new IllegalArgumentException("Grid must have at least one cell");
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mThreads = threads;
+        mGridCols = gridCols;
+        mGridRows = gridRows;
+        mDetectors = new ArrayBlockingQueue<Feature2D>(threads);
+        for (int i = 0; i < threads; i++)
+            mDetectors.add(factory.create());
+        mInitialThreshold = getThreshold(mDetectors.peek());
+        mMargin = defaultMargin(mDetectors.peek());
+        mThresholds = new double[gridCols * gridRows];
+        Arrays.fill(mThresholds, mInitialThreshold);
+        mOrder = spreadOrder(gridCols, gridRows);
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public GridFeatureDetector(Factory factory, int gridCols, int gridRows) {
+        this(factory, gridCols, gridRows, Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getGridCols() {
+        return mGridCols;
+    }
+
+    public int getGridRows() {
+        return mGridRows;
+    }
+
+    /**
+     * Maximum number of keypoints per frame.
+     */
+    public void setMaxKeypoints(int maxKeypoints) {
+        if (maxKeypoints < 1)
+            throw new IllegalArgumentException("Keypoint budget must be positive");
+        mMaxKeypoints = maxKeypoints;
+    }
+
+    public int getMaxKeypoints() {
+        return mMaxKeypoints;
+    }
+
+    /**
+     * Maximum number of keypoints per cell, 0 (default) spreads the keypoint budget evenly.
+     */
+    public void setCellQuota(int quota) {
+        mCellQuota = quota;
+    }
+
+    public int getCellQuota() {
+        return mCellQuota > 0 ? mCellQuota : Math.max(1, (mMaxKeypoints + mThresholds.length - 1) / mThresholds.length);
+    }
+
+    /**
+     * Time after which no new cell is started, in milliseconds; 0 (default) means no limit.
+     */
+    public void setTimeBudget(double ms) {
+        mTimeBudget = ms;
+    }
+
+    public double getTimeBudget() {
+        return mTimeBudget;
+    }
+
+    /**
+     * Context in pixels added around each cell, so that detectors with a border (ORB's edge
+     * threshold, FAST's circle) still see the cell edges. The default is the larger of the edge
+     * threshold and the patch size for ORB and 16 for the others; ORB applies its edge threshold
+     * on every pyramid level, so full coverage of the coarse levels needs it multiplied by the
+     * scale of the level.
+     */
+    public void setCellMargin(int margin) {
+        mMargin = Math.max(0, margin);
+    }
+
+    public int getCellMargin() {
+        return mMargin;
+    }
+
+    /**
+     * Enables the per-cell threshold adaptation (on by default).
+     */
+    public void setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+        if (!adaptive)
+            Arrays.fill(mThresholds, mInitialThreshold);
+    }
+
+    public boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /**
+     * Index of the cell containing the point in a frame of the given size.
+     */
+    public int cellIndex(double x, double y, int width, int height) {
+        int cx = (int) (x * mGridCols / width), cy = (int) (y * mGridRows / height);
+        cx = Math.min(Math.max(cx, 0), mGridCols - 1);
+        cy = Math.min(Math.max(cy, 0), mGridRows - 1);
+        return cy * mGridCols + cx;
+    }
+
+    /**
+     * Detects keypoints in every cell.
+     */
+    public void detect(Mat image, MatOfKeyPoint keypoints) {
+        int[] quota = new int[mThresholds.length];
+        Arrays.fill(quota, getCellQuota());
+        detect(image, quota, keypoints);
+    }
+
+    /**
+     * Detects keypoints with an explicit quota per cell (row-major, 0 skips the cell).
+     */
+    public void detect(Mat image, int[] cellQuota, MatOfKeyPoint keypoints) {
+        if (cellQuota.length != mThresholds.length)
+            throw new IllegalArgumentException("Expected " + mThresholds.length + " cell quotas");
+        long start = System.nanoTime();
+        mFrame = toGray(image, mGray);
+        List<List<KeyPoint>> cells = detectCells(mFrame, cellQuota, start);
+        List<KeyPoint> all = select(cells);
+        if (all.isEmpty())
+            keypoints.release();
+        else
+            keypoints.fromList(all);
+        mLastTime = (System.nanoTime() - start) / 1e6;
+    }
+
+    /**
+     * Detects keypoints in every cell and computes their descriptors on the whole frame. Keypoints
+     * for which no descriptor can be computed are removed.
+     */
+    public void detectAndCompute(Mat image, MatOfKeyPoint keypoints, Mat descriptors) {
+        detect(image, keypoints);
+        compute(keypoints, descriptors);
+    }
+
+    /**
+     * Computes descriptors for keypoints of the last frame passed to {@link #detect}. A gray
+     * frame is used as it is rather than copied, so it must not change in between.
+     */
+    public void compute(MatOfKeyPoint keypoints, Mat descriptors) {
+        if (keypoints.empty()) {
+            descriptors.release();
+            return;
+        }
+        if (mFrame == null)
+            throw new IllegalStateException("No frame was detected on");
+        Feature2D detector;
+        try {
+            detector = mDetectors.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Detection interrupted");
+        }
+        try {
+            detector.compute(mFrame, keypoints, descriptors);
+        } finally {
+            mDetectors.add(detector);
+        }
+    }
+
+    /**
+     * Number of cells scanned in the last frame.
+     */
+    public int getLastCellCount() {
+        return mLastCells;
+    }
+
+    /**
+     * Duration of the last detection in milliseconds.
+     */
+    public double getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * Whether the last frame stopped early on the keypoint or time budget.
+     */
+    public boolean isBudgetHit() {
+        return mBudgetHit;
+    }
+
+    public void release() {
+        mPool.shutdown();
+        mGray.release();
+        mFrame = null;
+    }
+
+    private List<List<KeyPoint>> detectCells(final Mat gray, final int[] quota, long start) {
+        final int width = gray.cols(), height = gray.rows();
+        final long deadline = mTimeBudget > 0 ? start + (long) (mTimeBudget * 1e6) : Long.MAX_VALUE;
+        final AtomicInteger cursor = new AtomicInteger();
+        final AtomicInteger total = new AtomicInteger();
+        final AtomicInteger scanned = new AtomicInteger();
+        final List<List<KeyPoint>> cells = new ArrayList<List<KeyPoint>>();
+        for (int i = 0; i < mThresholds.length; i++)
+            cells.add(Collections.<KeyPoint>emptyList());
+
+        List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < mThreads; t++) {
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    Feature2D detector = mDetectors.take();
+                    try {
+                        int next;
+                        while ((next = cursor.getAndIncrement()) < mOrder.length) {
+                            if (total.get() >= mMaxKeypoints || System.nanoTime() > deadline)
+                                break;
+                            int cell = mOrder[next];
+                            if (quota[cell] <= 0)
+                                continue;
+                            List<KeyPoint> found = detectCell(detector, gray, cell, quota[cell], width, height);
+                            cells.set(cell, found);
+                            total.addAndGet(found.size());
+                            scanned.incrementAndGet();
+                        }
+                    } finally {
+                        mDetectors.add(detector);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> f : mPool.invokeAll(workers))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Detection interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Detection failed: " + e.getCause());
+        }
+        mLastCells = scanned.get();
+        int wanted = 0;
+        for (int q : quota)
+            if (q > 0)
+                wanted++;
+        mBudgetHit = mLastCells < wanted;
+        return cells;
+    }
+
+    private List<KeyPoint> detectCell(Feature2D detector, Mat gray, int cell, int quota, int width, int height) {
+        int cx = cell % mGridCols, cy = cell / mGridCols;
+        int x0 = cx * width / mGridCols, x1 = (cx + 1) * width / mGridCols;
+        int y0 = cy * height / mGridRows, y1 = (cy + 1) * height / mGridRows;
+        Rect roi = new Rect(Math.max(0, x0 - mMargin), Math.max(0, y0 - mMargin), 0, 0);
+        roi.width = Math.min(width, x1 + mMargin) - roi.x;
+        roi.height = Math.min(height, y1 + mMargin) - roi.y;
+
+        // oversample a little so the quota keeps the strongest responses
+        if (detector instanceof ORB)
+            ((ORB) detector).setMaxFeatures(2 * quota);
+        else if (detector instanceof GFTTDetector)
+            ((GFTTDetector) detector).setMaxFeatures(2 * quota);
+        if (mAdaptive && mInitialThreshold > 0)
+            setThreshold(detector, mThresholds[cell]);
+
+        Mat sub = gray.submat(roi);
+        MatOfKeyPoint found = new MatOfKeyPoint();
+        detector.detect(sub, found);
+        KeyPoint[] raw = found.toArray();
+        found.release();
+        sub.release();
+
+        List<KeyPoint> kept = new ArrayList<KeyPoint>();
+        for (KeyPoint kp : raw) {
+            kp.pt.x += roi.x;
+            kp.pt.y += roi.y;
+            if (kp.pt.x >= x0 && kp.pt.x < x1 && kp.pt.y >= y0 && kp.pt.y < y1)
+                kept.add(kp);
+        }
+        if (mAdaptive && mInitialThreshold > 0)
+            mThresholds[cell] = adapt(detector, mThresholds[cell], kept.size(), raw.length, quota);
+        Collections.sort(kept, BY_RESPONSE);
+        return kept.size() > quota ? new ArrayList<KeyPoint>(kept.subList(0, quota)) : kept;
+    }
+
+    // takes the best keypoint of every cell, then the second best, ... up to the budget
+    private List<KeyPoint> select(List<List<KeyPoint>> cells) {
+        List<KeyPoint> all = new ArrayList<KeyPoint>();
+        for (int rank = 0; all.size() < mMaxKeypoints; rank++) {
+            boolean any = false;
+            for (int i = 0; i < cells.size() && all.size() < mMaxKeypoints; i++) {
+                List<KeyPoint> cell = cells.get(i);
+                if (rank < cell.size()) {
+                    all.add(cell.get(rank));
+                    any = true;
+                }
+            }
+            if (!any)
+                break;
+        }
+        return all;
+    }
+
+    private static final Comparator<KeyPoint> BY_RESPONSE = new Comparator<KeyPoint>() {
+        @Override
+        public int compare(KeyPoint a, KeyPoint b) {
+            return Float.compare(b.response, a.response);
+        }
+    };
+
+    // ORB drops keypoints closer to the border than its edge threshold and cannot describe them
+    // closer than half a patch; the others only need a few pixels
+    private static int defaultMargin(Feature2D detector) {
+        if (detector instanceof ORB) {
+            ORB orb = (ORB) detector;
+            return Math.max(orb.getEdgeThreshold(), orb.getPatchSize());
+        }
+        return 16;
+    }
+
+    // current threshold of the supported detectors, -1 for others
+    private static double getThreshold(Feature2D detector) {
+        if (detector instanceof FastFeatureDetector)
+            return ((FastFeatureDetector) detector).getThreshold();
+        if (detector instanceof AgastFeatureDetector)
+            return ((AgastFeatureDetector) detector).getThreshold();
+        if (detector instanceof ORB)
+            return ((ORB) detector).getFastThreshold();
+        if (detector instanceof GFTTDetector)
+            return ((GFTTDetector) detector).getQualityLevel();
+        return -1;
+    }
+
+    private static void setThreshold(Feature2D detector, double threshold) {
+        if (detector instanceof FastFeatureDetector)
+            ((FastFeatureDetector) detector).setThreshold((int) Math.round(threshold));
+        else if (detector instanceof AgastFeatureDetector)
+            ((AgastFeatureDetector) detector).setThreshold((int) Math.round(threshold));
+        else if (detector instanceof ORB)
+            ((ORB) detector).setFastThreshold((int) Math.round(threshold));
+        else if (detector instanceof GFTTDetector)
+            ((GFTTDetector) detector).setQualityLevel(threshold);
+    }
+
+    // lowers the threshold of starved cells and raises it for cells with far too many responses;
+    // ORB and GFTT stop at their 2 * quota cap, so reaching the cap counts as busy for them
+    private static double adapt(Feature2D detector, double threshold, int found, int raw, int quota) {
+        boolean capped = detector instanceof ORB || detector instanceof GFTTDetector;
+        double next = threshold;
+        if (found < quota)
+            next = threshold * 0.8;
+        else if (capped ? raw >= 2 * quota : found > 3 * quota)
+            next = threshold * 1.25;
+        if (detector instanceof GFTTDetector)
+            return Math.min(Math.max(next, 0.001), 0.5);
+        return Math.min(Math.max(next, 2), 200);
+    }
+
+    // all cells, even rows/columns first, so that an early stop still covers the frame
+    private static int[] spreadOrder(int cols, int rows) {
+        int[] order = new int[cols * rows];
+        int n = 0;
+        for (int py = 0; py < 2; py++)
+            for (int px = 0; px < 2; px++)
+                for (int y = py; y < rows; y += 2)
+                    for (int x = px; x < cols; x += 2)
+                        order[n++] = y * cols + x;
+        return order;
+    }
+
+    // the image itself when it already has one channel, otherwise its conversion into gray
+    private static Mat toGray(Mat image, Mat gray) {
+        if (image.channels() == 3)
+            Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+        else if (image.channels() == 4)
+            Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGRA2GRAY);
+        else
+            return image;
+        return gray;
+    }
+}
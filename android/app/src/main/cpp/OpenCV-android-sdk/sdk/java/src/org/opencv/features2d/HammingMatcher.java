@@ -0,0 +1,342 @@
+package org.opencv.features2d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.DMatch;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+
+/**
+ * Brute-force Hamming matcher specialized for binary descriptors such as 256-bit ORB.
+ * <p>
+ * Train descriptors are packed into 64-bit words in blocks of {@link #BLOCK} rows stored word by
+ * word, so the distance loop over a block is a run of independent {@link Long#bitCount} calls
+ * that the JIT turns into hardware popcounts (and vector popcounts where available). Once k rows
+ * were found, the k-th distance bounds the scan: a block whose partial distances over the first
+ * half of the words already reach the bound for every row is left without scoring the other
+ * half, and a row is inserted into the k best only when it beats the bound. With
+ * {@link #setRatio(float)} a query whose best match fails Lowe's ratio test against the second
+ * best returns no matches; only the two best are needed for the test, so the bound is the
+ * second distance when {@code k} is 1. Query rows are split across a fork-join pool, also when
+ * matching against a single train Mat.
+ * <p>
+ * The methods follow {@link DescriptorMatcher} (train collection with {@link #add(List)}, matches
+ * with {@link DMatch#imgIdx} set to the train image) and give the same results as
+ * {@link BFMatcher} with {@link org.opencv.core.Core#NORM_HAMMING}, ties aside.
+ */
+public class HammingMatcher {
+    /** Train rows per block. */
+    public static final int BLOCK = 64;
+    private static final int QUERY_CHUNK = 64;
+
+    private final ForkJoinPool mPool;
+    private float              mRatio;
+
+    private final List<Mat>    mTrainDescriptors = new ArrayList<Mat>();
+    private int                mBytes = -1;
+    private Packed             mPacked;
+    private boolean            mTrained;
+
+    // train rows packed word by word in blocks of BLOCK rows
+    private static class Packed {
+        final int    bytes;
+        final int    words;
+        final int    rows;
+        final long[] data;
+        final int[]  imgIdx;
+        final int[]  localIdx;
+
+        Packed(List<Mat> descriptors, int bytes) {
+            int n = 0;
+            for (Mat d : descriptors)
+                n += d.rows();
+            this.bytes = bytes;
+            words = (bytes + 7) / 8;
+            rows = n;
+            data = new long[(rows + BLOCK - 1) / BLOCK * words * BLOCK];
+            imgIdx = new int[rows];
+            localIdx = new int[rows];
+            int row = 0;
+            long[] tmp = new long[words];
+            for (int img = 0; img < descriptors.size(); img++) {
+                Mat d = descriptors.get(img);
+                byte[] buf = new byte[d.rows() * bytes];
+                if (d.rows() > 0)
+                    d.get(0, 0, buf);
+                for (int r = 0; r < d.rows(); r++, row++) {
+                    Arrays.fill(tmp, 0);
+                    DescriptorIndex.pack(buf, r * bytes, bytes, tmp, 0);
+                    int base = (row / BLOCK) * words * BLOCK + row % BLOCK;
+                    for (int w = 0; w < words; w++)
+                        data[base + w * BLOCK] = tmp[w];
+                    imgIdx[row] = img;
+                    localIdx[row] = r;
+                }
+            }
+        }
+    }
+
+    public HammingMatcher(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public HammingMatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Ratio test threshold: a query keeps its matches only if best &lt; ratio * second best.
+     * 0 (default) disables the test. The second best is searched for even when {@code k} is 1.
+     */
+    public void setRatio(float ratio) {
+        mRatio = ratio;
+    }
+
+    public float getRatio() {
+        return mRatio;
+    }
+
+    /**
+     * Adds train descriptors, one Mat per train image.
+     */
+    public void add(List<Mat> descriptors) {
+        for (Mat d : descriptors) {
+            checkDescriptors(d);
+            mTrainDescriptors.add(d);
+        }
+        mTrained = false;
+    }
+
+    public List<Mat> getTrainDescriptors() {
+        return new ArrayList<Mat>(mTrainDescriptors);
+    }
+
+    public void clear() {
+        mTrainDescriptors.clear();
+        mBytes = -1;
+        mPacked = null;
+        mTrained = false;
+    }
+
+    public boolean empty() {
+        return mTrainDescriptors.isEmpty();
+    }
+
+    /**
+     * Packs the train collection; called by the match methods when needed.
+     */
+    public void train() {
+        if (mTrained)
+            return;
+        mPacked = new Packed(mTrainDescriptors, Math.max(mBytes, 0));
+        mTrained = true;
+    }
+
+    /**
+     * Best match of each query row against the train collection.
+     */
+    public void match(Mat queryDescriptors, MatOfDMatch matches) {
+        List<MatOfDMatch> knn = new ArrayList<MatOfDMatch>();
+        knnMatch(queryDescriptors, knn, 1);
+        List<DMatch> best = new ArrayList<DMatch>();
+        for (MatOfDMatch m : knn) {
+            DMatch[] a = m.toArray();
+            if (a.length > 0)
+                best.add(a[0]);
+            m.release();
+        }
+        if (best.isEmpty())
+            matches.release();
+        else
+            matches.fromList(best);
+    }
+
+    /**
+     * k best matches of each query row against the train collection, closest first. Without
+     * train descriptors {@code matches} is left empty, as with {@link BFMatcher}.
+     *
+     * @see DescriptorMatcher#knnMatch(Mat, List, int)
+     */
+    public void knnMatch(Mat queryDescriptors, List<MatOfDMatch> matches, int k) {
+        checkK(k);
+        train();
+        matches.clear();
+        if (queryDescriptors.empty() || mPacked.rows == 0)
+            return;
+        checkType(queryDescriptors);
+        if (queryDescriptors.cols() != mPacked.bytes)
+            throw new IllegalArgumentException("Descriptor length " + queryDescriptors.cols() + " differs from " + mPacked.bytes);
+        search(mPacked, queryDescriptors, matches, k);
+    }
+
+    /**
+     * k best matches of each query row against {@code trainDescriptors} only, e.g. between two
+     * consecutive frames; the train collection is not used.
+     *
+     * @see DescriptorMatcher#knnMatch(Mat, Mat, List, int)
+     */
+    public void knnMatch(Mat queryDescriptors, Mat trainDescriptors, List<MatOfDMatch> matches, int k) {
+        checkK(k);
+        matches.clear();
+        if (queryDescriptors.empty() || trainDescriptors.empty())
+            return;
+        checkType(queryDescriptors);
+        checkType(trainDescriptors);
+        if (queryDescriptors.cols() != trainDescriptors.cols())
+            throw new IllegalArgumentException("Descriptor length " + queryDescriptors.cols() + " differs from " + trainDescriptors.cols());
+        List<Mat> train = new ArrayList<Mat>();
+        train.add(trainDescriptors);
+        search(new Packed(train, trainDescriptors.cols()), queryDescriptors, matches, k);
+    }
+
+    public void release() {
+        mPool.shutdown();
+        clear();
+    }
+
+    private void search(final Packed set, Mat queryDescriptors, List<MatOfDMatch> matches, int k) {
+        final int n = queryDescriptors.rows();
+        final int words = set.words;
+        byte[] data = new byte[n * set.bytes];
+        queryDescriptors.get(0, 0, data);
+        final long[] queries = new long[n * words];
+        for (int q = 0; q < n; q++)
+            DescriptorIndex.pack(data, q * set.bytes, set.bytes, queries, q * words);
+
+        // the ratio test needs the second best even when only the best is returned
+        final int kk = Math.max(mRatio > 0 ? 2 : 1, Math.min(k, set.rows));
+        final int[] bestRows = new int[n * kk];
+        final int[] bestDist = new int[n * kk];
+        final int[] counts = new int[n];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int start = 0; start < n; start += QUERY_CHUNK) {
+            final int from = start, to = Math.min(n, start + QUERY_CHUNK);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int[] dist = new int[BLOCK];
+                    for (int q = from; q < to; q++)
+                        counts[q] = searchRow(set, queries, q * words, kk, bestRows, bestDist, q * kk, dist);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> f : mPool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Matching interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Matching failed: " + e.getCause());
+        }
+
+        for (int q = 0; q < n; q++) {
+            int count = Math.min(counts[q], k);
+            if (mRatio > 0 && counts[q] >= 2 && bestDist[q * kk] >= mRatio * bestDist[q * kk + 1])
+                count = 0;
+            DMatch[] res = new DMatch[count];
+            for (int i = 0; i < count; i++) {
+                int row = bestRows[q * kk + i];
+                res[i] = new DMatch(q, set.localIdx[row], set.imgIdx[row], bestDist[q * kk + i]);
+            }
+            matches.add(new MatOfDMatch(res));
+        }
+    }
+
+    // k best train rows of one query, sorted by distance; returns how many were found
+    private static int searchRow(Packed set, long[] queries, int qOff, int k, int[] rows, int[] dists, int out,
+            int[] dist) {
+        int size = 0;
+        int bound = Integer.MAX_VALUE;
+        int words = set.words, half = words / 2;
+        int stride = words * BLOCK;
+        long[] packed = set.data;
+        for (int block = 0, first = 0; first < set.rows; block++, first += BLOCK) {
+            int base = block * stride;
+            int len = Math.min(BLOCK, set.rows - first);
+            int min = Integer.MAX_VALUE;
+            if (words == 4) {
+                long q0 = queries[qOff], q1 = queries[qOff + 1];
+                for (int i = 0; i < len; i++) {
+                    int d = Long.bitCount(packed[base + i] ^ q0) + Long.bitCount(packed[base + BLOCK + i] ^ q1);
+                    dist[i] = d;
+                    min = Math.min(min, d);
+                }
+                // the distances only grow with the remaining words
+                if (min >= bound)
+                    continue;
+                long q2 = queries[qOff + 2], q3 = queries[qOff + 3];
+                for (int i = 0; i < len; i++)
+                    dist[i] += Long.bitCount(packed[base + 2 * BLOCK + i] ^ q2)
+                            + Long.bitCount(packed[base + 3 * BLOCK + i] ^ q3);
+            } else {
+                Arrays.fill(dist, 0, len, 0);
+                int w = 0;
+                for (; w < words; w++) {
+                    if (w == half && half > 0) {
+                        min = Integer.MAX_VALUE;
+                        for (int i = 0; i < len; i++)
+                            min = Math.min(min, dist[i]);
+                        if (min >= bound)
+                            break;
+                    }
+                    long qw = queries[qOff + w];
+                    int wb = base + w * BLOCK;
+                    for (int i = 0; i < len; i++)
+                        dist[i] += Long.bitCount(packed[wb + i] ^ qw);
+                }
+                if (w < words)
+                    continue;
+            }
+            for (int i = 0; i < len; i++) {
+                int d = dist[i];
+                if (d >= bound)
+                    continue;
+                int j = size < k ? size++ : k - 1;
+                while (j > 0 && dists[out + j - 1] > d) {
+                    dists[out + j] = dists[out + j - 1];
+                    rows[out + j] = rows[out + j - 1];
+                    j--;
+                }
+                dists[out + j] = d;
+                rows[out + j] = first + i;
+                if (size == k)
+                    bound = dists[out + k - 1];
+            }
+        }
+        return size;
+    }
+
+    private void checkDescriptors(Mat d) {
+        if (d.empty())
+            return;
+        checkType(d);
+        if (mBytes < 0)
+            mBytes = d.cols();
+        else if (d.cols() != mBytes)
+            throw new IllegalArgumentException("Descriptor length " + d.cols() + " differs from " + mBytes);
+    }
+
+    private static void checkK(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("Number of matches must be positive, got " + k);
+    }
+
+    private static void checkType(Mat d) {
+        if (d.type() != CvType.CV_8UC1)
+            throw new IllegalArgumentException("Binary descriptors must be CV_8UC1");
+        if (!d.isContinuous())
+            throw new IllegalArgumentException("Descriptors must be continuous");
+    }
+}
@@ -0,0 +1,446 @@
+package org.opencv.features2d;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.TermCriteria;
+
+/**
+ * Hierarchical k-means index for float descriptors (e.g. SIFT) under the L2 distance.
+ * <p>
+ * The tree is built with {@link Core#kmeans} on the first search after rows were added to an
+ * empty index, or explicitly with {@link #train()}. The centres of a node are computed on at most
+ * {@link #setMaxSampleRows(int)} random rows of the node and the other rows are assigned to the
+ * nearest one, so the build does not copy a large catalogue into one matrix. Later rows are
+ * inserted into the leaf of their nearest centres without touching the rest of the tree;
+ * {@link #train()} rebalances when {@link #getImbalance()} grows. Searches are best-bin-first
+ * and stop after {@link #setMaxChecks(int)} rows have been compared.
+ */
+public class KMeansTreeIndex extends DescriptorIndex {
+    private final int  mBranching;
+    private final int  mLeafSize;
+    private final int  mIterations;
+    private int        mMaxChecks = 256;
+    private int        mMaxSampleRows = 4096;
+    private final Random mRandom = new Random(0x6b6d);
+
+    // nodes: centre, first child and child count (0 for leaves), leaf number for leaves
+    private int        mNodes;
+    private float[]    mCenters = new float[0];
+    private int[]      mFirstChild = new int[0];
+    private int[]      mChildCount = new int[0];
+    private int[]      mLeafOf = new int[0];
+    private int        mLeaves;
+    // snapshot leaf entries (memory-mapped CSR) and entries inserted since
+    private IntBuffer  mBaseOffsets;
+    private IntBuffer  mBaseEntries;
+    private IntList[]  mLeafDelta = new IntList[0];
+
+    /**
+     * @param descriptorLength floats per descriptor, e.g. 128 for SIFT.
+     * @param branching children per inner node.
+     * @param leafSize rows below which a node is not split further.
+     * @param iterations k-means iterations per split.
+     */
+    public KMeansTreeIndex(int descriptorLength, int branching, int leafSize, int iterations) {
+        super(CvType.CV_32F, descriptorLength);
+        if (branching < 2 || leafSize < 1 || iterations < 1)
+            throw new IllegalArgumentException("Invalid k-means tree configuration");
+        mBranching = branching;
+        mLeafSize = Math.max(leafSize, branching);
+        mIterations = iterations;
+    }
+
+    public KMeansTreeIndex(int descriptorLength) {
+        this(descriptorLength, 16, 64, 10);
+    }
+
+    /**
+     * Maximum number of rows compared per query; more checks give better recall.
+     */
+    public void setMaxChecks(int maxChecks) {
+        mMaxChecks = maxChecks;
+    }
+
+    public int getMaxChecks() {
+        return mMaxChecks;
+    }
+
+    /**
+     * Maximum number of rows k-means runs on when a node is split, at least the branching.
+     */
+    public synchronized void setMaxSampleRows(int maxSampleRows) {
+        mMaxSampleRows = Math.max(maxSampleRows, mBranching);
+    }
+
+    public synchronized int getMaxSampleRows() {
+        return mMaxSampleRows;
+    }
+
+    /**
+     * Ratio of the largest leaf to the configured leaf size.
+     */
+    public synchronized double getImbalance() {
+        int largest = 0;
+        for (int leaf = 0; leaf < mLeaves; leaf++)
+            largest = Math.max(largest, leafSize(leaf));
+        return (double) largest / mLeafSize;
+    }
+
+    /**
+     * Rebuilds the tree over all live rows.
+     */
+    public synchronized void train() {
+        int live = getLiveCount();
+        int[] rows = new int[live];
+        int n = 0;
+        for (int row = 0; row < mRows; row++)
+            if (!isRemoved(row))
+                rows[n++] = row;
+
+        mNodes = 0;
+        mLeaves = 0;
+        mBaseOffsets = null;
+        mBaseEntries = null;
+        mLeafDelta = new IntList[0];
+        if (live > 0)
+            build(rows, 0, live, newNode(null, 0));
+    }
+
+    @Override
+    int indexType() {
+        return TYPE_KMEANS;
+    }
+
+    @Override
+    void onRowsAdded(int from, int to) {
+        if (mNodes == 0)
+            return;
+        float[] q = new float[mStride];
+        for (int row = from; row < to; row++) {
+            for (int i = 0; i < mStride; i++)
+                q[i] = floatAt(row, i);
+            int node = 0;
+            while (mChildCount[node] > 0)
+                node = nearestChild(node, q, 0);
+            int leaf = mLeafOf[node];
+            if (mLeafDelta[leaf] == null)
+                mLeafDelta[leaf] = new IntList();
+            mLeafDelta[leaf].add(row);
+        }
+    }
+
+    @Override
+    void prepareSearch() {
+        if (mNodes == 0 && mRows > 0)
+            train();
+    }
+
+    @Override
+    void search(long[] qb, float[] qf, int offset, TopK top) {
+        if (mNodes == 0)
+            return;
+        NodeHeap heap = new NodeHeap();
+        heap.push(0, 0);
+        int checks = 0;
+        while (heap.size > 0 && (checks < mMaxChecks || top.size < top.k)) {
+            int node = heap.pop();
+            while (mChildCount[node] > 0) {
+                int best = -1;
+                float bestDist = Float.MAX_VALUE;
+                for (int c = mFirstChild[node]; c < mFirstChild[node] + mChildCount[node]; c++) {
+                    float d = centerDist(c, qf, offset);
+                    if (d < bestDist) {
+                        if (best >= 0)
+                            heap.push(best, bestDist);
+                        best = c;
+                        bestDist = d;
+                    } else {
+                        heap.push(c, d);
+                    }
+                }
+                node = best;
+            }
+            int leaf = mLeafOf[node];
+            if (mBaseOffsets != null) {
+                int end = mBaseOffsets.get(leaf + 1);
+                for (int i = mBaseOffsets.get(leaf); i < end; i++, checks++)
+                    consider(mBaseEntries.get(i), qb, qf, offset, top);
+            }
+            IntList delta = mLeafDelta[leaf];
+            if (delta != null)
+                for (int i = 0; i < delta.size; i++, checks++)
+                    consider(delta.data[i], qb, qf, offset, top);
+        }
+    }
+
+    @Override
+    void writeParams(Writer w) throws IOException {
+        w.putInt(mBranching);
+        w.putInt(mLeafSize);
+        w.putInt(mIterations);
+        w.putInt(mMaxChecks);
+    }
+
+    static KMeansTreeIndex readParams(int depth, int cols, Reader r) throws IOException {
+        if (depth != CvType.CV_32F)
+            throw new IOException("k-means tree snapshot must hold float descriptors");
+        KMeansTreeIndex index = new KMeansTreeIndex(cols, r.getInt(), r.getInt(), r.getInt());
+        index.mMaxChecks = r.getInt();
+        return index;
+    }
+
+    @Override
+    void writeStructure(Writer w) throws IOException {
+        w.putInt(mNodes);
+        w.putInt(mLeaves);
+        for (int i = 0; i < mNodes * mStride; i++)
+            w.putFloat(mCenters[i]);
+        for (int i = 0; i < mNodes; i++) {
+            w.putInt(mFirstChild[i]);
+            w.putInt(mChildCount[i]);
+            w.putInt(mLeafOf[i]);
+        }
+        int off = 0;
+        for (int leaf = 0; leaf < mLeaves; leaf++) {
+            w.putInt(off);
+            off += leafSize(leaf);
+        }
+        w.putInt(off);
+        for (int leaf = 0; leaf < mLeaves; leaf++) {
+            if (mBaseOffsets != null)
+                for (int i = mBaseOffsets.get(leaf); i < mBaseOffsets.get(leaf + 1); i++)
+                    w.putInt(mBaseEntries.get(i));
+            IntList delta = mLeafDelta[leaf];
+            if (delta != null)
+                for (int i = 0; i < delta.size; i++)
+                    w.putInt(delta.data[i]);
+        }
+    }
+
+    @Override
+    void readStructure(Reader r) throws IOException {
+        mNodes = r.getInt();
+        mLeaves = r.getInt();
+        mCenters = new float[mNodes * mStride];
+        r.map(4L * mCenters.length).asFloatBuffer().get(mCenters);
+        int[] nodes = new int[mNodes * 3];
+        r.map(4L * nodes.length).asIntBuffer().get(nodes);
+        mFirstChild = new int[mNodes];
+        mChildCount = new int[mNodes];
+        mLeafOf = new int[mNodes];
+        for (int i = 0; i < mNodes; i++) {
+            mFirstChild[i] = nodes[3 * i];
+            mChildCount[i] = nodes[3 * i + 1];
+            mLeafOf[i] = nodes[3 * i + 2];
+        }
+        mBaseOffsets = r.map(4L * (mLeaves + 1)).asIntBuffer();
+        mBaseEntries = r.map(4L * mBaseOffsets.get(mLeaves)).asIntBuffer();
+        mLeafDelta = new IntList[mLeaves];
+    }
+
+    private int leafSize(int leaf) {
+        int n = mLeafDelta[leaf] != null ? mLeafDelta[leaf].size : 0;
+        if (mBaseOffsets != null)
+            n += mBaseOffsets.get(leaf + 1) - mBaseOffsets.get(leaf);
+        return n;
+    }
+
+    // splits rows[from, to) under node with k-means, or makes node a leaf
+    private void build(int[] rows, int from, int to, int node) {
+        int n = to - from;
+        int[] labels = n > mLeafSize ? cluster(rows, from, to) : null;
+        if (labels == null) {
+            int leaf = mLeaves++;
+            mLeafOf[node] = leaf;
+            if (mLeafDelta.length <= leaf)
+                mLeafDelta = Arrays.copyOf(mLeafDelta, Math.max(16, leaf * 2));
+            IntList list = new IntList();
+            for (int i = from; i < to; i++)
+                list.add(rows[i]);
+            mLeafDelta[leaf] = list;
+            return;
+        }
+
+        // counting sort of the rows by cluster
+        int[] counts = new int[mBranching + 1];
+        for (int l : labels)
+            counts[l + 1]++;
+        for (int c = 0; c < mBranching; c++)
+            counts[c + 1] += counts[c];
+        int[] sorted = new int[n];
+        int[] pos = Arrays.copyOf(counts, mBranching);
+        for (int i = 0; i < n; i++)
+            sorted[pos[labels[i]]++] = rows[from + i];
+        System.arraycopy(sorted, 0, rows, from, n);
+
+        float[] centroid = new float[mStride];
+        int first = mNodes;
+        for (int c = 0; c < mBranching; c++) {
+            Arrays.fill(centroid, 0);
+            int cnt = counts[c + 1] - counts[c];
+            for (int i = from + counts[c]; i < from + counts[c + 1]; i++)
+                for (int j = 0; j < mStride; j++)
+                    centroid[j] += floatAt(rows[i], j) / cnt;
+            newNode(centroid, 0);
+        }
+        mFirstChild[node] = first;
+        mChildCount[node] = mBranching;
+        for (int c = 0; c < mBranching; c++)
+            build(rows, from + counts[c], from + counts[c + 1], first + c);
+    }
+
+    // k-means labels of rows[from, to), or null when the split is degenerate
+    private int[] cluster(int[] rows, int from, int to) {
+        int n = to - from;
+        int m = Math.min(n, mMaxSampleRows);
+        // the first m positions of a partial shuffle are the sample
+        int[] pick = new int[n];
+        for (int i = 0; i < n; i++)
+            pick[i] = i;
+        if (m < n)
+            for (int i = 0; i < m; i++) {
+                int j = i + mRandom.nextInt(n - i), t = pick[i];
+                pick[i] = pick[j];
+                pick[j] = t;
+            }
+        float[] data = new float[m * mStride];
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < mStride; j++)
+                data[i * mStride + j] = floatAt(rows[from + pick[i]], j);
+        Mat samples = new Mat(m, mStride, CvType.CV_32F);
+        samples.put(0, 0, data);
+        Mat labelsMat = new Mat(), centersMat = new Mat();
+        Core.kmeans(samples, mBranching, labelsMat,
+                new TermCriteria(TermCriteria.MAX_ITER + TermCriteria.EPS, mIterations, 1e-4),
+                1, Core.KMEANS_PP_CENTERS, centersMat);
+        int[] labels = new int[n];
+        if (m == n) {
+            labelsMat.get(0, 0, labels);
+        } else {
+            float[] centers = new float[mBranching * mStride];
+            centersMat.get(0, 0, centers);
+            // every row is streamed against the centres, nearest wins
+            for (int i = 0; i < n; i++) {
+                int row = rows[from + i];
+                float bestDist = Float.MAX_VALUE;
+                for (int c = 0; c < mBranching; c++) {
+                    float d = 0;
+                    for (int j = 0; j < mStride && d < bestDist; j++) {
+                        float diff = centers[c * mStride + j] - floatAt(row, j);
+                        d += diff * diff;
+                    }
+                    if (d < bestDist) {
+                        bestDist = d;
+                        labels[i] = c;
+                    }
+                }
+            }
+        }
+        samples.release();
+        labelsMat.release();
+        centersMat.release();
+        boolean[] used = new boolean[mBranching];
+        int clusters = 0;
+        for (int l : labels)
+            if (!used[l]) {
+                used[l] = true;
+                clusters++;
+            }
+        return clusters == mBranching ? labels : null;
+    }
+
+    private int newNode(float[] center, int children) {
+        if (mNodes == mFirstChild.length) {
+            int cap = Math.max(64, mNodes * 2);
+            mCenters = Arrays.copyOf(mCenters, cap * mStride);
+            mFirstChild = Arrays.copyOf(mFirstChild, cap);
+            mChildCount = Arrays.copyOf(mChildCount, cap);
+            mLeafOf = Arrays.copyOf(mLeafOf, cap);
+        }
+        int node = mNodes++;
+        if (center != null)
+            System.arraycopy(center, 0, mCenters, node * mStride, mStride);
+        mFirstChild[node] = -1;
+        mChildCount[node] = children;
+        mLeafOf[node] = -1;
+        return node;
+    }
+
+    private int nearestChild(int node, float[] q, int offset) {
+        int best = -1;
+        float bestDist = Float.MAX_VALUE;
+        for (int c = mFirstChild[node]; c < mFirstChild[node] + mChildCount[node]; c++) {
+            float d = centerDist(c, q, offset);
+            if (d < bestDist) {
+                best = c;
+                bestDist = d;
+            }
+        }
+        return best;
+    }
+
+    private float centerDist(int node, float[] q, int offset) {
+        float d = 0;
+        int base = node * mStride;
+        for (int i = 0; i < mStride; i++) {
+            float diff = mCenters[base + i] - q[offset + i];
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    /**
+     * Min-heap of nodes keyed by centre distance.
+     */
+    private static final class NodeHeap {
+        int[]   nodes = new int[64];
+        float[] keys = new float[64];
+        int     size;
+
+        void push(int node, float key) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (keys[parent] <= key)
+                    break;
+                nodes[i] = nodes[parent];
+                keys[i] = keys[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            int lastNode = nodes[--size];
+            float lastKey = keys[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && keys[child + 1] < keys[child])
+                    child++;
+                if (keys[child] >= lastKey)
+                    break;
+                nodes[i] = nodes[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            nodes[i] = lastNode;
+            keys[i] = lastKey;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package org.opencv.features2d;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.opencv.core.CvType;
+
+/**
+ * Multi-probe LSH index for binary descriptors (ORB, BRISK, AKAZE) under the Hamming distance.
+ * <p>
+ * Each of the hash tables keys a row by a fixed random subset of its bits. A query visits its own
+ * bucket in every table plus the buckets whose keys differ in up to {@code probeLevel} bits, which
+ * gives the recall of many more tables at the memory cost of few. Insertion only appends the row
+ * to one bucket per table.
+ */
+public class LshIndex extends DescriptorIndex {
+    private final int                     mTables;
+    private final int                     mKeyBits;
+    private final int                     mProbeLevel;
+    private final int[]                   mBits;
+    private final int[]                   mProbes;
+
+    // snapshot buckets: per table sorted keys, CSR offsets and row entries (memory-mapped)
+    private IntBuffer[]                   mBaseKeys;
+    private IntBuffer[]                   mBaseOffsets;
+    private IntBuffer[]                   mBaseEntries;
+    // buckets of the rows added since the snapshot
+    private final List<Map<Integer, IntList>> mDelta = new ArrayList<Map<Integer, IntList>>();
+
+    /**
+     * @param descriptorBytes descriptor length in bytes, e.g. 32 for ORB.
+     * @param tables number of hash tables.
+     * @param keyBits bits per hash key, at most 30.
+     * @param probeLevel maximum number of flipped key bits probed per table (0 to 2).
+     * @param seed seed of the bit selection.
+     */
+    public LshIndex(int descriptorBytes, int tables, int keyBits, int probeLevel, long seed) {
+        this(descriptorBytes, tables, keyBits, probeLevel, randomBits(descriptorBytes, tables, keyBits, seed));
+    }
+
+    public LshIndex(int descriptorBytes) {
+        this(descriptorBytes, 8, 20, 2, 0x15a);
+    }
+
+    private LshIndex(int descriptorBytes, int tables, int keyBits, int probeLevel, int[] bits) {
+        super(CvType.CV_8U, descriptorBytes);
+        if (tables < 1 || keyBits < 1 || keyBits > 30 || keyBits > descriptorBytes * 8)
+            throw new IllegalArgumentException("Invalid LSH configuration");
+        if (probeLevel < 0 || probeLevel > 2)
+            throw new IllegalArgumentException("Probe level must be 0, 1 or 2");
+        mTables = tables;
+        mKeyBits = keyBits;
+        mProbeLevel = probeLevel;
+        mBits = bits;
+        mProbes = probes(keyBits, probeLevel);
+        for (int t = 0; t < tables; t++)
+            mDelta.add(new HashMap<Integer, IntList>());
+    }
+
+    public int getTableCount() {
+        return mTables;
+    }
+
+    public int getKeyBits() {
+        return mKeyBits;
+    }
+
+    public int getProbeLevel() {
+        return mProbeLevel;
+    }
+
+    @Override
+    int indexType() {
+        return TYPE_LSH;
+    }
+
+    @Override
+    void onRowsAdded(int from, int to) {
+        for (int row = from; row < to; row++) {
+            for (int t = 0; t < mTables; t++) {
+                int key = rowKey(row, t);
+                Map<Integer, IntList> table = mDelta.get(t);
+                IntList bucket = table.get(key);
+                if (bucket == null) {
+                    bucket = new IntList();
+                    table.put(key, bucket);
+                }
+                bucket.add(row);
+            }
+        }
+    }
+
+    @Override
+    void search(long[] qb, float[] qf, int offset, TopK top) {
+        for (int t = 0; t < mTables; t++) {
+            int key = queryKey(qb, offset, t);
+            for (int mask : mProbes) {
+                int probe = key ^ mask;
+                if (mBaseKeys != null) {
+                    int pos = find(mBaseKeys[t], probe);
+                    if (pos >= 0) {
+                        int end = mBaseOffsets[t].get(pos + 1);
+                        for (int i = mBaseOffsets[t].get(pos); i < end; i++)
+                            consider(mBaseEntries[t].get(i), qb, qf, offset, top);
+                    }
+                }
+                IntList bucket = mDelta.get(t).get(probe);
+                if (bucket != null)
+                    for (int i = 0; i < bucket.size; i++)
+                        consider(bucket.data[i], qb, qf, offset, top);
+            }
+        }
+    }
+
+    @Override
+    void writeParams(Writer w) throws IOException {
+        w.putInt(mTables);
+        w.putInt(mKeyBits);
+        w.putInt(mProbeLevel);
+        for (int b : mBits)
+            w.putInt(b);
+    }
+
+    static LshIndex readParams(int depth, int cols, Reader r) throws IOException {
+        if (depth != CvType.CV_8U)
+            throw new IOException("LSH snapshot must hold binary descriptors");
+        int tables = r.getInt(), keyBits = r.getInt(), probeLevel = r.getInt();
+        int[] bits = new int[tables * keyBits];
+        r.map(4L * bits.length).asIntBuffer().get(bits);
+        return new LshIndex(cols, tables, keyBits, probeLevel, bits);
+    }
+
+    @Override
+    void writeStructure(Writer w) throws IOException {
+        for (int t = 0; t < mTables; t++) {
+            // merge snapshot and delta buckets of the table into one sorted CSR section
+            Map<Integer, IntList> merged = new HashMap<Integer, IntList>();
+            if (mBaseKeys != null) {
+                for (int pos = 0; pos < mBaseKeys[t].limit(); pos++) {
+                    IntList list = new IntList();
+                    for (int i = mBaseOffsets[t].get(pos); i < mBaseOffsets[t].get(pos + 1); i++)
+                        list.add(mBaseEntries[t].get(i));
+                    merged.put(mBaseKeys[t].get(pos), list);
+                }
+            }
+            for (Map.Entry<Integer, IntList> e : mDelta.get(t).entrySet()) {
+                IntList list = merged.get(e.getKey());
+                if (list == null)
+                    merged.put(e.getKey(), list = new IntList());
+                for (int i = 0; i < e.getValue().size; i++)
+                    list.add(e.getValue().data[i]);
+            }
+            int[] keys = new int[merged.size()];
+            int n = 0;
+            for (int key : merged.keySet())
+                keys[n++] = key;
+            Arrays.sort(keys);
+
+            w.putInt(keys.length);
+            int entries = 0;
+            for (int key : keys)
+                entries += merged.get(key).size;
+            w.putInt(entries);
+            for (int key : keys)
+                w.putInt(key);
+            int off = 0;
+            for (int key : keys) {
+                w.putInt(off);
+                off += merged.get(key).size;
+            }
+            w.putInt(off);
+            for (int key : keys) {
+                IntList list = merged.get(key);
+                for (int i = 0; i < list.size; i++)
+                    w.putInt(list.data[i]);
+            }
+        }
+    }
+
+    @Override
+    void readStructure(Reader r) throws IOException {
+        mBaseKeys = new IntBuffer[mTables];
+        mBaseOffsets = new IntBuffer[mTables];
+        mBaseEntries = new IntBuffer[mTables];
+        for (int t = 0; t < mTables; t++) {
+            int keys = r.getInt(), entries = r.getInt();
+            mBaseKeys[t] = r.map(4L * keys).asIntBuffer();
+            mBaseOffsets[t] = r.map(4L * (keys + 1)).asIntBuffer();
+            mBaseEntries[t] = r.map(4L * entries).asIntBuffer();
+            mDelta.get(t).clear();
+        }
+    }
+
+    private int rowKey(int row, int t) {
+        int key = 0;
+        for (int i = 0; i < mKeyBits; i++) {
+            int bit = mBits[t * mKeyBits + i];
+            key |= (int) ((binWord(row, bit >>> 6) >>> (bit & 63)) & 1) << i;
+        }
+        return key;
+    }
+
+    private int queryKey(long[] q, int offset, int t) {
+        int key = 0;
+        for (int i = 0; i < mKeyBits; i++) {
+            int bit = mBits[t * mKeyBits + i];
+            key |= (int) ((q[offset + (bit >>> 6)] >>> (bit & 63)) & 1) << i;
+        }
+        return key;
+    }
+
+    private static int find(IntBuffer keys, int key) {
+        int lo = 0, hi = keys.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int v = keys.get(mid);
+            if (v < key)
+                lo = mid + 1;
+            else if (v > key)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private static int[] randomBits(int descriptorBytes, int tables, int keyBits, long seed) {
+        Random rnd = new Random(seed);
+        int total = descriptorBytes * 8;
+        int[] bits = new int[tables * keyBits];
+        int[] perm = new int[total];
+        for (int t = 0; t < tables; t++) {
+            for (int i = 0; i < total; i++)
+                perm[i] = i;
+            for (int i = 0; i < keyBits && i < total; i++) {
+                int j = i + rnd.nextInt(total - i);
+                int tmp = perm[i];
+                perm[i] = perm[j];
+                perm[j] = tmp;
+                bits[t * keyBits + i] = perm[i];
+            }
+        }
+        return bits;
+    }
+
+    // xor masks of all keys within probeLevel bit flips, nearest first
+    private static int[] probes(int keyBits, int probeLevel) {
+        IntList masks = new IntList();
+        masks.add(0);
+        if (probeLevel >= 1)
+            for (int i = 0; i < keyBits; i++)
+                masks.add(1 << i);
+        if (probeLevel >= 2)
+            for (int i = 0; i < keyBits; i++)
+                for (int j = i + 1; j < keyBits; j++)
+                    masks.add((1 << i) | (1 << j));
+        return Arrays.copyOf(masks.data, masks.size);
+    }
+}
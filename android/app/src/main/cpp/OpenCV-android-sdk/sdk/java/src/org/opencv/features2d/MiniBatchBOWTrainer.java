@@ -0,0 +1,290 @@
+package org.opencv.features2d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Bag-of-words vocabulary trainer using mini-batch k-means over streamed descriptors.
+ * <p>
+ * Unlike {@link BOWKMeansTrainer}, descriptors are not accumulated: every chunk passed to
+ * {@link #add(Mat)} is split into mini-batches, the nearest centre of every row is found on a
+ * work-stealing pool, and each centre is then moved towards its rows with a per-centre learning
+ * rate of 1 / (rows seen). Only the first {@link #setSeedRows(int) seed rows} (by default ten per
+ * cluster, so that they span several images) are buffered; the centres are picked among them
+ * with k-means++ using the trainer's seed. Memory is independent of the number of descriptors,
+ * so a chunk can be released as soon as it was added, and the chunks may be fed in several
+ * passes.
+ * <p>
+ * Binary descriptors are converted to float, as with {@link BOWKMeansTrainer}.
+ */
+public class MiniBatchBOWTrainer {
+    private static final int ASSIGN_CHUNK = 256;
+    private static final int SEED_OVERSAMPLING = 10;
+
+    private final ForkJoinPool mPool;
+    private final int          mClusterCount;
+    private final int          mBatchSize;
+    private final Random       mRandom;
+
+    private int                mDims = -1;
+    private float[]            mCenters;
+    private long[]             mCounts;
+    private int                mSeedCapacity;
+    private float[]            mSeed;
+    private int                mSeedRows;
+    private long               mDescriptorCount;
+
+    /**
+     * @param clusterCount vocabulary size.
+     * @param batchSize rows per mini-batch.
+     * @param threads number of workers.
+     * @param seed seed of the centre initialization.
+     */
+    public MiniBatchBOWTrainer(int clusterCount, int batchSize, int threads, long seed) {
+        if (clusterCount < 1 || batchSize < 1)
+            throw new IllegalArgumentException("Cluster count and batch size must be positive");
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mClusterCount = clusterCount;
+        mBatchSize = batchSize;
+        mRandom = new Random(seed);
+        mSeedCapacity = SEED_OVERSAMPLING * clusterCount;
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public MiniBatchBOWTrainer(int clusterCount) {
+        this(clusterCount, 4096, Runtime.getRuntime().availableProcessors(), 0x626f77);
+    }
+
+    public int getClusterCount() {
+        return mClusterCount;
+    }
+
+    /**
+     * Number of rows buffered before the centres are seeded, at least {@code clusterCount}
+     * (default ten times {@code clusterCount}). Must be set before the first {@link #add(Mat)}.
+     */
+    public void setSeedRows(int rows) {
+        if (mSeedRows > 0 || mCenters != null)
+            throw new IllegalStateException("Descriptors were already added");
+        mSeedCapacity = Math.max(rows, mClusterCount);
+    }
+
+    public int getSeedRows() {
+        return mSeedCapacity;
+    }
+
+    /**
+     * Number of descriptors added so far.
+     */
+    public long descriptorsCount() {
+        return mDescriptorCount;
+    }
+
+    /**
+     * Updates the vocabulary with a chunk of descriptors, one per row.
+     */
+    public void add(Mat descriptors) {
+        if (descriptors.empty())
+            return;
+        if (descriptors.channels() != 1)
+            throw new IllegalArgumentException("Descriptors must have one channel");
+        if (mDims < 0)
+            mDims = descriptors.cols();
+        else if (descriptors.cols() != mDims)
+            throw new IllegalArgumentException("Descriptor length " + descriptors.cols() + " differs from " + mDims);
+
+        int rows = descriptors.rows();
+        float[] data = new float[rows * mDims];
+        if (descriptors.depth() == CvType.CV_32F && descriptors.isContinuous()) {
+            descriptors.get(0, 0, data);
+        } else {
+            Mat f = new Mat();
+            descriptors.convertTo(f, CvType.CV_32F);
+            f.get(0, 0, data);
+            f.release();
+        }
+        mDescriptorCount += rows;
+
+        int from = 0;
+        if (mCenters == null) {
+            from = fillSeed(data, rows);
+            if (mSeedRows < mSeedCapacity)
+                return;
+            seed();
+        }
+        for (int start = from; start < rows; start += mBatchSize)
+            update(data, start, Math.min(rows, start + mBatchSize));
+    }
+
+    /**
+     * Returns the vocabulary as a {@code clusterCount x dims} CV_32F matrix. When fewer than
+     * {@link #getSeedRows()} descriptors were added the centres are seeded from those.
+     */
+    public Mat cluster() {
+        if (mCenters == null && mSeedRows >= mClusterCount)
+            seed();
+        if (mCenters == null)
+            throw new CvException("At least " + mClusterCount + " descriptors are needed, got " + mDescriptorCount);
+        Mat vocabulary = new Mat(mClusterCount, mDims, CvType.CV_32F);
+        vocabulary.put(0, 0, mCenters);
+        return vocabulary;
+    }
+
+    /**
+     * Forgets the vocabulary and all added descriptors.
+     */
+    public void clear() {
+        mDims = -1;
+        mCenters = null;
+        mCounts = null;
+        mSeed = null;
+        mSeedRows = 0;
+        mDescriptorCount = 0;
+    }
+
+    public void release() {
+        mPool.shutdown();
+        clear();
+    }
+
+    // buffers rows until there are enough to seed the centres; returns the first unused row
+    private int fillSeed(float[] data, int rows) {
+        if (mSeed == null)
+            mSeed = new float[mSeedCapacity * mDims];
+        int take = Math.min(rows, mSeedCapacity - mSeedRows);
+        System.arraycopy(data, 0, mSeed, mSeedRows * mDims, take * mDims);
+        mSeedRows += take;
+        return take;
+    }
+
+    // picks the centres among the buffered rows with k-means++, then trains on the buffer
+    private void seed() {
+        final float[] seed = mSeed;
+        final int n = mSeedRows;
+        mCenters = new float[mClusterCount * mDims];
+        final float[] d2 = new float[n];
+        Arrays.fill(d2, Float.MAX_VALUE);
+        int pick = mRandom.nextInt(n);
+        for (int c = 0; c < mClusterCount; c++) {
+            System.arraycopy(seed, pick * mDims, mCenters, c * mDims, mDims);
+            if (c == mClusterCount - 1)
+                break;
+            final int co = c * mDims;
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int start = 0; start < n; start += ASSIGN_CHUNK) {
+                final int a = start, b = Math.min(n, start + ASSIGN_CHUNK);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int r = a; r < b; r++) {
+                            float d = 0;
+                            for (int j = 0, ro = r * mDims; j < mDims; j++) {
+                                float diff = mCenters[co + j] - seed[ro + j];
+                                d += diff * diff;
+                            }
+                            d2[r] = Math.min(d2[r], d);
+                        }
+                        return null;
+                    }
+                });
+            }
+            invoke(tasks);
+            // next centre with probability proportional to the squared distance
+            double sum = 0;
+            for (int r = 0; r < n; r++)
+                sum += d2[r];
+            if (sum <= 0) {
+                pick = mRandom.nextInt(n);
+                continue;
+            }
+            double target = mRandom.nextDouble() * sum;
+            pick = n - 1;
+            for (int r = 0; r < n; r++) {
+                target -= d2[r];
+                if (target < 0) {
+                    pick = r;
+                    break;
+                }
+            }
+        }
+        mCounts = new long[mClusterCount];
+        Arrays.fill(mCounts, 1);
+        mSeed = null;
+        mSeedRows = 0;
+        // the buffered rows themselves are the first batches
+        for (int start = 0; start < n; start += mBatchSize)
+            update(seed, start, Math.min(n, start + mBatchSize));
+    }
+
+    private void update(float[] data, int from, int to) {
+        int[] labels = assign(data, from, to);
+        for (int r = from; r < to; r++) {
+            int c = labels[r - from];
+            long n = ++mCounts[c];
+            float eta = 1f / n;
+            int co = c * mDims, ro = r * mDims;
+            for (int j = 0; j < mDims; j++)
+                mCenters[co + j] += eta * (data[ro + j] - mCenters[co + j]);
+        }
+    }
+
+    private int[] assign(final float[] data, final int from, int to) {
+        final int[] labels = new int[to - from];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int start = from; start < to; start += ASSIGN_CHUNK) {
+            final int a = start, b = Math.min(to, start + ASSIGN_CHUNK);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int r = a; r < b; r++)
+                        labels[r - from] = nearest(mCenters, mClusterCount, mDims, data, r * mDims);
+                    return null;
+                }
+            });
+        }
+        invoke(tasks);
+        return labels;
+    }
+
+    private void invoke(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : mPool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Training interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Training failed: " + e.getCause());
+        }
+    }
+
+    // index of the centre closest to the row, with partial-distance pruning
+    static int nearest(float[] centers, int count, int dims, float[] q, int offset) {
+        int best = 0;
+        float bestDist = Float.MAX_VALUE;
+        for (int c = 0; c < count; c++) {
+            int co = c * dims;
+            float d = 0;
+            for (int j = 0; j < dims && d < bestDist; j++) {
+                float diff = centers[co + j] - q[offset + j];
+                d += diff * diff;
+            }
+            if (d < bestDist) {
+                bestDist = d;
+                best = c;
+            }
+        }
+        return best;
+    }
+}
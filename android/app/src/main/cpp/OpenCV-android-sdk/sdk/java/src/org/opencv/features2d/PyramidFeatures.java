@@ -0,0 +1,83 @@
+package org.opencv.features2d;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.imgproc.PyramidCache;
+
+/**
+ * Runs a single-scale {@link Feature2D} over the levels of a shared {@link PyramidCache}.
+ * <p>
+ * Detectors with a pyramid of their own should be configured to a single level (e.g.
+ * {@code ORB.setNLevels(1)}) so that the levels are not built twice. Keypoints are returned in
+ * frame coordinates with their size scaled accordingly and {@link KeyPoint#octave} set to the
+ * pyramid level they were found on.
+ */
+public final class PyramidFeatures {
+
+    private PyramidFeatures() {}
+
+    /**
+     * Detects keypoints on the first {@code levels} levels of the pyramid.
+     */
+    public static void detect(Feature2D detector, PyramidCache pyramid, int levels, MatOfKeyPoint keypoints) {
+        List<KeyPoint> all = new ArrayList<KeyPoint>();
+        MatOfKeyPoint found = new MatOfKeyPoint();
+        for (int k = 0; k < levels; k++) {
+            detector.detect(pyramid.getLevel(k), found);
+            addScaled(found, pyramid.getScale(k), k, all);
+        }
+        found.release();
+        setList(keypoints, all);
+    }
+
+    /**
+     * Detects keypoints and computes their descriptors on the first {@code levels} levels of the
+     * pyramid; descriptor rows follow the order of the returned keypoints.
+     */
+    public static void detectAndCompute(Feature2D detector, PyramidCache pyramid, int levels,
+                                        MatOfKeyPoint keypoints, Mat descriptors) {
+        List<KeyPoint> all = new ArrayList<KeyPoint>();
+        List<Mat> rows = new ArrayList<Mat>();
+        MatOfKeyPoint found = new MatOfKeyPoint();
+        Mat mask = new Mat();
+        for (int k = 0; k < levels; k++) {
+            Mat desc = new Mat();
+            detector.detectAndCompute(pyramid.getLevel(k), mask, found, desc);
+            if (desc.rows() > 0)
+                rows.add(desc);
+            else
+                desc.release();
+            addScaled(found, pyramid.getScale(k), k, all);
+        }
+        found.release();
+        setList(keypoints, all);
+        if (rows.isEmpty())
+            descriptors.release();
+        else
+            Core.vconcat(rows, descriptors);
+        for (Mat m : rows)
+            m.release();
+    }
+
+    private static void addScaled(MatOfKeyPoint found, double scale, int level, List<KeyPoint> out) {
+        for (KeyPoint kp : found.toArray()) {
+            kp.pt.x *= scale;
+            kp.pt.y *= scale;
+            kp.size *= (float) scale;
+            kp.octave = level;
+            out.add(kp);
+        }
+    }
+
+    private static void setList(MatOfKeyPoint keypoints, List<KeyPoint> list) {
+        if (list.isEmpty())
+            keypoints.release();
+        else
+            keypoints.fromList(list);
+    }
+}
@@ -0,0 +1,127 @@
+package org.opencv.imgcodecs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+
+/**
+ * Random access to the frames of an animated image without decoding the whole file.
+ * <p>
+ * Frames are decoded on demand with {@link Imgcodecs#imreadanimation(String, Animation, int, int)}
+ * in chunks starting at the missing index and kept in an LRU cache of a fixed number of frames.
+ * Animated formats compose every frame on the previous ones, so the decoder still walks the file
+ * from the start up to the chunk; playing forward costs one walk per chunk, not one per frame.
+ */
+public class AnimationReader {
+    private final String            mFilename;
+    private final int               mCacheFrames;
+    private final int               mChunk;
+    private final int               mFrameCount;
+    private final int[]             mDurations;
+    private int                     mLoopCount = -1;
+    private final Map<Integer, Mat> mCache = new LinkedHashMap<Integer, Mat>(16, 0.75f, true);
+
+    /**
+     * @param filename animated WebP, GIF, APNG or AVIF file.
+     * @param cacheFrames number of decoded frames kept in memory.
+     * @param chunk number of frames decoded at once, at most {@code cacheFrames}.
+     */
+    public AnimationReader(String filename, int cacheFrames, int chunk) {
+        if (cacheFrames < 1 || chunk < 1)
+            throw new IllegalArgumentException("Cache and chunk sizes must be positive");
+        mFilename = filename;
+        mCacheFrames = cacheFrames;
+        mChunk = Math.min(chunk, cacheFrames);
+        long count = Imgcodecs.imcount(filename);
+        if (count <= 0)
+            throw new CvException("Cannot read " + filename);
+        mFrameCount = (int) count;
+        mDurations = new int[mFrameCount];
+        Arrays.fill(mDurations, -1);
+    }
+
+    public AnimationReader(String filename) {
+        this(filename, 16, 8);
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Number of loops, 0 for an endless animation; decodes the first chunk if needed.
+     */
+    public synchronized int getLoopCount() {
+        if (mLoopCount < 0)
+            load(0);
+        return mLoopCount;
+    }
+
+    /**
+     * Display time of a frame in milliseconds; decodes its chunk if needed.
+     */
+    public synchronized int getDuration(int index) {
+        check(index);
+        if (mDurations[index] < 0)
+            load(index);
+        return mDurations[index];
+    }
+
+    /**
+     * Copies a frame to {@code dst}.
+     */
+    public synchronized void getFrame(int index, Mat dst) {
+        check(index);
+        Mat m = mCache.get(index);
+        if (m == null) {
+            load(index);
+            m = mCache.get(index);
+            if (m == null)
+                throw new CvException("Cannot decode frame " + index + " of " + mFilename);
+        }
+        m.copyTo(dst);
+    }
+
+    public synchronized void release() {
+        for (Mat m : mCache.values())
+            m.release();
+        mCache.clear();
+    }
+
+    private void load(int start) {
+        Animation anim = new Animation();
+        if (!Imgcodecs.imreadanimation(mFilename, anim, start, Math.min(mChunk, mFrameCount - start)))
+            throw new CvException("Cannot decode frames of " + mFilename + " from " + start);
+        mLoopCount = anim.get_loop_count();
+        List<Mat> frames = anim.get_frames();
+        anim.set_frames(new ArrayList<Mat>());
+        MatOfInt durations = anim.get_durations();
+        int[] d = durations.toArray();
+        durations.release();
+        for (int i = 0; i < frames.size(); i++) {
+            int index = start + i;
+            if (i < d.length)
+                mDurations[index] = d[i];
+            Mat old = mCache.put(index, frames.get(i));
+            if (old != null)
+                old.release();
+        }
+        Iterator<Mat> it = mCache.values().iterator();
+        while (mCache.size() > mCacheFrames && it.hasNext()) {
+            it.next().release();
+            it.remove();
+        }
+    }
+
+    private void check(int index) {
+        if (index < 0 || index >= mFrameCount)
+            throw new IllegalArgumentException("Frame " + index + " out of range [0, " + mFrameCount + ")");
+    }
+}
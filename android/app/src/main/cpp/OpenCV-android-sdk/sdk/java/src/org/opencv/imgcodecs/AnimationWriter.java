@@ -0,0 +1,233 @@
+package org.opencv.imgcodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+
+/**
+ * Records an animated image (WebP, GIF, APNG or AVIF, from the file extension) one frame at a
+ * time.
+ * <p>
+ * {@link #append(Mat, int)} copies the frame into one of a few pooled Mats and returns; a
+ * background thread compresses it losslessly to a spill file next to the output, so only the
+ * pooled frames stay in memory while recording. {@link #close()} builds the {@link Animation}
+ * from the spill files and writes it with
+ * {@link Imgcodecs#imwriteanimation(String, Animation, MatOfInt)} on the same thread. The native
+ * encoders take the whole frame list, so that final step still holds every frame once; record
+ * at the size the animation is played at.
+ */
+public class AnimationWriter {
+    private final String                mFilename;
+    private final File                  mSpillDir;
+    private final ExecutorService       mExecutor = Executors.newSingleThreadExecutor();
+    private final BlockingQueue<Mat>    mFree;
+    private final List<File>            mSpills = new ArrayList<File>();
+    private final List<Integer>         mDurations = new ArrayList<Integer>();
+    private final List<Future<Void>>    mPending = new ArrayList<Future<Void>>();
+    private final MatOfInt              mSpillParams = new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, 1);
+    private final int                   mLoopCount;
+    private MatOfInt                    mParams;
+    private Size                        mSize;
+    private int                         mType = -1;
+    private boolean                     mClosed;
+
+    /**
+     * @param filename output file; the extension selects the format.
+     * @param loopCount number of loops, 0 to loop forever.
+     * @param queueSize number of frames waiting to be compressed before {@link #append(Mat, int)}
+     * blocks.
+     */
+    public AnimationWriter(String filename, int loopCount, int queueSize) {
+        if (queueSize < 1)
+            throw new IllegalArgumentException("Queue size must be positive");
+        mFilename = filename;
+        mLoopCount = loopCount;
+        File parent = new File(filename).getAbsoluteFile().getParentFile();
+        try {
+            mSpillDir = File.createTempFile("anim", ".frames", parent);
+        } catch (IOException e) {
+            throw new CvException("Cannot create spill directory in " + parent + ": " + e);
+        }
+        if (!mSpillDir.delete() || !mSpillDir.mkdir())
+            throw new CvException("Cannot create spill directory " + mSpillDir);
+        mFree = new ArrayBlockingQueue<Mat>(queueSize);
+        for (int i = 0; i < queueSize; i++)
+            mFree.add(new Mat());
+    }
+
+    public AnimationWriter(String filename) {
+        this(filename, 0, 4);
+    }
+
+    /**
+     * Encoder parameters for {@link Imgcodecs#imwriteanimation(String, Animation, MatOfInt)},
+     * e.g. {@link Imgcodecs#IMWRITE_WEBP_QUALITY}.
+     */
+    public void setParams(MatOfInt params) {
+        mParams = params;
+    }
+
+    /**
+     * Adds a frame; blocks only when the compression queue is full.
+     *
+     * @param frame BGR or BGRA frame, same size and type as the first one.
+     * @param duration display time in milliseconds.
+     */
+    public synchronized void append(Mat frame, int duration) {
+        if (mClosed)
+            throw new IllegalStateException("Writer is closed");
+        if (frame.empty())
+            throw new IllegalArgumentException("Empty frame");
+        if (mSize == null) {
+            mSize = frame.size();
+            mType = frame.type();
+        } else if (!frame.size().equals(mSize) || frame.type() != mType) {
+            throw new IllegalArgumentException("Frame " + frame.size() + " does not match " + mSize);
+        }
+        final Mat pooled;
+        try {
+            pooled = mFree.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Animation append interrupted");
+        }
+        frame.copyTo(pooled);
+        final File spill = new File(mSpillDir, mSpills.size() + ".png");
+        mSpills.add(spill);
+        mDurations.add(duration);
+        mPending.add(mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    if (!Imgcodecs.imwrite(spill.getPath(), pooled, mSpillParams))
+                        throw new CvException("Cannot write " + spill);
+                } finally {
+                    mFree.add(pooled);
+                }
+                return null;
+            }
+        }));
+        // drop the futures of compressed frames, rethrowing the first failure
+        while (!mPending.isEmpty() && mPending.get(0).isDone())
+            await(mPending.remove(0));
+    }
+
+    public synchronized int getFrameCount() {
+        return mSpills.size();
+    }
+
+    /**
+     * Finishes the file on the background thread; no frames can be added afterwards.
+     *
+     * @return future result of {@link Imgcodecs#imwriteanimation(String, Animation, MatOfInt)}.
+     */
+    public synchronized Future<Boolean> close() {
+        if (mClosed)
+            throw new IllegalStateException("Writer is closed");
+        mClosed = true;
+        final List<Future<Void>> pending = new ArrayList<Future<Void>>(mPending);
+        mPending.clear();
+        Future<Boolean> result = mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    for (Future<Void> f : pending)
+                        await(f);
+                    return writeAnimation();
+                } finally {
+                    deleteSpills();
+                    releaseFrames();
+                }
+            }
+        });
+        mExecutor.shutdown();
+        return result;
+    }
+
+    /**
+     * Stops recording and deletes the spill files without writing the output.
+     */
+    public synchronized void cancel() {
+        if (mClosed)
+            return;
+        mClosed = true;
+        mPending.clear();
+        // runs after the frames already queued, which return their Mats to the pool
+        mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                deleteSpills();
+                releaseFrames();
+                return null;
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private boolean writeAnimation() {
+        Animation anim = new Animation(mLoopCount, new Scalar(0, 0, 0, 0));
+        List<Mat> frames = new ArrayList<Mat>(mSpills.size());
+        int[] durations = new int[mDurations.size()];
+        for (int i = 0; i < durations.length; i++)
+            durations[i] = mDurations.get(i);
+        MatOfInt d = new MatOfInt(durations);
+        try {
+            for (File spill : mSpills) {
+                Mat m = Imgcodecs.imread(spill.getPath(), Imgcodecs.IMREAD_UNCHANGED);
+                if (m.empty())
+                    throw new CvException("Cannot read " + spill);
+                frames.add(m);
+                // the spill file is no longer needed once decoded
+                spill.delete();
+            }
+            anim.set_frames(frames);
+            anim.set_durations(d);
+            return mParams != null ? Imgcodecs.imwriteanimation(mFilename, anim, mParams)
+                    : Imgcodecs.imwriteanimation(mFilename, anim);
+        } finally {
+            // Animation has no release(); empty it so the frames do not wait for its finalizer
+            anim.set_frames(new ArrayList<Mat>());
+            for (Mat m : frames)
+                m.release();
+            d.release();
+        }
+    }
+
+    private void deleteSpills() {
+        for (File spill : mSpills)
+            spill.delete();
+        mSpillDir.delete();
+    }
+
+    private void releaseFrames() {
+        Mat m;
+        while ((m = mFree.poll()) != null)
+            m.release();
+        mSpillParams.release();
+    }
+
+    private static void await(Future<Void> f) {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Animation write interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Animation write failed: " + e.getCause());
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package org.opencv.imgcodecs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+
+/**
+ * Asynchronous image encoding and decoding on a worker pool.
+ * <p>
+ * Every call returns at once with a {@link Future}; the work runs on a fixed pool, so
+ * independent images (e.g. bulk thumbnailing) are processed on all cores. Images to encode or
+ * write are copied into pooled Mats on the calling thread, which costs the caller one copy and
+ * lets it reuse its frame immediately. Encoded output is handed out as {@link Encoded}; its buffer
+ * is allocated by {@code imencode} for every image, so it is released rather than pooled.
+ * {@link #read(String, int, Mat)} decodes into a caller's Mat, whose memory is reused when the
+ * image has the same size and type.
+ * <p>
+ * Direct {@link ByteBuffer}s are decoded in place without copying into a Mat first, and can
+ * receive encoded data or decoded pixels; {@link #decode(InputStream, int)} reads a stream into
+ * a pooled direct buffer instead of going through a byte array as {@code Utils.loadResource}
+ * does.
+ */
+public class CodecService {
+
+    /**
+     * Encoded image.
+     */
+    public class Encoded {
+        private MatOfByte mBuffer;
+
+        Encoded(MatOfByte buffer) {
+            mBuffer = buffer;
+        }
+
+        public int size() {
+            return (int) mBuffer.total();
+        }
+
+        /**
+         * Encoded bytes, valid until {@link #release()}.
+         */
+        public MatOfByte mat() {
+            return mBuffer;
+        }
+
+        public byte[] toArray() {
+            return mBuffer.toArray();
+        }
+
+        /**
+         * Copies the encoded bytes to {@code dst} at its position and advances it.
+         */
+        public void writeTo(ByteBuffer dst) {
+            int n = size();
+            if (dst.remaining() < n)
+                throw new IllegalArgumentException("Buffer too small: " + dst.remaining() + " < " + n);
+            if (dst.isDirect()) {
+                Mat target = new Mat(1, n, CvType.CV_8U, dst.slice()), row = mBuffer.reshape(1, 1);
+                row.copyTo(target);
+                row.release();
+                target.release();
+                dst.position(dst.position() + n);
+            } else {
+                dst.put(toArray());
+            }
+        }
+
+        /**
+         * Releases the buffer; the object must not be used afterwards.
+         */
+        public void release() {
+            if (mBuffer != null)
+                mBuffer.release();
+            mBuffer = null;
+        }
+    }
+
+    private final ForkJoinPool              mPool;
+    private final BlockingQueue<Mat>        mFrames;
+    private final BlockingQueue<ByteBuffer> mStreams;
+
+    /**
+     * @param threads number of workers.
+     * @param poolSize number of frames kept for reuse.
+     */
+    public CodecService(int threads, int poolSize) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mPool = new ForkJoinPool(threads);
+        mFrames = new ArrayBlockingQueue<Mat>(Math.max(1, poolSize));
+        mStreams = new ArrayBlockingQueue<ByteBuffer>(threads);
+    }
+
+    public CodecService() {
+        this(Runtime.getRuntime().availableProcessors(), 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Encodes an image.
+     *
+     * @param ext file extension giving the format, e.g. ".jpg", ".png", ".webp".
+     * @param img image, copied before the call returns.
+     * @param params format parameters, may be null.
+     * @see Imgcodecs#imencode(String, Mat, MatOfByte, MatOfInt)
+     */
+    public Future<Encoded> encode(final String ext, Mat img, final MatOfInt params) {
+        final Mat frame = copy(img);
+        return mPool.submit(new Callable<Encoded>() {
+            @Override
+            public Encoded call() {
+                return encodeFrame(ext, frame, params);
+            }
+        });
+    }
+
+    /**
+     * Encodes an image into {@code dst} at its position.
+     *
+     * @return future number of bytes written.
+     */
+    public Future<Integer> encode(final String ext, Mat img, final MatOfInt params, final ByteBuffer dst) {
+        final Mat frame = copy(img);
+        return mPool.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                Encoded e = encodeFrame(ext, frame, params);
+                try {
+                    e.writeTo(dst);
+                    return e.size();
+                } finally {
+                    e.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes an image file, e.g. a snapshot of a camera frame.
+     *
+     * @param img image, copied before the call returns.
+     * @see Imgcodecs#imwrite(String, Mat, MatOfInt)
+     */
+    public Future<Boolean> write(final String filename, Mat img, final MatOfInt params) {
+        final Mat frame = copy(img);
+        return mPool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    return params != null ? Imgcodecs.imwrite(filename, frame, params) : Imgcodecs.imwrite(filename, frame);
+                } finally {
+                    giveFrame(frame);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads an image file.
+     *
+     * @see Imgcodecs#imread(String, int)
+     */
+    public Future<Mat> read(String filename, int flags) {
+        return read(filename, flags, new Mat());
+    }
+
+    /**
+     * Reads an image file into {@code dst}, reusing its memory when the image has the same size
+     * and type; {@code dst} must not be used until the future is done.
+     *
+     * @return future {@code dst}.
+     * @see Imgcodecs#imread(String, Mat, int)
+     */
+    public Future<Mat> read(final String filename, final int flags, final Mat dst) {
+        return mPool.submit(new Callable<Mat>() {
+            @Override
+            public Mat call() {
+                Imgcodecs.imread(filename, dst, flags);
+                if (dst.empty())
+                    throw new CvException("Cannot read " + filename);
+                return dst;
+            }
+        });
+    }
+
+    /**
+     * Decodes the remaining bytes of a buffer. A direct buffer is decoded in place and must not
+     * change until the future is done; a heap buffer is copied first.
+     *
+     * @see Imgcodecs#imdecode(Mat, int)
+     */
+    public Future<Mat> decode(ByteBuffer data, final int flags) {
+        final Mat buf = wrap(data);
+        return mPool.submit(new Callable<Mat>() {
+            @Override
+            public Mat call() {
+                return decodeBuffer(buf, flags);
+            }
+        });
+    }
+
+    /**
+     * Decodes an encoded image; the array is copied before the call returns.
+     */
+    public Future<Mat> decode(byte[] data, int flags) {
+        return decode(ByteBuffer.wrap(data), flags);
+    }
+
+    /**
+     * Decodes into a direct buffer at its position and advances it past the pixels; the returned
+     * Mat wraps that part of {@code dst}, whose remaining space must hold the decoded image.
+     */
+    public Future<Mat> decode(ByteBuffer data, final int flags, final ByteBuffer dst) {
+        if (!dst.isDirect())
+            throw new IllegalArgumentException("Destination buffer must be direct");
+        final Mat buf = wrap(data);
+        return mPool.submit(new Callable<Mat>() {
+            @Override
+            public Mat call() {
+                Mat m = decodeBuffer(buf, flags);
+                try {
+                    long bytes = m.total() * m.elemSize();
+                    if (bytes > dst.remaining())
+                        throw new IllegalArgumentException("Buffer too small: " + dst.remaining() + " < " + bytes);
+                    Mat target = new Mat(m.rows(), m.cols(), m.type(), dst.slice());
+                    m.copyTo(target);
+                    dst.position(dst.position() + (int) bytes);
+                    return target;
+                } finally {
+                    m.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a stream to the end and decodes it; the stream is closed.
+     */
+    public Future<Mat> decode(final InputStream in, final int flags) {
+        return mPool.submit(new Callable<Mat>() {
+            @Override
+            public Mat call() throws IOException {
+                ByteBuffer buf = mStreams.poll();
+                if (buf == null)
+                    buf = ByteBuffer.allocateDirect(1 << 16);
+                buf.clear();
+                byte[] chunk = new byte[1 << 14];
+                try {
+                    int n;
+                    while ((n = in.read(chunk)) > 0) {
+                        if (buf.remaining() < n) {
+                            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(2 * buf.capacity(), buf.position() + n));
+                            buf.flip();
+                            grown.put(buf);
+                            buf = grown;
+                        }
+                        buf.put(chunk, 0, n);
+                    }
+                    if (buf.position() == 0)
+                        throw new CvException("Cannot decode an empty stream");
+                    return decodeBuffer(new Mat(1, buf.position(), CvType.CV_8U, buf), flags);
+                } finally {
+                    in.close();
+                    mStreams.offer(buf);
+                }
+            }
+        });
+    }
+
+    public void release() {
+        mPool.shutdown();
+        Mat m;
+        while ((m = mFrames.poll()) != null)
+            m.release();
+        mStreams.clear();
+    }
+
+    // imencode assigns a new Mat to the output, so there is no buffer worth pooling
+    private Encoded encodeFrame(String ext, Mat frame, MatOfInt params) {
+        MatOfByte buf = new MatOfByte();
+        try {
+            boolean ok = params != null ? Imgcodecs.imencode(ext, frame, buf, params) : Imgcodecs.imencode(ext, frame, buf);
+            if (!ok)
+                throw new CvException("Cannot encode image as " + ext);
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        } finally {
+            giveFrame(frame);
+        }
+        return new Encoded(buf);
+    }
+
+    // decodes and releases the encoded buffer
+    private static Mat decodeBuffer(Mat buf, int flags) {
+        try {
+            Mat m = Imgcodecs.imdecode(buf, flags);
+            if (m.empty())
+                throw new CvException("Cannot decode image");
+            return m;
+        } finally {
+            buf.release();
+        }
+    }
+
+    // a direct buffer is wrapped in place, a heap buffer copied
+    private static Mat wrap(ByteBuffer data) {
+        ByteBuffer src = data.slice();
+        if (!src.hasRemaining())
+            throw new IllegalArgumentException("No data to decode");
+        if (src.isDirect())
+            return new Mat(1, src.remaining(), CvType.CV_8U, src);
+        byte[] copy = new byte[src.remaining()];
+        src.get(copy);
+        return new MatOfByte(copy);
+    }
+
+    private Mat copy(Mat img) {
+        Mat frame = mFrames.poll();
+        if (frame == null)
+            frame = new Mat();
+        img.copyTo(frame);
+        return frame;
+    }
+
+    private void giveFrame(Mat frame) {
+        if (!mFrames.offer(frame))
+            frame.release();
+    }
+}
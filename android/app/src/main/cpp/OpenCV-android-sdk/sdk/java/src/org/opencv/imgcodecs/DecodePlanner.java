@@ -0,0 +1,297 @@
+package org.opencv.imgcodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Picks the cheapest decode for a requested output size.
+ * <p>
+ * The image size is read from the file header (JPEG, PNG and WebP; other formats are decoded
+ * once) and the largest {@code IMREAD_REDUCED_*} factor that still gives at least the requested
+ * resolution is used. JPEG applies the reduction in the DCT domain, so a 1/8 decode costs a
+ * fraction of a full one; for other formats the reduction only bounds the memory of the result.
+ * The decoded image is then resized with {@link Imgproc#INTER_AREA} to fit the target.
+ * <p>
+ * Region decodes pick the factor from the size of the region, crop it from the reduced image
+ * and free the rest, since the codecs behind {@link Imgcodecs} always decode whole images.
+ * Thumbnails are cached by file, modification time, file size and target size, up to a
+ * byte budget.
+ */
+public class DecodePlanner {
+    private static final int[] FACTORS = { 8, 4, 2, 1 };
+    private static final int   MAX_SIZES = 4096;
+
+    /**
+     * How an image will be decoded.
+     */
+    public static class Plan {
+        /** Image size from the header, null when unknown. */
+        public final Size sourceSize;
+        /** Reduction factor, 1, 2, 4 or 8. */
+        public final int  factor;
+        /** Flags for {@link Imgcodecs#imread(String, int)}. */
+        public final int  flags;
+
+        Plan(Size sourceSize, int factor, int flags) {
+            this.sourceSize = sourceSize;
+            this.factor = factor;
+            this.flags = flags;
+        }
+    }
+
+    private final long                 mCacheBytes;
+    private long                       mCachedBytes;
+    private final Map<String, Mat>     mThumbnails = new LinkedHashMap<String, Mat>(16, 0.75f, true);
+    private final Map<String, Size>    mSizes = new LinkedHashMap<String, Size>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Size> eldest) {
+            return size() > MAX_SIZES;
+        }
+    };
+
+    /**
+     * @param cacheBytes memory budget of the thumbnail cache.
+     */
+    public DecodePlanner(long cacheBytes) {
+        mCacheBytes = Math.max(0, cacheBytes);
+    }
+
+    public DecodePlanner() {
+        this(32L << 20);
+    }
+
+    /**
+     * Size of the stored image from its header, without orientation applied; null if the format
+     * is not recognized.
+     */
+    public synchronized Size getImageSize(String path) {
+        String key = fileKey(path);
+        if (mSizes.containsKey(key))
+            return mSizes.get(key);
+        Size size;
+        try {
+            size = readSize(path);
+        } catch (IOException e) {
+            size = null;
+        }
+        mSizes.put(key, size);
+        return size;
+    }
+
+    /**
+     * Plans a decode that fits the image into {@code target}.
+     *
+     * @param flags {@link Imgcodecs#IMREAD_COLOR} or {@link Imgcodecs#IMREAD_GRAYSCALE},
+     * optionally with {@link Imgcodecs#IMREAD_IGNORE_ORIENTATION}.
+     */
+    public Plan plan(String path, Size target, int flags) {
+        Size size = getImageSize(path);
+        if (size == null)
+            return new Plan(null, 1, flags);
+        return plan(size, size, target, flags);
+    }
+
+    /**
+     * Decodes an image scaled to fit into {@code target}, keeping its aspect ratio.
+     */
+    public Mat decode(String path, Size target, int flags) {
+        Plan p = plan(path, target, flags);
+        Mat m = read(path, p.flags);
+        return fit(m, target);
+    }
+
+    /**
+     * Decodes a region of an image, scaled to fit into {@code target}.
+     *
+     * @param roi region in the coordinates of the full-resolution image as
+     * {@link Imgcodecs#imread(String, int)} returns it.
+     */
+    public Mat decodeRegion(String path, Rect roi, Size target, int flags) {
+        if (roi.width <= 0 || roi.height <= 0)
+            throw new IllegalArgumentException("Empty region");
+        Size size = getImageSize(path);
+        Plan p = size != null ? plan(size, new Size(roi.width, roi.height), target, flags) : new Plan(null, 1, flags);
+        Mat m = read(path, p.flags);
+
+        // scale of the decoded image; JPEG rounds reduced sizes up, the other codecs down, and the
+        // width is swapped with the height when the decoder applied an EXIF rotation
+        double full = size == null ? m.cols()
+                : Math.abs(m.cols() * p.factor - size.width) < p.factor ? size.width : size.height;
+        double scale = m.cols() / full;
+        int x0 = clamp((int) Math.floor(roi.x * scale), m.cols()), y0 = clamp((int) Math.floor(roi.y * scale), m.rows());
+        int x1 = clamp((int) Math.ceil((roi.x + roi.width) * scale), m.cols());
+        int y1 = clamp((int) Math.ceil((roi.y + roi.height) * scale), m.rows());
+        if (x1 <= x0 || y1 <= y0) {
+            m.release();
+            throw new IllegalArgumentException("Region " + roi + " is outside the image");
+        }
+        Mat crop = m.submat(new Rect(x0, y0, x1 - x0, y1 - y0));
+        Mat region = crop.clone();
+        crop.release();
+        m.release();
+        return fit(region, target);
+    }
+
+    /**
+     * Color thumbnail fitting into {@code target}, from the cache when the file is unchanged.
+     * The returned Mat belongs to the caller.
+     */
+    public Mat thumbnail(String path, Size target) {
+        String key = fileKey(path) + "|" + (int) target.width + "x" + (int) target.height;
+        synchronized (this) {
+            Mat cached = mThumbnails.get(key);
+            if (cached != null)
+                return cached.clone();
+        }
+        Mat thumb = decode(path, target, Imgcodecs.IMREAD_COLOR);
+        synchronized (this) {
+            long bytes = thumb.total() * thumb.elemSize();
+            if (bytes <= mCacheBytes && !mThumbnails.containsKey(key)) {
+                mThumbnails.put(key, thumb.clone());
+                mCachedBytes += bytes;
+                Iterator<Map.Entry<String, Mat>> it = mThumbnails.entrySet().iterator();
+                while (mCachedBytes > mCacheBytes && it.hasNext()) {
+                    Mat old = it.next().getValue();
+                    mCachedBytes -= old.total() * old.elemSize();
+                    old.release();
+                    it.remove();
+                }
+            }
+        }
+        return thumb;
+    }
+
+    public synchronized void clearCache() {
+        for (Mat m : mThumbnails.values())
+            m.release();
+        mThumbnails.clear();
+        mSizes.clear();
+        mCachedBytes = 0;
+    }
+
+    public void release() {
+        clearCache();
+    }
+
+    // largest reduction that keeps at least the resolution needed to fit area into target,
+    // whichever way the decoder orients the image
+    private static Plan plan(Size source, Size area, Size target, int flags) {
+        if (target.width <= 0 || target.height <= 0)
+            throw new IllegalArgumentException("Target size must be positive");
+        double need = Math.max(Math.min(target.width / area.width, target.height / area.height),
+                Math.min(target.width / area.height, target.height / area.width));
+        // the reduced flags are the gray ones plus the color bit
+        int base = flags & ~(Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2 | Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4
+                | Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8);
+        if (flags < 0)
+            return new Plan(source, 1, flags);
+        for (int f : FACTORS) {
+            if (1.0 / f < need)
+                continue;
+            int reduced = f == 1 ? 0 : f == 2 ? Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2
+                    : f == 4 ? Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4 : Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
+            return new Plan(source, f, base | reduced);
+        }
+        return new Plan(source, 1, base);
+    }
+
+    private static Mat read(String path, int flags) {
+        Mat m = Imgcodecs.imread(path, flags);
+        if (m.empty())
+            throw new CvException("Cannot read " + path);
+        return m;
+    }
+
+    // scales m to fit into target, keeping the aspect ratio; m is released if replaced
+    private static Mat fit(Mat m, Size target) {
+        double s = Math.min(target.width / m.cols(), target.height / m.rows());
+        if (s >= 1)
+            return m;
+        Mat out = new Mat();
+        Imgproc.resize(m, out, new Size(Math.max(1, Math.round(m.cols() * s)), Math.max(1, Math.round(m.rows() * s))),
+                0, 0, Imgproc.INTER_AREA);
+        m.release();
+        return out;
+    }
+
+    private static int clamp(int v, int max) {
+        return Math.max(0, Math.min(max, v));
+    }
+
+    private static String fileKey(String path) {
+        File f = new File(path);
+        return path + "|" + f.lastModified() + "|" + f.length();
+    }
+
+    // width and height from a JPEG, PNG or WebP header
+    private static Size readSize(String path) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(path, "r");
+        try {
+            byte[] h = new byte[30];
+            int n = f.read(h);
+            if (n >= 4 && (h[0] & 0xff) == 0xff && (h[1] & 0xff) == 0xd8) {
+                long pos = 2;
+                for (;;) {
+                    f.seek(pos);
+                    int b = f.read();
+                    if (b != 0xff)
+                        return null;
+                    int marker;
+                    while ((marker = f.read()) == 0xff)
+                        ;
+                    if (marker < 0 || marker == 0xd9 || marker == 0xda)
+                        return null;
+                    if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                        pos = f.getFilePointer();
+                        continue;
+                    }
+                    int len = f.readUnsignedShort();
+                    if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                        f.readUnsignedByte();
+                        int height = f.readUnsignedShort();
+                        int width = f.readUnsignedShort();
+                        return new Size(width, height);
+                    }
+                    pos = f.getFilePointer() + len - 2;
+                }
+            }
+            if (n >= 24 && (h[0] & 0xff) == 0x89 && h[1] == 'P' && h[2] == 'N' && h[3] == 'G')
+                return new Size(be32(h, 16), be32(h, 20));
+            if (n >= 30 && h[0] == 'R' && h[1] == 'I' && h[2] == 'F' && h[3] == 'F' && h[8] == 'W' && h[9] == 'E') {
+                if (h[12] == 'V' && h[13] == 'P' && h[14] == '8' && h[15] == ' ')
+                    return new Size(le16(h, 26) & 0x3fff, le16(h, 28) & 0x3fff);
+                if (h[12] == 'V' && h[13] == 'P' && h[14] == '8' && h[15] == 'L') {
+                    int b1 = h[22] & 0xff, b2 = h[23] & 0xff, b3 = h[24] & 0xff;
+                    return new Size(1 + ((h[21] & 0xff) | (b1 & 0x3f) << 8), 1 + ((b1 >> 6) | b2 << 2 | (b3 & 0x0f) << 10));
+                }
+                if (h[12] == 'V' && h[13] == 'P' && h[14] == '8' && h[15] == 'X')
+                    return new Size(1 + le24(h, 24), 1 + le24(h, 27));
+            }
+            return null;
+        } finally {
+            f.close();
+        }
+    }
+
+    private static int be32(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    private static int le16(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private static int le24(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16;
+    }
+}
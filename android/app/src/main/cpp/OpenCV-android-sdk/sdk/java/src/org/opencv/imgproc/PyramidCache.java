@@ -0,0 +1,169 @@
+package org.opencv.imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Per-frame image pyramid shared by several detectors.
+ * <p>
+ * Level 0 is the frame passed to {@link #setFrame(Mat)}; further levels are built on first use,
+ * either with {@link Imgproc#pyrDown} ({@link #PYR_GAUSSIAN}, factor 2 between levels) or with
+ * {@link Imgproc#resize} from level 0 ({@link #PYR_RESIZE}, arbitrary factor, the same levels the
+ * native multi-scale detectors compute internally). The cache keeps a reference to the frame
+ * rather than a copy, so the frame must not change until {@link #release()} or the next
+ * {@link #setFrame(Mat)}.
+ * <p>
+ * Levels may be requested from several threads.
+ */
+public class PyramidCache {
+    public static final int PYR_GAUSSIAN = 0;
+    public static final int PYR_RESIZE   = 1;
+
+    private final int       mMode;
+    private final double    mScaleFactor;
+    private final List<Mat> mLevels = new ArrayList<Mat>();
+    private Mat             mFrame;
+
+    /**
+     * @param mode {@link #PYR_GAUSSIAN} or {@link #PYR_RESIZE}.
+     * @param scaleFactor downscale factor between consecutive levels, must be 2 for
+     * {@link #PYR_GAUSSIAN}.
+     */
+    public PyramidCache(int mode, double scaleFactor) {
+        if (mode != PYR_GAUSSIAN && mode != PYR_RESIZE)
+            throw new IllegalArgumentException("Unknown pyramid mode " + mode);
+        if (scaleFactor <= 1 || (mode == PYR_GAUSSIAN && scaleFactor != 2))
+            throw new IllegalArgumentException("Invalid scale factor " + scaleFactor);
+        mMode = mode;
+        mScaleFactor = scaleFactor;
+    }
+
+    public static PyramidCache gaussian() {
+        return new PyramidCache(PYR_GAUSSIAN, 2);
+    }
+
+    public static PyramidCache resize(double scaleFactor) {
+        return new PyramidCache(PYR_RESIZE, scaleFactor);
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public double getScaleFactor() {
+        return mScaleFactor;
+    }
+
+    /**
+     * Starts a new frame, dropping the levels of the previous one.
+     */
+    public synchronized void setFrame(Mat frame) {
+        releaseLevels();
+        mFrame = frame;
+        mLevels.add(frame);
+    }
+
+    public synchronized Mat getFrame() {
+        return mFrame;
+    }
+
+    /**
+     * Returns level {@code k}, building it and any missing lower levels first.
+     */
+    public synchronized Mat getLevel(int k) {
+        if (mFrame == null)
+            throw new IllegalStateException("No frame set");
+        if (k < 0)
+            throw new IllegalArgumentException("Negative level " + k);
+        while (mLevels.size() <= k) {
+            int i = mLevels.size();
+            Mat level = new Mat();
+            if (mMode == PYR_GAUSSIAN) {
+                Imgproc.pyrDown(mLevels.get(i - 1), level);
+            } else {
+                Size sz = levelSize(i);
+                Imgproc.resize(mFrame, level, sz, 0, 0, Imgproc.INTER_LINEAR);
+            }
+            mLevels.add(level);
+        }
+        return mLevels.get(k);
+    }
+
+    /**
+     * Size of level {@code k}, computed without building the level.
+     */
+    public synchronized Size levelSize(int k) {
+        if (mFrame == null)
+            throw new IllegalStateException("No frame set");
+        double w = mFrame.cols(), h = mFrame.rows();
+        if (mMode == PYR_GAUSSIAN) {
+            for (int i = 0; i < k; i++) {
+                w = Math.floor((w + 1) / 2);
+                h = Math.floor((h + 1) / 2);
+            }
+            return new Size(w, h);
+        }
+        double f = Math.pow(mScaleFactor, k);
+        return new Size(Math.round(w / f), Math.round(h / f));
+    }
+
+    /**
+     * Scale of level {@code k} relative to the frame: a point of level {@code k} maps to
+     * {@code p * getScale(k)} in frame coordinates.
+     */
+    public synchronized double getScale(int k) {
+        if (mMode == PYR_RESIZE)
+            return Math.pow(mScaleFactor, k);
+        return mFrame.cols() / levelSize(k).width;
+    }
+
+    /**
+     * Number of levels not smaller than {@code minSize}; in {@link #PYR_GAUSSIAN} mode the count
+     * stops at the 1x1 level.
+     */
+    public synchronized int getLevelCount(Size minSize) {
+        if (mFrame == null)
+            throw new IllegalStateException("No frame set");
+        double minW = Math.max(minSize.width, 1), minH = Math.max(minSize.height, 1);
+        double w = mFrame.cols(), h = mFrame.rows();
+        for (int k = 0;; k++) {
+            if (w < minW || h < minH)
+                return k;
+            if (mMode == PYR_GAUSSIAN) {
+                // pyrDown of a 1x1 level is 1x1 again
+                if (w == 1 && h == 1)
+                    return k + 1;
+                w = Math.floor((w + 1) / 2);
+                h = Math.floor((h + 1) / 2);
+            } else {
+                double f = Math.pow(mScaleFactor, k + 1);
+                w = Math.round(mFrame.cols() / f);
+                h = Math.round(mFrame.rows() / f);
+            }
+        }
+    }
+
+    /**
+     * Number of levels built for the current frame, level 0 included.
+     */
+    public synchronized int getBuiltLevels() {
+        return mLevels.size();
+    }
+
+    /**
+     * Ends the frame and frees all levels it built.
+     */
+    public synchronized void release() {
+        releaseLevels();
+    }
+
+    private void releaseLevels() {
+        for (int i = 1; i < mLevels.size(); i++)
+            mLevels.get(i).release();
+        mLevels.clear();
+        mFrame = null;
+    }
+}
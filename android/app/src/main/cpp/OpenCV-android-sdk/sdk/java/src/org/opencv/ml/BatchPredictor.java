@@ -0,0 +1,275 @@
+package org.opencv.ml;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Parallel batch prediction for any {@link StatModel}.
+ * <p>
+ * Sample rows are cut into shards of {@link #setShardRows(int)} rows that are predicted on a
+ * work-stealing pool. Every worker owns its sample and result matrices and a row buffer, reused
+ * from shard to shard. Sample sets too large for memory are streamed from a float32 row file,
+ * mapped one window at a time, with the results handed to a {@link ResultSink} in row order.
+ * <p>
+ * Prediction of the trained models is const and may be shared by all workers; a {@link Factory}
+ * gives each worker its own model instead (e.g. loaded from the same file).
+ */
+public class BatchPredictor {
+    /**
+     * Creates the model of one worker.
+     */
+    public interface Factory {
+        StatModel create();
+    }
+
+    /**
+     * Receives streamed results, in row order.
+     */
+    public interface ResultSink {
+        /**
+         * @param firstRow index of the first row of the block.
+         * @param rows number of rows in the block.
+         * @param cols values per row.
+         * @param values {@code rows * cols} results, only valid during the call.
+         */
+        void accept(long firstRow, int rows, int cols, float[] values) throws IOException;
+    }
+
+    private static final long WINDOW_BYTES = 256L << 20;
+
+    private final ForkJoinPool          mPool;
+    private final BlockingQueue<Worker> mWorkers;
+    private final int                   mThreads;
+    private int                         mShardRows = 4096;
+    private int                         mFlags;
+
+    private static class Worker {
+        final StatModel model;
+        final Mat       samples = new Mat();
+        final Mat       results = new Mat();
+        final Mat       converted = new Mat();
+        float[]         buffer = new float[0];
+
+        Worker(StatModel model) {
+            this.model = model;
+        }
+    }
+
+    /** Result rows of one shard. */
+    private static class Shard {
+        float[] values;
+        int     cols;
+    }
+
+    /**
+     * @param model trained model shared by all workers.
+     * @param threads number of workers.
+     */
+    public BatchPredictor(final StatModel model, int threads) {
+        this(new Factory() {
+            @Override
+            public StatModel create() {
+                return model;
+            }
+        }, threads);
+    }
+
+    /**
+     * @param factory creates one model per worker.
+     * @param threads number of workers.
+     */
+    public BatchPredictor(Factory factory, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mThreads = threads;
+        mWorkers = new ArrayBlockingQueue<Worker>(threads);
+        for (int i = 0; i < threads; i++)
+            mWorkers.add(new Worker(factory.create()));
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public BatchPredictor(StatModel model) {
+        this(model, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Rows per shard.
+     */
+    public void setShardRows(int rows) {
+        if (rows < 1)
+            throw new IllegalArgumentException("Shard size must be positive");
+        mShardRows = rows;
+    }
+
+    public int getShardRows() {
+        return mShardRows;
+    }
+
+    /** @see StatModel#predict(Mat, Mat, int) */
+    public void setFlags(int flags) {
+        mFlags = flags;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * Predicts every row of a sample matrix.
+     *
+     * @param samples one sample per row.
+     * @param results CV_32F results, one row per sample.
+     */
+    public void predict(Mat samples, Mat results) {
+        int n = samples.rows();
+        if (n == 0) {
+            results.release();
+            return;
+        }
+        int shards = (n + mShardRows - 1) / mShardRows;
+        final Shard[] out = new Shard[shards];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int s = 0; s < shards; s++) {
+            final int index = s;
+            final Mat rows = samples.rowRange(s * mShardRows, Math.min(n, (s + 1) * mShardRows));
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    Worker w = mWorkers.take();
+                    try {
+                        out[index] = predictShard(w, rows);
+                    } finally {
+                        mWorkers.add(w);
+                        rows.release();
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        int cols = out[0].cols;
+        results.create(n, cols, CvType.CV_32F);
+        for (int s = 0; s < shards; s++)
+            results.put(s * mShardRows, 0, out[s].values);
+    }
+
+    /**
+     * Streams the rows of a file of little-endian float32 samples through the model.
+     *
+     * @param path sample file.
+     * @param offset byte offset of the first row, e.g. the size of a header.
+     * @param cols values per sample.
+     * @param sink receives the results in row order.
+     * @return number of rows predicted.
+     */
+    public long predict(String path, long offset, final int cols, ResultSink sink) throws IOException {
+        if (cols < 1)
+            throw new IllegalArgumentException("Sample length must be positive");
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel ch = file.getChannel();
+            long rowBytes = 4L * cols;
+            long total = (ch.size() - offset) / rowBytes;
+            long windowRows = Math.max(mShardRows, Math.min((long) mThreads * mShardRows * 4, WINDOW_BYTES / rowBytes));
+            windowRows = Math.max(1, windowRows / mShardRows) * mShardRows;
+            for (long first = 0; first < total; first += windowRows) {
+                final int rows = (int) Math.min(windowRows, total - first);
+                final FloatBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, offset + first * rowBytes, rows * rowBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                int shards = (rows + mShardRows - 1) / mShardRows;
+                final Shard[] out = new Shard[shards];
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                for (int s = 0; s < shards; s++) {
+                    final int index = s;
+                    final int from = s * mShardRows, count = Math.min(rows, from + mShardRows) - from;
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws InterruptedException {
+                            Worker w = mWorkers.take();
+                            try {
+                                int len = count * cols;
+                                if (w.buffer.length != len)
+                                    w.buffer = new float[len];
+                                FloatBuffer src = window.duplicate();
+                                src.position(from * cols);
+                                src.get(w.buffer);
+                                w.samples.create(count, cols, CvType.CV_32F);
+                                w.samples.put(0, 0, w.buffer);
+                                out[index] = predictShard(w, w.samples);
+                            } finally {
+                                mWorkers.add(w);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                run(tasks);
+                long row = first;
+                for (Shard s : out) {
+                    int n = s.values.length / s.cols;
+                    sink.accept(row, n, s.cols, s.values);
+                    row += n;
+                }
+            }
+            return total;
+        } finally {
+            file.close();
+        }
+    }
+
+    public void release() {
+        mPool.shutdown();
+        for (Worker w : mWorkers) {
+            w.samples.release();
+            w.results.release();
+            w.converted.release();
+        }
+    }
+
+    private Shard predictShard(Worker w, Mat samples) {
+        Mat input = samples;
+        if (samples.type() != CvType.CV_32FC1) {
+            samples.convertTo(w.converted, CvType.CV_32F);
+            input = w.converted;
+        }
+        w.model.predict(input, w.results, mFlags);
+        Mat res = w.results;
+        if (res.type() != CvType.CV_32FC1) {
+            res.convertTo(w.converted, CvType.CV_32F);
+            res = w.converted;
+        }
+        Shard s = new Shard();
+        s.cols = res.cols();
+        s.values = new float[res.rows() * res.cols()];
+        res.get(0, 0, s.values);
+        return s;
+    }
+
+    private void run(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : mPool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Prediction interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Prediction failed: " + e.getCause());
+        }
+    }
+}
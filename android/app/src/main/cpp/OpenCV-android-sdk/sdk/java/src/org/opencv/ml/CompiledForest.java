@@ -0,0 +1,660 @@
+package org.opencv.ml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Decision tree ensemble compiled to flat arrays for fast batch prediction.
+ * <p>
+ * A trained {@link DTrees}, {@link RTrees} or {@link Boost} model is read back from its own
+ * serialization and its nodes are laid out in depth-first order in parallel arrays (split
+ * variable, threshold, children, leaf value and class), with the split direction normalized so
+ * that traversal is a single comparison per node. Samples are evaluated in blocks of 64: every
+ * tree is walked for the whole block before moving to the next tree, so the nodes of a tree stay
+ * in cache while the block goes through it. Blocks are spread over a work-stealing pool.
+ * <p>
+ * {@link #predict(Mat, Mat, int)} follows the native prediction rules (sum or majority vote,
+ * {@link DTrees#PREDICT_SUM}, {@link DTrees#PREDICT_MAX_VOTE}, {@link StatModel#RAW_OUTPUT},
+ * categorical variables, missing values) so the compiled forest can replace the model;
+ * {@link #verify(StatModel, Mat, int)} checks that on a sample set. Missing values are handled as
+ * by a model loaded from file. Models trained on a variable subset are not supported.
+ */
+public class CompiledForest {
+    private static final int   BLOCK   = 64;
+    private static final int   LEAF    = -1;
+    private static final float MISSING = Float.MAX_VALUE;
+    private static final int   VAR_CATEGORICAL = 1;
+
+    private final ForkJoinPool mPool;
+    private final int          mThreads;
+    private final boolean      mBoost;
+    private boolean            mClassifier;
+    private int                mVarAll;
+    private int[]              mRoots;
+
+    // nodes: mVar >= 0 ordered split, LEAF, or -2 - var for a categorical split
+    private int[]              mVar;
+    private float[]            mThreshold;
+    private int[]              mLow;
+    private int[]              mHigh;
+    private int[]              mMissing;
+    private int[]              mSubsetOfs;
+    private double[]           mValue;
+    private int[]              mClass;
+    private int[]              mSubsets = new int[0];
+
+    private boolean[]          mCategorical;
+    private int[]              mCatOfs;
+    private int[]              mCatMap;
+    private int[]              mClassLabels;
+    private float[]            mMissingSubst;
+
+    /**
+     * @param model trained tree model.
+     * @param threads number of workers.
+     */
+    public CompiledForest(DTrees model, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        if (!model.isTrained())
+            throw new IllegalArgumentException("Model is not trained");
+        mBoost = model instanceof Boost;
+        File tmp;
+        try {
+            tmp = File.createTempFile("forest", ".json");
+        } catch (IOException e) {
+            throw new CvException("Cannot create model file: " + e.getMessage());
+        }
+        try {
+            model.save(tmp.getPath());
+            compile(new Json(read(tmp)).parse());
+        } catch (IOException e) {
+            throw new CvException("Cannot read model: " + e.getMessage());
+        } finally {
+            tmp.delete();
+        }
+        mThreads = threads;
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public CompiledForest(DTrees model) {
+        this(model, Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getTreeCount() {
+        return mRoots.length;
+    }
+
+    public int getNodeCount() {
+        return mVar.length;
+    }
+
+    /** @see StatModel#getVarCount() */
+    public int getVarCount() {
+        return mVarAll;
+    }
+
+    /** @see StatModel#isClassifier() */
+    public boolean isClassifier() {
+        return mClassifier;
+    }
+
+    /**
+     * Predicts every row of a sample matrix.
+     *
+     * @param samples CV_32F samples, one per row.
+     * @param results one result per row; CV_32S for {@link DTrees#PREDICT_MAX_VOTE} on a
+     * classifier, CV_32F otherwise.
+     * @param flags {@link DTrees#PREDICT_AUTO}, {@link DTrees#PREDICT_SUM} or
+     * {@link DTrees#PREDICT_MAX_VOTE}, optionally with {@link StatModel#RAW_OUTPUT}.
+     * @return result of the first sample.
+     * @see StatModel#predict(Mat, Mat, int)
+     */
+    public float predict(Mat samples, Mat results, final int flags) {
+        final int n = samples.rows();
+        if (n == 0) {
+            results.release();
+            return 0;
+        }
+        if (samples.cols() != mVarAll)
+            throw new IllegalArgumentException("Expected " + mVarAll + " variables, got " + samples.cols());
+        final Mat input;
+        if (samples.type() == CvType.CV_32FC1 && samples.isContinuous()) {
+            input = samples;
+        } else {
+            input = new Mat();
+            samples.convertTo(input, CvType.CV_32F);
+        }
+
+        final float[] out = new float[n];
+        int chunk = (n + 4 * mThreads - 1) / (4 * mThreads);
+        chunk = Math.max(BLOCK, (chunk + BLOCK - 1) / BLOCK * BLOCK);
+        if (chunk >= n) {
+            evaluate(input, 0, n, flags, out);
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int from = 0; from < n; from += chunk) {
+                final int first = from, count = Math.min(chunk, n - from);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        evaluate(input, first, count, flags, out);
+                        return null;
+                    }
+                });
+            }
+            run(tasks);
+        }
+        if (input != samples)
+            input.release();
+
+        if (mClassifier && (flags & DTrees.PREDICT_MASK) == DTrees.PREDICT_MAX_VOTE) {
+            int[] labels = new int[n];
+            for (int i = 0; i < n; i++)
+                labels[i] = (int) Math.rint(out[i]);
+            results.create(n, 1, CvType.CV_32S);
+            results.put(0, 0, labels);
+        } else {
+            results.create(n, 1, CvType.CV_32F);
+            results.put(0, 0, out);
+        }
+        return out[0];
+    }
+
+    public float predict(Mat samples, Mat results) {
+        return predict(samples, results, 0);
+    }
+
+    /**
+     * Result of the first sample.
+     */
+    public float predict(Mat samples) {
+        Mat row = samples.row(0), results = new Mat();
+        float r = predict(row, results, 0);
+        results.release();
+        row.release();
+        return r;
+    }
+
+    /**
+     * Compares the predictions of the compiled forest with those of a reference model, usually
+     * the model it was compiled from.
+     *
+     * @return number of samples with a different result, 0 when both agree.
+     */
+    public int verify(StatModel reference, Mat samples, int flags) {
+        Mat expected = new Mat(), actual = new Mat();
+        reference.predict(samples, expected, flags);
+        predict(samples, actual, flags);
+        float[] a = MlUtils.floats(expected), b = MlUtils.floats(actual);
+        expected.release();
+        actual.release();
+        if (a.length != b.length)
+            return samples.rows();
+        int mismatches = 0;
+        for (int i = 0; i < a.length; i++)
+            if (Float.compare(a[i], b[i]) != 0)
+                mismatches++;
+        return mismatches;
+    }
+
+    public void release() {
+        mPool.shutdown();
+    }
+
+    private void evaluate(Mat samples, int from, int count, int flags, float[] out) {
+        int type = flags & DTrees.PREDICT_MASK;
+        boolean raw = (flags & StatModel.RAW_OUTPUT) != 0;
+        if (mBoost || type == DTrees.PREDICT_AUTO)
+            type = mBoost || !mClassifier || (mClassLabels.length == 2 && raw) ? DTrees.PREDICT_SUM : DTrees.PREDICT_MAX_VOTE;
+        int classes = mClassLabels.length;
+        boolean vote = type == DTrees.PREDICT_MAX_VOTE && classes > 0;
+        boolean boostLabel = mBoost && (flags & DTrees.PREDICT_MASK) != DTrees.PREDICT_SUM;
+        float scale = mClassifier ? 1f : 1f / mRoots.length;
+
+        float[] x = new float[0];
+        double[] sums = new double[BLOCK];
+        int[] votes = vote ? new int[BLOCK * classes] : null;
+        int[] last = new int[BLOCK];
+        boolean[] missing = new boolean[BLOCK];
+        for (int b = 0; b < count; b += BLOCK) {
+            int n = Math.min(BLOCK, count - b);
+            if (x.length != n * mVarAll)
+                x = new float[n * mVarAll];
+            samples.get(from + b, 0, x);
+            boolean anyMissing = false;
+            for (int s = 0; s < n; s++)
+                anyMissing |= missing[s] = prepare(x, s * mVarAll);
+            Arrays.fill(sums, 0);
+            if (vote)
+                Arrays.fill(votes, 0);
+
+            for (int t = 0; t < mRoots.length; t++) {
+                int root = mRoots[t];
+                for (int s = 0; s < n; s++) {
+                    int off = s * mVarAll;
+                    int leaf = anyMissing && missing[s] ? leafWithMissing(root, x, off) : leaf(root, x, off);
+                    if (vote) {
+                        int c = mClass[leaf];
+                        votes[s * classes + c]++;
+                        last[s] = c;
+                    } else {
+                        sums[s] += mValue[leaf];
+                    }
+                }
+            }
+
+            for (int s = 0; s < n; s++) {
+                float val;
+                if (vote) {
+                    int best = last[s];
+                    if (mRoots.length > 1) {
+                        best = 0;
+                        for (int c = 1; c < classes; c++)
+                            if (votes[s * classes + best] < votes[s * classes + c])
+                                best = c;
+                    }
+                    val = raw ? best : mClassLabels[best];
+                } else {
+                    val = (float) sums[s];
+                    if (boostLabel) {
+                        int label = val > 0 ? 1 : 0;
+                        val = raw ? label : mClassLabels[label];
+                    }
+                }
+                out[from + b + s] = val * scale;
+            }
+        }
+    }
+
+    private int leaf(int n, float[] x, int off) {
+        for (;;) {
+            int v = mVar[n];
+            if (v >= 0)
+                n = x[off + v] <= mThreshold[n] ? mLow[n] : mHigh[n];
+            else if (v == LEAF)
+                return n;
+            else
+                n = inSubset(mSubsetOfs[n], (int) x[off - 2 - v]) ? mLow[n] : mHigh[n];
+        }
+    }
+
+    // missing values without substitutes go to the right child of the stored split
+    private int leafWithMissing(int n, float[] x, int off) {
+        for (;;) {
+            int v = mVar[n];
+            if (v == LEAF)
+                return n;
+            float val = x[off + (v >= 0 ? v : -2 - v)];
+            if (val == MISSING)
+                n = mMissing[n];
+            else if (v >= 0)
+                n = val <= mThreshold[n] ? mLow[n] : mHigh[n];
+            else
+                n = inSubset(mSubsetOfs[n], (int) val) ? mLow[n] : mHigh[n];
+        }
+    }
+
+    private boolean inSubset(int ofs, int c) {
+        return (mSubsets[ofs + (c >> 5)] & (1 << (c & 31))) != 0;
+    }
+
+    // substitutes missing values and maps categories to their index; true if a value stays missing
+    private boolean prepare(float[] x, int off) {
+        boolean missing = false;
+        for (int vi = 0; vi < mVarAll; vi++) {
+            float val = x[off + vi];
+            if (val == MISSING) {
+                if (mMissingSubst == null) {
+                    missing = true;
+                    continue;
+                }
+                val = mMissingSubst[vi];
+            }
+            if (mCategorical[vi])
+                val = category(vi, val);
+            x[off + vi] = val;
+        }
+        return missing;
+    }
+
+    private int category(int vi, float val) {
+        int ival = Math.round(val);
+        if (ival != val)
+            throw new IllegalArgumentException("Categorical variable " + vi + " is not an integer: " + val);
+        int a = mCatOfs[2 * vi], b = mCatOfs[2 * vi + 1], c = a;
+        while (a < b) {
+            c = (a + b) >>> 1;
+            if (ival < mCatMap[c])
+                b = c;
+            else if (ival > mCatMap[c])
+                a = c + 1;
+            else
+                break;
+        }
+        return c - mCatOfs[2 * vi];
+    }
+
+    @SuppressWarnings("unchecked")
+    private void compile(Object root) throws IOException {
+        if (!(root instanceof Map) || ((Map<String, Object>) root).isEmpty())
+            throw new IOException("Unexpected model layout");
+        Map<String, Object> m = (Map<String, Object>) ((Map<String, Object>) root).values().iterator().next();
+        if (m.containsKey("var_idx"))
+            throw new CvException("Models trained on a variable subset are not supported");
+        mVarAll = (int) number(m.get("var_all"));
+        int[] varType = ints(m.get("var_type"));
+        mCategorical = new boolean[mVarAll];
+        for (int i = 0; i < mVarAll && i < varType.length; i++)
+            mCategorical[i] = varType[i] == VAR_CATEGORICAL;
+        mCatOfs = m.containsKey("cat_ofs") ? ints(m.get("cat_ofs")) : new int[0];
+        mCatMap = m.containsKey("cat_map") ? ints(m.get("cat_map")) : new int[0];
+        mClassLabels = m.containsKey("class_labels") ? ints(m.get("class_labels")) : new int[0];
+        mClassifier = m.containsKey("is_classifier") ? number(m.get("is_classifier")) != 0 : mClassLabels.length > 0;
+        if (m.containsKey("missing_subst")) {
+            List<Object> subst = flatten(m.get("missing_subst"), new ArrayList<Object>());
+            mMissingSubst = new float[subst.size()];
+            for (int i = 0; i < mMissingSubst.length; i++)
+                mMissingSubst[i] = (float) number(subst.get(i));
+        }
+
+        List<List<Object>> trees = new ArrayList<List<Object>>();
+        if (m.containsKey("trees")) {
+            for (Object t : (List<Object>) m.get("trees"))
+                trees.add((List<Object>) ((Map<String, Object>) t).get("nodes"));
+        } else {
+            trees.add((List<Object>) m.get("nodes"));
+        }
+        int total = 0;
+        for (List<Object> t : trees)
+            total += t.size();
+        mRoots = new int[trees.size()];
+        mVar = new int[total];
+        mThreshold = new float[total];
+        mLow = new int[total];
+        mHigh = new int[total];
+        mMissing = new int[total];
+        mSubsetOfs = new int[total];
+        mValue = new double[total];
+        mClass = new int[total];
+
+        boolean[] inverse = new boolean[total];
+        int next = 0, subsets = 0;
+        int[] pending = new int[16];
+        for (int t = 0; t < trees.size(); t++) {
+            mRoots[t] = next;
+            int depth = 0;
+            boolean prevInternal = false;
+            for (Object o : trees.get(t)) {
+                Map<String, Object> node = (Map<String, Object>) o;
+                int n = next++;
+                // depth-first order: a node is the left child of an internal predecessor,
+                // otherwise the right child of the closest ancestor still waiting for one
+                if (n != mRoots[t]) {
+                    if (prevInternal) {
+                        mLow[pending[depth - 1]] = n;
+                    } else {
+                        if (depth == 0)
+                            throw new IOException("Malformed tree " + t);
+                        mHigh[pending[--depth]] = n;
+                    }
+                }
+                mValue[n] = number(node.get("value"));
+                mClass[n] = node.containsKey("norm_class_idx") ? (int) number(node.get("norm_class_idx")) : 0;
+                mSubsetOfs[n] = -1;
+                List<Object> splits = (List<Object>) node.get("splits");
+                prevInternal = splits != null && !splits.isEmpty();
+                if (!prevInternal) {
+                    mVar[n] = LEAF;
+                    continue;
+                }
+                // only the primary split is used for prediction, the others are surrogates
+                Map<String, Object> split = (Map<String, Object>) splits.get(0);
+                int vi = (int) number(split.get("var"));
+                if (vi < 0 || vi >= mVarAll)
+                    throw new IOException("Bad split variable " + vi);
+                if (mCategorical[vi]) {
+                    // categories in the subset go left
+                    int cats = mCatOfs[2 * vi + 1] - mCatOfs[2 * vi];
+                    int words = (cats + 31) / 32;
+                    if (subsets + words > mSubsets.length)
+                        mSubsets = Arrays.copyOf(mSubsets, Math.max(2 * mSubsets.length, subsets + words));
+                    boolean notIn = split.containsKey("not_in");
+                    for (Object c : flatten(split.get(notIn ? "not_in" : "in"), new ArrayList<Object>())) {
+                        int ci = (int) number(c);
+                        mSubsets[subsets + (ci >> 5)] |= 1 << (ci & 31);
+                    }
+                    if (notIn)
+                        for (int w = 0; w < words; w++)
+                            mSubsets[subsets + w] ^= -1;
+                    mVar[n] = -2 - vi;
+                    mSubsetOfs[n] = subsets;
+                    subsets += words;
+                } else {
+                    // "le": value <= c goes left, "gt": value > c goes left
+                    inverse[n] = split.containsKey("gt");
+                    mVar[n] = vi;
+                    mThreshold[n] = (float) number(split.get(inverse[n] ? "gt" : "le"));
+                }
+                if (depth == pending.length)
+                    pending = Arrays.copyOf(pending, 2 * depth);
+                pending[depth++] = n;
+            }
+            if (depth != 0 || prevInternal)
+                throw new IOException("Malformed tree " + t);
+        }
+
+        // normalize so that value <= threshold always goes to mLow
+        for (int n = 0; n < total; n++) {
+            mMissing[n] = mHigh[n];
+            if (inverse[n]) {
+                int l = mLow[n];
+                mLow[n] = mHigh[n];
+                mHigh[n] = l;
+            }
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) f.length()];
+            f.readFully(data);
+            return new String(data, Charset.forName("UTF-8"));
+        } finally {
+            f.close();
+        }
+    }
+
+    private static double number(Object o) throws IOException {
+        if (!(o instanceof Double))
+            throw new IOException("Expected a number, got " + o);
+        return (Double) o;
+    }
+
+    private static int[] ints(Object o) throws IOException {
+        List<Object> values = flatten(o, new ArrayList<Object>());
+        int[] r = new int[values.size()];
+        for (int i = 0; i < r.length; i++)
+            r[i] = (int) number(values.get(i));
+        return r;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> flatten(Object o, List<Object> dst) {
+        if (o instanceof List) {
+            for (Object e : (List<Object>) o)
+                flatten(e, dst);
+        } else if (o != null) {
+            dst.add(o);
+        }
+        return dst;
+    }
+
+    private void run(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : mPool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Prediction interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Prediction failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * Minimal reader for the JSON written by the model serialization.
+     */
+    private static class Json {
+        private final String mText;
+        private int          mPos;
+
+        Json(String text) {
+            mText = text;
+        }
+
+        Object parse() throws IOException {
+            Object v = value();
+            skip();
+            if (mPos != mText.length())
+                throw error("Trailing data");
+            return v;
+        }
+
+        private Object value() throws IOException {
+            skip();
+            if (mPos >= mText.length())
+                throw error("Unexpected end");
+            char c = mText.charAt(mPos);
+            if (c == '{') {
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                mPos++;
+                skip();
+                if (peek() == '}') {
+                    mPos++;
+                    return map;
+                }
+                for (;;) {
+                    skip();
+                    String key = string();
+                    skip();
+                    expect(':');
+                    map.put(key, value());
+                    skip();
+                    if (peek() == ',') {
+                        mPos++;
+                    } else {
+                        expect('}');
+                        return map;
+                    }
+                }
+            }
+            if (c == '[') {
+                List<Object> list = new ArrayList<Object>();
+                mPos++;
+                skip();
+                if (peek() == ']') {
+                    mPos++;
+                    return list;
+                }
+                for (;;) {
+                    list.add(value());
+                    skip();
+                    if (peek() == ',') {
+                        mPos++;
+                    } else {
+                        expect(']');
+                        return list;
+                    }
+                }
+            }
+            if (c == '"')
+                return string();
+            int start = mPos;
+            while (mPos < mText.length() && ",]} \t\r\n".indexOf(mText.charAt(mPos)) < 0)
+                mPos++;
+            String token = mText.substring(start, mPos);
+            if (token.equals("true"))
+                return 1.0;
+            if (token.equals("false"))
+                return 0.0;
+            if (token.equals("null"))
+                return null;
+            if (token.equalsIgnoreCase(".nan"))
+                return Double.NaN;
+            if (token.equalsIgnoreCase(".inf") || token.equalsIgnoreCase("+.inf"))
+                return Double.POSITIVE_INFINITY;
+            if (token.equalsIgnoreCase("-.inf"))
+                return Double.NEGATIVE_INFINITY;
+            try {
+                return Double.parseDouble(token);
+            } catch (NumberFormatException e) {
+                throw error("Bad value '" + token + "'");
+            }
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            for (;;) {
+                if (mPos >= mText.length())
+                    throw error("Unterminated string");
+                char c = mText.charAt(mPos++);
+                if (c == '"')
+                    return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = mText.charAt(mPos++);
+                switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(mText.substring(mPos, mPos + 4), 16));
+                    mPos += 4;
+                    break;
+                default: sb.append(e); break;
+                }
+            }
+        }
+
+        private char peek() {
+            return mPos < mText.length() ? mText.charAt(mPos) : 0;
+        }
+
+        private void expect(char c) throws IOException {
+            if (peek() != c)
+                throw error("Expected '" + c + "'");
+            mPos++;
+        }
+
+        private void skip() {
+            while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos)))
+                mPos++;
+        }
+
+        private IOException error(String msg) {
+            return new IOException(msg + " at offset " + mPos);
+        }
+    }
+}
@@ -0,0 +1,775 @@
+package org.opencv.ml;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Approximate k-nearest-neighbour model over a hierarchical navigable small world graph (HNSW).
+ * <p>
+ * The model follows {@link KNearest}: samples are trained with their responses, and
+ * {@link #findNearest(Mat, int, Mat, Mat, Mat)} returns the vote (classifier) or mean
+ * (regression) of the k nearest responses together with the neighbour responses and squared L2
+ * distances. Unlike {@link KNearest}, every {@link #train(Mat, int, Mat)} call inserts the new
+ * samples into the existing graph, and a query visits only a small part of the training set,
+ * controlled by {@link #setEf(int)}. Neighbour lists are filled up with the nearest candidates
+ * the diversity heuristic pruned, so the graph stays connected. A query that still reaches fewer
+ * than k nodes is retried with a wider search and only then answered exactly, see
+ * {@link #getExactSearchCount()}. Query batches are split across a fork-join pool, with
+ * per-thread search buffers; training takes an exclusive lock and runs on the calling thread.
+ * <p>
+ * The graph is stored with {@link #save(String)} and restored with {@link #load(String)}.
+ */
+public class HnswKNearest {
+    private static final int  MAGIC        = 0x57534e48; // "HNSW"
+    private static final int  VERSION      = 2;
+    private static final int  QUERY_CHUNK  = 64;
+    private static final int  HEADER_SIZE  = 56;
+    private static final long DEFAULT_SEED = 0x686e7377;
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final ForkJoinPool           mPool;
+    private final int                    mM;
+    private final int                    mM0;
+    private final int                    mEfConstruction;
+    private final double                 mLevelMult;
+    private final long                   mSeed;
+    private final Random                 mRandom;
+    private int                          mEf = 64;
+    private int                          mDefaultK = 10;
+    private boolean                      mIsClassifier = true;
+    private final AtomicLong             mExactSearches = new AtomicLong();
+
+    private int                          mDims = -1;
+    private int                          mCount;
+    private float[]                      mData = new float[0];
+    private float[]                      mResponses = new float[0];
+    private int[]                        mLevels = new int[0];
+    // level 0 links: count followed by up to M0 ids per node
+    private int[]                        mLinks0 = new int[0];
+    // links of levels 1..level: count followed by up to M ids per level, null for level 0 nodes
+    private int[][]                      mUpper = new int[0][];
+    private int                          mEntry = -1;
+    private int                          mMaxLevel = -1;
+
+    private final ThreadLocal<Scratch>   mScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * @param m links per node on the upper levels (twice as many on level 0).
+     * @param efConstruction candidate list size while inserting.
+     * @param threads number of query workers.
+     * @param seed seed of the level assignment; it is saved with the model, so training after
+     * {@link #load(String)} continues the same sequence.
+     */
+    public HnswKNearest(int m, int efConstruction, int threads, long seed) {
+        if (m < 2 || efConstruction < 1)
+            throw new IllegalArgumentException("Invalid HNSW configuration");
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mM = m;
+        mM0 = 2 * m;
+        mEfConstruction = efConstruction;
+        mLevelMult = 1 / Math.log(m);
+        mSeed = seed;
+        mRandom = new Random(seed);
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public HnswKNearest() {
+        this(16, 200, Runtime.getRuntime().availableProcessors(), DEFAULT_SEED);
+    }
+
+    /** @see KNearest#setDefaultK(int) */
+    public void setDefaultK(int k) {
+        mDefaultK = k;
+    }
+
+    public int getDefaultK() {
+        return mDefaultK;
+    }
+
+    /** @see KNearest#setIsClassifier(boolean) */
+    public void setIsClassifier(boolean isClassifier) {
+        mIsClassifier = isClassifier;
+    }
+
+    public boolean getIsClassifier() {
+        return mIsClassifier;
+    }
+
+    /**
+     * Candidate list size of a query, at least k; larger values trade speed for recall.
+     */
+    public void setEf(int ef) {
+        mEf = Math.max(1, ef);
+    }
+
+    public int getEf() {
+        return mEf;
+    }
+
+    /**
+     * Number of queries since creation for which the graph search, also with a wider candidate
+     * list, did not reach k nodes and all samples were scanned instead. It should stay at 0;
+     * a growing count means the graph is fragmented and needs a larger {@code m}.
+     */
+    public long getExactSearchCount() {
+        return mExactSearches.get();
+    }
+
+    /**
+     * Number of trained samples.
+     */
+    public int size() {
+        mLock.readLock().lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public int getVarCount() {
+        return mDims;
+    }
+
+    public boolean isTrained() {
+        return size() > 0;
+    }
+
+    /**
+     * Adds samples to the graph.
+     *
+     * @param samples one CV_32F sample per row.
+     * @param layout must be {@link Ml#ROW_SAMPLE}.
+     * @param responses one response per sample.
+     * @return true.
+     */
+    public boolean train(Mat samples, int layout, Mat responses) {
+        if (layout != Ml.ROW_SAMPLE)
+            throw new IllegalArgumentException("Only ROW_SAMPLE layout is supported");
+        if (samples.rows() != responses.total())
+            throw new IllegalArgumentException("Expected one response per sample");
+        float[] data = MlUtils.floats(samples);
+        float[] resp = MlUtils.floats(responses);
+        mLock.writeLock().lock();
+        try {
+            if (mDims < 0)
+                mDims = samples.cols();
+            else if (samples.cols() != mDims)
+                throw new IllegalArgumentException("Sample length " + samples.cols() + " differs from " + mDims);
+            ensureCapacity(mCount + samples.rows());
+            for (int i = 0; i < samples.rows(); i++)
+                insert(data, i * mDims, resp[i]);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Finds the k nearest trained samples of every sample row.
+     *
+     * @param samples one CV_32F query per row.
+     * @param k number of neighbours.
+     * @param results one prediction per query (n x 1, CV_32F).
+     * @param neighborResponses responses of the neighbours (n x k, CV_32F), may be null.
+     * @param dist squared L2 distances of the neighbours (n x k, CV_32F), may be null.
+     * @return the prediction of the first query.
+     * @see KNearest#findNearest(Mat, int, Mat, Mat, Mat)
+     */
+    public float findNearest(Mat samples, int k, Mat results, Mat neighborResponses, Mat dist) {
+        final float[] queries = MlUtils.floats(samples);
+        final int n = samples.rows();
+        mLock.readLock().lock();
+        try {
+            if (mCount == 0)
+                throw new CvException("The model is not trained");
+            if (samples.cols() != mDims)
+                throw new IllegalArgumentException("Sample length " + samples.cols() + " differs from " + mDims);
+            final int kk = Math.max(1, Math.min(k, mCount));
+            final float[] pred = new float[n];
+            final float[] nbResp = new float[n * kk];
+            final float[] nbDist = new float[n * kk];
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int start = 0; start < n; start += QUERY_CHUNK) {
+                final int from = start, to = Math.min(n, start + QUERY_CHUNK);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Scratch s = mScratch.get();
+                        int[] ids = new int[kk];
+                        for (int q = from; q < to; q++) {
+                            int ef = Math.max(mEf, kk);
+                            int found = search(queries, q * mDims, kk, ef, ids, nbDist, q * kk, s);
+                            // a wider list walks past weak links; a scan is the last resort
+                            if (found < kk && ef < mCount)
+                                found = search(queries, q * mDims, kk, Math.min(4 * ef, mCount), ids, nbDist,
+                                        q * kk, s);
+                            if (found < kk) {
+                                mExactSearches.incrementAndGet();
+                                bruteForce(queries, q * mDims, kk, ids, nbDist, q * kk);
+                            }
+                            for (int j = 0; j < kk; j++)
+                                nbResp[q * kk + j] = mResponses[ids[j]];
+                            pred[q] = predict(nbResp, q * kk, kk);
+                        }
+                        return null;
+                    }
+                });
+            }
+            try {
+                for (Future<Void> f : mPool.invokeAll(tasks))
+                    f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CvException("Search interrupted");
+            } catch (ExecutionException e) {
+                throw new CvException("Search failed: " + e.getCause());
+            }
+            results.create(n, 1, CvType.CV_32F);
+            results.put(0, 0, pred);
+            if (neighborResponses != null) {
+                neighborResponses.create(n, kk, CvType.CV_32F);
+                neighborResponses.put(0, 0, nbResp);
+            }
+            if (dist != null) {
+                dist.create(n, kk, CvType.CV_32F);
+                dist.put(0, 0, nbDist);
+            }
+            return n > 0 ? pred[0] : 0;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public float findNearest(Mat samples, int k, Mat results) {
+        return findNearest(samples, k, results, null, null);
+    }
+
+    /**
+     * Prediction for each sample row with the default k.
+     *
+     * @see StatModel#predict(Mat, Mat, int)
+     */
+    public float predict(Mat samples, Mat results) {
+        return findNearest(samples, mDefaultK, results);
+    }
+
+    /**
+     * Writes the graph, samples and settings to a file.
+     */
+    public void save(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        mLock.readLock().lock();
+        try {
+            file.setLength(0);
+            FileChannel ch = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(mM).putInt(mEfConstruction).putInt(mEf)
+                  .putInt(mDefaultK).putInt(mIsClassifier ? 1 : 0).putInt(mDims).putInt(mCount)
+                  .putInt(mEntry).putInt(mMaxLevel).putInt(0).putLong(mSeed);
+            header.flip();
+            write(ch, header);
+            Block out = new Block(ch);
+            for (int i = 0; i < mCount * Math.max(mDims, 0); i++)
+                out.putFloat(mData[i]);
+            for (int i = 0; i < mCount; i++)
+                out.putFloat(mResponses[i]);
+            for (int i = 0; i < mCount; i++)
+                out.putInt(mLevels[i]);
+            for (int i = 0; i < mCount * (mM0 + 1); i++)
+                out.putInt(mLinks0[i]);
+            for (int i = 0; i < mCount; i++)
+                if (mUpper[i] != null)
+                    for (int v : mUpper[i])
+                        out.putInt(v);
+            out.flush();
+        } finally {
+            mLock.readLock().unlock();
+            file.close();
+        }
+    }
+
+    /**
+     * Reads a model written by {@link #save(String)}, using all cores for queries.
+     */
+    public static HnswKNearest load(String path) throws IOException {
+        return load(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Reads a model written by {@link #save(String)}. The level assignment continues where the
+     * saved model stopped, so later {@link #train(Mat, int, Mat)} calls insert the same graph as
+     * if the model had never been saved.
+     *
+     * @param threads number of query workers.
+     */
+    public static HnswKNearest load(String path, int threads) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel ch = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(48).order(ByteOrder.LITTLE_ENDIAN);
+            read(ch, header);
+            header.flip();
+            int version;
+            if (header.getInt() != MAGIC || ((version = header.getInt()) != 1 && version != VERSION))
+                throw new IOException("Not an HNSW model: " + path);
+            int m = header.getInt(), efConstruction = header.getInt();
+            int ef = header.getInt(), defaultK = header.getInt(), isClassifier = header.getInt();
+            int dims = header.getInt(), count = header.getInt(), entry = header.getInt(), maxLevel = header.getInt();
+            long seed = DEFAULT_SEED;
+            if (version >= 2) {
+                ByteBuffer ext = ByteBuffer.allocate(HEADER_SIZE - 48).order(ByteOrder.LITTLE_ENDIAN);
+                read(ch, ext);
+                ext.flip();
+                seed = ext.getLong();
+            }
+            HnswKNearest model = new HnswKNearest(m, efConstruction, threads, seed);
+            // one level is drawn per inserted sample
+            for (int i = 0; i < count; i++)
+                model.mRandom.nextDouble();
+            model.mEf = ef;
+            model.mDefaultK = defaultK;
+            model.mIsClassifier = isClassifier != 0;
+            model.mDims = dims;
+            model.mEntry = entry;
+            model.mMaxLevel = maxLevel;
+            model.ensureCapacity(count);
+            model.mCount = count;
+            Block in = new Block(ch);
+            for (int i = 0; i < count * Math.max(model.mDims, 0); i++)
+                model.mData[i] = in.getFloat();
+            for (int i = 0; i < count; i++)
+                model.mResponses[i] = in.getFloat();
+            for (int i = 0; i < count; i++)
+                model.mLevels[i] = in.getInt();
+            for (int i = 0; i < count * (model.mM0 + 1); i++)
+                model.mLinks0[i] = in.getInt();
+            for (int i = 0; i < count; i++) {
+                int level = model.mLevels[i];
+                if (level > 0) {
+                    int[] links = new int[level * (m + 1)];
+                    for (int j = 0; j < links.length; j++)
+                        links[j] = in.getInt();
+                    model.mUpper[i] = links;
+                }
+            }
+            return model;
+        } finally {
+            file.close();
+        }
+    }
+
+    public void release() {
+        mPool.shutdown();
+    }
+
+    private void insert(float[] src, int offset, float response) {
+        int id = mCount++;
+        System.arraycopy(src, offset, mData, id * mDims, mDims);
+        mResponses[id] = response;
+        int level = (int) (-Math.log(1 - mRandom.nextDouble()) * mLevelMult);
+        mLevels[id] = level;
+        mUpper[id] = level > 0 ? new int[level * (mM + 1)] : null;
+        if (mEntry < 0) {
+            mEntry = id;
+            mMaxLevel = level;
+            return;
+        }
+
+        Scratch s = mScratch.get();
+        int cur = mEntry;
+        float curDist = distance(mData, id * mDims, cur);
+        for (int l = mMaxLevel; l > level; l--) {
+            int[] nearest = greedy(mData, id * mDims, cur, curDist, l);
+            cur = nearest[0];
+            curDist = Float.intBitsToFloat(nearest[1]);
+        }
+        for (int l = Math.min(level, mMaxLevel); l >= 0; l--) {
+            searchLayer(mData, id * mDims, cur, curDist, mEfConstruction, l, s);
+            int n = s.results.size;
+            long[] sorted = new long[n];
+            for (int i = n - 1; i >= 0; i--)
+                sorted[i] = -s.results.pop();
+            int[] selected = selectNeighbors(sorted, n, mM);
+            setLinks(id, l, selected, selected.length);
+            int maxLinks = l == 0 ? mM0 : mM;
+            for (int nb : selected)
+                addLink(nb, id, l, maxLinks);
+            cur = idOf(sorted[0]);
+            curDist = distOf(sorted[0]);
+        }
+        if (level > mMaxLevel) {
+            mMaxLevel = level;
+            mEntry = id;
+        }
+    }
+
+    // k nearest found through the graph, sorted; returns how many were found
+    private int search(float[] q, int offset, int k, int ef, int[] ids, float[] dists, int out, Scratch s) {
+        int cur = mEntry;
+        float curDist = distance(q, offset, cur);
+        for (int l = mMaxLevel; l > 0; l--) {
+            int[] nearest = greedy(q, offset, cur, curDist, l);
+            cur = nearest[0];
+            curDist = Float.intBitsToFloat(nearest[1]);
+        }
+        searchLayer(q, offset, cur, curDist, ef, 0, s);
+        while (s.results.size > k)
+            s.results.pop();
+        int found = s.results.size;
+        for (int i = found - 1; i >= 0; i--) {
+            long key = -s.results.pop();
+            ids[i] = idOf(key);
+            dists[out + i] = distOf(key);
+        }
+        return found;
+    }
+
+    // exact k nearest over all samples, sorted
+    private void bruteForce(float[] q, int offset, int k, int[] ids, float[] dists, int out) {
+        int size = 0;
+        for (int node = 0; node < mCount; node++) {
+            float d = distance(q, offset, node);
+            if (size == k && d >= dists[out + k - 1])
+                continue;
+            int j = size < k ? size++ : k - 1;
+            while (j > 0 && dists[out + j - 1] > d) {
+                dists[out + j] = dists[out + j - 1];
+                ids[j] = ids[j - 1];
+                j--;
+            }
+            dists[out + j] = d;
+            ids[j] = node;
+        }
+    }
+
+    // walks to the closest node on one level; returns {id, float bits of its distance}
+    private int[] greedy(float[] q, int offset, int cur, float curDist, int level) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] links = links(cur, level);
+            int base = linkBase(cur, level);
+            for (int i = 1; i <= links[base]; i++) {
+                int nb = links[base + i];
+                float d = distance(q, offset, nb);
+                if (d < curDist) {
+                    curDist = d;
+                    cur = nb;
+                    changed = true;
+                }
+            }
+        }
+        return new int[] { cur, Float.floatToIntBits(curDist) };
+    }
+
+    // leaves the ef nearest nodes found from the entry in s.results
+    private void searchLayer(float[] q, int offset, int entry, float entryDist, int ef, int level, Scratch s) {
+        s.newVisit(mCount);
+        s.candidates.clear();
+        s.results.clear();
+        s.visit(entry);
+        s.candidates.push(key(entryDist, entry));
+        s.results.push(-key(entryDist, entry));
+        while (s.candidates.size > 0) {
+            long c = s.candidates.pop();
+            if (distOf(c) > distOf(-s.results.peek()))
+                break;
+            int node = idOf(c);
+            int[] links = links(node, level);
+            int base = linkBase(node, level);
+            for (int i = 1; i <= links[base]; i++) {
+                int nb = links[base + i];
+                if (!s.visit(nb))
+                    continue;
+                float d = distance(q, offset, nb);
+                if (s.results.size < ef || d < distOf(-s.results.peek())) {
+                    s.candidates.push(key(d, nb));
+                    s.results.push(-key(d, nb));
+                    if (s.results.size > ef)
+                        s.results.pop();
+                }
+            }
+        }
+    }
+
+    // heuristic selection: keeps a candidate only if it is closer to the base than to every kept
+    // one, then fills the free slots with the nearest pruned candidates (hnswlib's
+    // keepPrunedConnections) so that nodes in dense clusters do not end up with a few links only
+    private int[] selectNeighbors(long[] sorted, int n, int max) {
+        int[] selected = new int[Math.min(n, max)];
+        boolean[] taken = new boolean[n];
+        int count = 0;
+        for (int i = 0; i < n && count < max; i++) {
+            int c = idOf(sorted[i]);
+            float d = distOf(sorted[i]);
+            boolean keep = true;
+            for (int j = 0; j < count && keep; j++)
+                keep = distance(mData, c * mDims, selected[j]) >= d;
+            if (keep) {
+                selected[count++] = c;
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < n && count < selected.length; i++)
+            if (!taken[i])
+                selected[count++] = idOf(sorted[i]);
+        return selected;
+    }
+
+    private void addLink(int node, int target, int level, int maxLinks) {
+        int[] links = links(node, level);
+        int base = linkBase(node, level);
+        int count = links[base];
+        if (count < maxLinks) {
+            links[base + 1 + count] = target;
+            links[base] = count + 1;
+            return;
+        }
+        long[] cand = new long[count + 1];
+        for (int i = 0; i < count; i++) {
+            int nb = links[base + 1 + i];
+            cand[i] = key(distance(mData, node * mDims, nb), nb);
+        }
+        cand[count] = key(distance(mData, node * mDims, target), target);
+        Arrays.sort(cand);
+        int[] selected = selectNeighbors(cand, cand.length, maxLinks);
+        setLinks(node, level, selected, selected.length);
+    }
+
+    private void setLinks(int node, int level, int[] ids, int count) {
+        int[] links = links(node, level);
+        int base = linkBase(node, level);
+        links[base] = count;
+        System.arraycopy(ids, 0, links, base + 1, count);
+    }
+
+    private int[] links(int node, int level) {
+        return level == 0 ? mLinks0 : mUpper[node];
+    }
+
+    private int linkBase(int node, int level) {
+        return level == 0 ? node * (mM0 + 1) : (level - 1) * (mM + 1);
+    }
+
+    private float distance(float[] q, int offset, int node) {
+        int base = node * mDims;
+        float d = 0;
+        for (int j = 0; j < mDims; j++) {
+            float diff = q[offset + j] - mData[base + j];
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    private float predict(float[] responses, int offset, int k) {
+        if (!mIsClassifier) {
+            float sum = 0;
+            for (int i = 0; i < k; i++)
+                sum += responses[offset + i];
+            return sum / k;
+        }
+        // majority vote, ties go to the class seen first, i.e. the nearer one
+        float best = responses[offset];
+        int bestVotes = 0;
+        for (int i = 0; i < k; i++) {
+            int votes = 0;
+            for (int j = 0; j < k; j++)
+                if (responses[offset + j] == responses[offset + i])
+                    votes++;
+            if (votes > bestVotes) {
+                bestVotes = votes;
+                best = responses[offset + i];
+            }
+        }
+        return best;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= mLevels.length)
+            return;
+        int cap = Math.max(n, Math.max(16, mLevels.length * 2));
+        mData = Arrays.copyOf(mData, cap * Math.max(mDims, 0));
+        mResponses = Arrays.copyOf(mResponses, cap);
+        mLevels = Arrays.copyOf(mLevels, cap);
+        mLinks0 = Arrays.copyOf(mLinks0, cap * (mM0 + 1));
+        mUpper = Arrays.copyOf(mUpper, cap);
+    }
+
+    // distances are non-negative, so their float bits order like the values
+    private static long key(float dist, int id) {
+        return ((long) Float.floatToIntBits(dist) << 32) | (id & 0xffffffffL);
+    }
+
+    private static int idOf(long key) {
+        return (int) key;
+    }
+
+    private static float distOf(long key) {
+        return Float.intBitsToFloat((int) (key >>> 32));
+    }
+
+    private static void write(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            ch.write(buf);
+    }
+
+    private static void read(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            if (ch.read(buf) < 0)
+                throw new IOException("Unexpected end of file");
+    }
+
+    /** Binary min-heap of longs. */
+    private static final class LongHeap {
+        long[] data = new long[64];
+        int    size;
+
+        void clear() {
+            size = 0;
+        }
+
+        long peek() {
+            return data[0];
+        }
+
+        void push(long v) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (data[parent] <= v)
+                    break;
+                data[i] = data[parent];
+                i = parent;
+            }
+            data[i] = v;
+        }
+
+        long pop() {
+            long top = data[0];
+            long last = data[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && data[child + 1] < data[child])
+                    child++;
+                if (data[child] >= last)
+                    break;
+                data[i] = data[child];
+                i = child;
+            }
+            if (size > 0)
+                data[i] = last;
+            return top;
+        }
+    }
+
+    /** Per-thread search state. */
+    private static final class Scratch {
+        final LongHeap candidates = new LongHeap();
+        // max-heap of results, stored negated
+        final LongHeap results = new LongHeap();
+        int[]          marks = new int[0];
+        int            stamp;
+
+        void newVisit(int n) {
+            if (marks.length < n) {
+                marks = new int[Math.max(n, marks.length * 2)];
+                stamp = 0;
+            }
+            if (++stamp == 0) {
+                Arrays.fill(marks, 0);
+                stamp = 1;
+            }
+        }
+
+        // marks the node and returns whether it was not visited yet
+        boolean visit(int node) {
+            if (marks[node] == stamp)
+                return false;
+            marks[node] = stamp;
+            return true;
+        }
+    }
+
+    /** Buffered little-endian reads and writes on a file channel. */
+    private static final class Block {
+        private final FileChannel mChannel;
+        private final ByteBuffer  mBuffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+        Block(FileChannel channel) {
+            mChannel = channel;
+            mBuffer.limit(0);
+        }
+
+        void putInt(int v) throws IOException {
+            reserveWrite();
+            mBuffer.putInt(v);
+        }
+
+        void putFloat(float v) throws IOException {
+            reserveWrite();
+            mBuffer.putFloat(v);
+        }
+
+        int getInt() throws IOException {
+            reserveRead();
+            return mBuffer.getInt();
+        }
+
+        float getFloat() throws IOException {
+            reserveRead();
+            return mBuffer.getFloat();
+        }
+
+        void flush() throws IOException {
+            mBuffer.flip();
+            write(mChannel, mBuffer);
+            mBuffer.clear();
+        }
+
+        private void reserveWrite() throws IOException {
+            if (mBuffer.limit() == 0)
+                mBuffer.clear();
+            if (mBuffer.remaining() < 4)
+                flush();
+        }
+
+        private void reserveRead() throws IOException {
+            if (mBuffer.remaining() >= 4)
+                return;
+            mBuffer.compact();
+            while (mBuffer.position() < 4)
+                if (mChannel.read(mBuffer) < 0)
+                    throw new IOException("Unexpected end of file");
+            mBuffer.flip();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package org.opencv.ml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Training data backed by a memory-mapped sample file.
+ * <p>
+ * The file holds a 32-byte header followed by the samples (row-major little-endian float32) and
+ * their responses (float32, {@code responseCols} per sample); it is written with {@link Writer}.
+ * Samples are mapped in windows of at most 1 GiB and paged in by the OS as they are read, so the
+ * data set may be larger than memory. The train/test split of
+ * {@link #setTrainTestSplitRatio(double, boolean)} is an index permutation, no sample is copied;
+ * sample matrices are only built for the rows asked for, e.g. chunk by chunk with
+ * {@link #getTrainSamples(int, int)} or as a native {@link TrainData} with
+ * {@link #toTrainData(int, int)}.
+ * <p>
+ * The native models keep their training set in memory while training, so a model that cannot
+ * be updated incrementally can only be trained on a subset that fits in memory.
+ */
+public class MappedTrainData {
+    private static final int  MAGIC       = 0x4454434f; // "OCTD"
+    private static final int  VERSION     = 1;
+    private static final int  HEADER      = 32;
+    private static final long WINDOW      = 1L << 30;
+
+    private final RandomAccessFile mFile;
+    private final long             mRows;
+    private final int              mCols;
+    private final int              mResponseCols;
+    private final long             mRowsPerWindow;
+    private final FloatBuffer[]    mWindows;
+    private final FloatBuffer      mResponses;
+
+    private int[]                  mOrder;
+    private int                    mTrainCount;
+
+    /**
+     * Streams samples into a new data file.
+     */
+    public static class Writer {
+        private final RandomAccessFile mFile;
+        private final FileChannel      mChannel;
+        private final int              mCols;
+        private final int              mResponseCols;
+        private final RandomAccessFile mResponseTmp;
+        private final String           mTmpPath;
+        private long                   mRows;
+
+        /**
+         * @param path file to create.
+         * @param cols values per sample.
+         * @param responseCols response values per sample.
+         */
+        public Writer(String path, int cols, int responseCols) throws IOException {
+            if (cols < 1 || responseCols < 1)
+                throw new IllegalArgumentException("Sample and response lengths must be positive");
+            mFile = new RandomAccessFile(path, "rw");
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            mChannel.position(HEADER);
+            mCols = cols;
+            mResponseCols = responseCols;
+            mTmpPath = path + ".responses";
+            mResponseTmp = new RandomAccessFile(mTmpPath, "rw");
+            mResponseTmp.setLength(0);
+        }
+
+        /**
+         * Appends samples (one per row) and their responses.
+         */
+        public void append(Mat samples, Mat responses) throws IOException {
+            if (samples.cols() != mCols || samples.rows() * mResponseCols != responses.total())
+                throw new IllegalArgumentException("Sample or response size does not match the file");
+            writeFloats(mChannel, MlUtils.floats(samples));
+            writeFloats(mResponseTmp.getChannel(), MlUtils.floats(responses));
+            mRows += samples.rows();
+        }
+
+        /**
+         * Writes the header and the responses and closes the file.
+         */
+        public void close() throws IOException {
+            try {
+                FileChannel tmp = mResponseTmp.getChannel();
+                long size = tmp.size();
+                long pos = 0;
+                while (pos < size)
+                    pos += tmp.transferTo(pos, size - pos, mChannel);
+                ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putLong(mRows).putInt(mCols).putInt(mResponseCols);
+                header.clear();
+                mChannel.position(0);
+                while (header.hasRemaining())
+                    mChannel.write(header);
+            } finally {
+                mResponseTmp.close();
+                new File(mTmpPath).delete();
+                mFile.close();
+            }
+        }
+    }
+
+    /**
+     * Opens a data file written by {@link Writer}.
+     */
+    public MappedTrainData(String path) throws IOException {
+        mFile = new RandomAccessFile(path, "r");
+        try {
+            FileChannel ch = mFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining())
+                if (ch.read(header, header.position()) < 0)
+                    throw new IOException("Truncated header: " + path);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not a sample file: " + path);
+            mRows = header.getLong();
+            mCols = header.getInt();
+            mResponseCols = header.getInt();
+            if (mRows > Integer.MAX_VALUE || mCols < 1 || mResponseCols < 1)
+                throw new IOException("Unsupported sample file layout: " + path);
+            long rowBytes = 4L * mCols;
+            if (ch.size() < HEADER + mRows * rowBytes + 4L * mRows * mResponseCols)
+                throw new IOException("Truncated sample file: " + path);
+
+            mRowsPerWindow = Math.max(1, WINDOW / rowBytes);
+            int windows = (int) ((mRows + mRowsPerWindow - 1) / mRowsPerWindow);
+            mWindows = new FloatBuffer[windows];
+            for (int w = 0; w < windows; w++) {
+                long first = w * mRowsPerWindow;
+                long rows = Math.min(mRowsPerWindow, mRows - first);
+                mWindows[w] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER + first * rowBytes, rows * rowBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            mResponses = ch.map(FileChannel.MapMode.READ_ONLY, HEADER + mRows * rowBytes, 4L * mRows * mResponseCols)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mOrder = new int[(int) mRows];
+        for (int i = 0; i < mOrder.length; i++)
+            mOrder[i] = i;
+        mTrainCount = mOrder.length;
+    }
+
+    /** @see TrainData#getNSamples() */
+    public int getNSamples() {
+        return (int) mRows;
+    }
+
+    /** @see TrainData#getNVars() */
+    public int getNVars() {
+        return mCols;
+    }
+
+    public int getResponseCols() {
+        return mResponseCols;
+    }
+
+    /** @see TrainData#getNTrainSamples() */
+    public int getNTrainSamples() {
+        return mTrainCount;
+    }
+
+    /** @see TrainData#getNTestSamples() */
+    public int getNTestSamples() {
+        return mOrder.length - mTrainCount;
+    }
+
+    /**
+     * Uses the first {@code ratio} of the (optionally shuffled) samples for training and the rest
+     * for testing.
+     *
+     * @see TrainData#setTrainTestSplitRatio(double, boolean)
+     */
+    public void setTrainTestSplitRatio(double ratio, boolean shuffle) {
+        if (ratio < 0 || ratio > 1)
+            throw new IllegalArgumentException("Split ratio must be in [0, 1]");
+        for (int i = 0; i < mOrder.length; i++)
+            mOrder[i] = i;
+        if (shuffle)
+            shuffleTrainTest();
+        mTrainCount = (int) Math.round(ratio * mOrder.length);
+    }
+
+    public void setTrainTestSplitRatio(double ratio) {
+        setTrainTestSplitRatio(ratio, true);
+    }
+
+    /** @see TrainData#shuffleTrainTest() */
+    public void shuffleTrainTest() {
+        Random rnd = new Random();
+        for (int i = mOrder.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int t = mOrder[i];
+            mOrder[i] = mOrder[j];
+            mOrder[j] = t;
+        }
+    }
+
+    /**
+     * Index of the {@code i}-th training sample in the file.
+     */
+    public int getTrainSampleIdx(int i) {
+        return mOrder[i];
+    }
+
+    /**
+     * Index of the {@code i}-th test sample in the file.
+     */
+    public int getTestSampleIdx(int i) {
+        return mOrder[mTrainCount + i];
+    }
+
+    /**
+     * Reads one sample into {@code buf}.
+     *
+     * @see TrainData#getSample(Mat, int, float)
+     */
+    public void getSample(int sidx, float[] buf) {
+        FloatBuffer src = mWindows[(int) (sidx / mRowsPerWindow)].duplicate();
+        src.position((int) (sidx % mRowsPerWindow) * mCols);
+        src.get(buf, 0, mCols);
+    }
+
+    /**
+     * Reads the responses of one sample into {@code buf}.
+     */
+    public void getResponse(int sidx, float[] buf) {
+        FloatBuffer src = mResponses.duplicate();
+        src.position(sidx * mResponseCols);
+        src.get(buf, 0, mResponseCols);
+    }
+
+    /**
+     * Training samples {@code [from, from + count)} as a {@code count x nvars} CV_32F matrix.
+     */
+    public Mat getTrainSamples(int from, int count) {
+        return gather(from, count, mCols, true);
+    }
+
+    /**
+     * All training samples; materializes them in memory.
+     *
+     * @see TrainData#getTrainSamples()
+     */
+    public Mat getTrainSamples() {
+        return getTrainSamples(0, mTrainCount);
+    }
+
+    public Mat getTrainResponses(int from, int count) {
+        return gather(from, count, mResponseCols, false);
+    }
+
+    /** @see TrainData#getTrainResponses() */
+    public Mat getTrainResponses() {
+        return getTrainResponses(0, mTrainCount);
+    }
+
+    /**
+     * Test samples {@code [from, from + count)}.
+     */
+    public Mat getTestSamples(int from, int count) {
+        return gather(mTrainCount + from, count, mCols, true);
+    }
+
+    /** @see TrainData#getTestSamples() */
+    public Mat getTestSamples() {
+        return getTestSamples(0, getNTestSamples());
+    }
+
+    public Mat getTestResponses(int from, int count) {
+        return gather(mTrainCount + from, count, mResponseCols, false);
+    }
+
+    /** @see TrainData#getTestResponses() */
+    public Mat getTestResponses() {
+        return getTestResponses(0, getNTestSamples());
+    }
+
+    /**
+     * Native training data for the training samples {@code [from, from + count)}, e.g. for
+     * chunked updates of models that support {@code UPDATE_MODEL}/{@code UPDATE_WEIGHTS}.
+     */
+    public TrainData toTrainData(int from, int count) {
+        Mat samples = getTrainSamples(from, count);
+        Mat responses = getTrainResponses(from, count);
+        TrainData data = TrainData.create(samples, Ml.ROW_SAMPLE, responses);
+        samples.release();
+        responses.release();
+        return data;
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    // rows mOrder[pos .. pos + count) of the samples or responses
+    private Mat gather(int pos, int count, int cols, boolean samples) {
+        if (pos < 0 || count < 0 || pos + count > mOrder.length)
+            throw new IndexOutOfBoundsException("Rows " + pos + ".." + (pos + count) + " out of " + mOrder.length);
+        float[] data = new float[count * cols];
+        float[] row = new float[cols];
+        for (int i = 0; i < count; i++) {
+            if (samples)
+                getSample(mOrder[pos + i], row);
+            else
+                getResponse(mOrder[pos + i], row);
+            System.arraycopy(row, 0, data, i * cols, cols);
+        }
+        Mat m = new Mat(count, cols, CvType.CV_32F);
+        if (count > 0)
+            m.put(0, 0, data);
+        return m;
+    }
+
+    private static void writeFloats(FileChannel ch, float[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4 * data.length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.asFloatBuffer().put(data);
+        while (buf.hasRemaining())
+            ch.write(buf);
+    }
+}
@@ -0,0 +1,26 @@
+package org.opencv.ml;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+// helpers shared by the Java-side models
+class MlUtils {
+    private MlUtils() {
+    }
+
+    // all elements of a matrix of any depth as floats, row by row
+    static float[] floats(Mat m) {
+        float[] data = new float[(int) m.total() * m.channels()];
+        if (data.length == 0)
+            return data;
+        if (m.depth() == CvType.CV_32F && m.isContinuous()) {
+            m.get(0, 0, data);
+        } else {
+            Mat f = new Mat();
+            m.convertTo(f, CvType.CV_32F);
+            f.get(0, 0, data);
+            f.release();
+        }
+        return data;
+    }
+}
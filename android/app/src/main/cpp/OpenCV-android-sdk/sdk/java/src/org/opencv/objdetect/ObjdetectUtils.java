@@ -0,0 +1,21 @@
+package org.opencv.objdetect;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+// helpers shared by the detectors of this package
+class ObjdetectUtils {
+    private ObjdetectUtils() {
+    }
+
+    // the image itself when it already has one channel, otherwise its conversion into gray
+    static Mat toGray(Mat image, Mat gray) {
+        if (image.channels() == 3)
+            Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+        else if (image.channels() == 4)
+            Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGRA2GRAY);
+        else
+            return image;
+        return gray;
+    }
+}
@@ -0,0 +1,59 @@
+package org.opencv.objdetect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.PyramidCache;
+
+/**
+ * Multi-scale {@link HOGDescriptor} detection over the levels of a shared {@link PyramidCache},
+ * the equivalent of {@link HOGDescriptor#detectMultiScale} with the pyramid scale factor as
+ * {@code scale}.
+ */
+public final class PyramidHOG {
+    private static final double GROUP_EPS = 0.2;
+
+    private PyramidHOG() {}
+
+    /**
+     * @param foundLocations detected windows in frame coordinates.
+     * @param groupCounts number of raw windows merged into each result, or empty without grouping.
+     * @param groupThreshold as in {@link HOGDescriptor#detectMultiScale}, 0 disables grouping.
+     */
+    public static void detectMultiScale(HOGDescriptor hog, PyramidCache pyramid, MatOfRect foundLocations,
+                                        MatOfInt groupCounts, double hitThreshold, Size winStride,
+                                        int groupThreshold) {
+        Size win = hog.get_winSize();
+        int levels = pyramid.getLevelCount(win);
+        List<Rect> rects = new ArrayList<Rect>();
+        MatOfPoint locations = new MatOfPoint();
+        MatOfDouble weights = new MatOfDouble();
+        for (int k = 0; k < levels; k++) {
+            Mat level = pyramid.getLevel(k);
+            double scale = pyramid.getScale(k);
+            hog.detect(level, locations, weights, hitThreshold, winStride, new Size());
+            for (Point p : locations.toArray())
+                rects.add(new Rect((int) Math.round(p.x * scale), (int) Math.round(p.y * scale),
+                        (int) Math.round(win.width * scale), (int) Math.round(win.height * scale)));
+        }
+        locations.release();
+        weights.release();
+
+        groupCounts.release();
+        if (rects.isEmpty()) {
+            foundLocations.release();
+            return;
+        }
+        foundLocations.fromList(rects);
+        if (groupThreshold > 0)
+            Objdetect.groupRectangles(foundLocations, groupCounts, groupThreshold, GROUP_EPS);
+    }
+}
@@ -0,0 +1,321 @@
+package org.opencv.objdetect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.PyramidCache;
+
+/**
+ * Cascade detector that searches only around the previous frame's detections.
+ * <p>
+ * Scale levels are scanned independently, each with a single-scale
+ * {@link CascadeClassifier#detectMultiScale} call, on a work-stealing pool; the raw hits of all
+ * levels are then grouped once, as the native implementation does. Between full sweeps (every
+ * {@link #setFullFrameInterval(int)} frames, or whenever nothing was found) only the expanded
+ * regions around the previous detections are scanned, and only at the levels matching the
+ * previous object sizes. Levels come from a {@link PyramidCache}, so several regions on one
+ * level share a single resize, and a pyramid built for other detectors of the same frame can be
+ * passed to {@link #detect(PyramidCache, MatOfRect)} directly.
+ * <p>
+ * A cascade cannot be used from several threads at once, so one classifier per worker is
+ * loaded from the same file.
+ */
+public class RoiCascadeDetector {
+    private static final double GROUP_EPS = 0.2;
+
+    private final ForkJoinPool                      mPool;
+    private final BlockingQueue<CascadeClassifier>  mClassifiers;
+    private final Size                              mWindow;
+    private double                                  mScaleFactor = 1.1;
+    private int                                     mMinNeighbors = 3;
+    private Size                                    mMinSize = new Size();
+    private Size                                    mMaxSize = new Size();
+    private int                                     mFullFrameInterval = 15;
+    private double                                  mRoiMargin = 0.5;
+    private double                                  mScaleTolerance = 0.3;
+
+    private final Mat                               mGray = new Mat();
+    private PyramidCache                            mPyramid;
+    private final List<Rect>                        mPrevious = new ArrayList<Rect>();
+    private int                                     mFramesSinceFull;
+    private long                                    mFullFrameRuns;
+    private long                                    mRoiRuns;
+
+    /**
+     * @param cascadeFile cascade file loaded once per worker thread.
+     * @param threads number of workers.
+     */
+    public RoiCascadeDetector(String cascadeFile, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mClassifiers = new ArrayBlockingQueue<CascadeClassifier>(threads);
+        for (int i = 0; i < threads; i++) {
+            CascadeClassifier c = new CascadeClassifier(cascadeFile);
+            if (c.empty())
+                throw new CvException("Failed to load cascade " + cascadeFile);
+            mClassifiers.add(c);
+        }
+        mWindow = mClassifiers.peek().getOriginalWindowSize();
+        mPool = new ForkJoinPool(threads);
+        mPyramid = PyramidCache.resize(mScaleFactor);
+    }
+
+    public RoiCascadeDetector(String cascadeFile) {
+        this(cascadeFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** @see CascadeClassifier#detectMultiScale(Mat, MatOfRect, double) */
+    public void setScaleFactor(double scaleFactor) {
+        if (scaleFactor <= 1)
+            throw new IllegalArgumentException("Scale factor must be greater than 1");
+        mScaleFactor = scaleFactor;
+        mPyramid.release();
+        mPyramid = PyramidCache.resize(scaleFactor);
+    }
+
+    public double getScaleFactor() {
+        return mScaleFactor;
+    }
+
+    /** @see CascadeClassifier#detectMultiScale(Mat, MatOfRect, double, int) */
+    public void setMinNeighbors(int minNeighbors) {
+        mMinNeighbors = minNeighbors;
+    }
+
+    public int getMinNeighbors() {
+        return mMinNeighbors;
+    }
+
+    /**
+     * Object size limits, an empty size means no limit.
+     */
+    public void setSizeRange(Size minSize, Size maxSize) {
+        mMinSize = minSize.clone();
+        mMaxSize = maxSize.clone();
+    }
+
+    /**
+     * Maximum number of frames between two full-frame sweeps.
+     */
+    public void setFullFrameInterval(int interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("Interval must be positive");
+        mFullFrameInterval = interval;
+    }
+
+    public int getFullFrameInterval() {
+        return mFullFrameInterval;
+    }
+
+    /**
+     * Margin added on each side of a previous detection, relative to its size.
+     */
+    public void setRoiMargin(double margin) {
+        mRoiMargin = margin;
+    }
+
+    public double getRoiMargin() {
+        return mRoiMargin;
+    }
+
+    /**
+     * Relative size change between frames covered by the scale search of a region.
+     */
+    public void setScaleTolerance(double tolerance) {
+        mScaleTolerance = tolerance;
+    }
+
+    public double getScaleTolerance() {
+        return mScaleTolerance;
+    }
+
+    /**
+     * Detects objects in the next frame of a sequence.
+     */
+    public void detect(Mat image, MatOfRect objects) {
+        mPyramid.setFrame(ObjdetectUtils.toGray(image, mGray));
+        try {
+            detect(mPyramid, objects);
+        } finally {
+            mPyramid.release();
+        }
+    }
+
+    /**
+     * Detects objects in the next frame of a sequence, using the levels of a shared pyramid.
+     *
+     * @param pyramid {@link PyramidCache#PYR_RESIZE} pyramid of the grayscale frame with the
+     * same scale factor as this detector.
+     */
+    public void detect(PyramidCache pyramid, MatOfRect objects) {
+        if (pyramid.getMode() != PyramidCache.PYR_RESIZE || pyramid.getScaleFactor() != mScaleFactor)
+            throw new IllegalArgumentException("Pyramid does not match the detector scale factor");
+        if (pyramid.getFrame().channels() != 1)
+            throw new IllegalArgumentException("Pyramid must be built on a grayscale frame");
+        List<Integer> levels = scanLevels(pyramid);
+        List<Callable<List<Rect>>> tasks = new ArrayList<Callable<List<Rect>>>();
+
+        boolean full = mPrevious.isEmpty() || mFramesSinceFull + 1 >= mFullFrameInterval;
+        if (full) {
+            mFramesSinceFull = 0;
+            mFullFrameRuns++;
+            for (int k : levels) {
+                Mat level = pyramid.getLevel(k);
+                tasks.add(scanTask(level, new Rect(0, 0, level.cols(), level.rows()), pyramid.getScale(k)));
+            }
+        } else {
+            mFramesSinceFull++;
+            mRoiRuns++;
+            for (int k : levels) {
+                double factor = pyramid.getScale(k);
+                double objSize = mWindow.width * factor;
+                Size levelSize = pyramid.levelSize(k);
+                List<Rect> rois = new ArrayList<Rect>();
+                for (Rect p : mPrevious) {
+                    if (objSize < p.width / (1 + mScaleTolerance) || objSize > p.width * (1 + mScaleTolerance))
+                        continue;
+                    Rect roi = levelRoi(p, factor, levelSize);
+                    if (roi != null)
+                        rois.add(roi);
+                }
+                if (rois.isEmpty())
+                    continue;
+                Mat level = pyramid.getLevel(k);
+                for (Rect roi : mergeOverlapping(rois))
+                    tasks.add(scanTask(level, roi, factor));
+            }
+        }
+
+        List<Rect> hits = new ArrayList<Rect>();
+        try {
+            for (Future<List<Rect>> f : mPool.invokeAll(tasks))
+                hits.addAll(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Cascade detection interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Cascade detection failed: " + e.getCause());
+        }
+
+        if (hits.isEmpty())
+            objects.release();
+        else
+            objects.fromList(hits);
+        if (mMinNeighbors > 0 && !hits.isEmpty()) {
+            MatOfInt weights = new MatOfInt();
+            Objdetect.groupRectangles(objects, weights, mMinNeighbors, GROUP_EPS);
+            weights.release();
+        }
+        mPrevious.clear();
+        mPrevious.addAll(objects.toList());
+    }
+
+    /**
+     * Forgets the previous detections so that the next frame gets a full sweep.
+     */
+    public void reset() {
+        mPrevious.clear();
+        mFramesSinceFull = 0;
+    }
+
+    public long getFullFrameRuns() {
+        return mFullFrameRuns;
+    }
+
+    public long getRoiRuns() {
+        return mRoiRuns;
+    }
+
+    public void release() {
+        mPool.shutdown();
+        mPyramid.release();
+        mGray.release();
+    }
+
+    // levels of the native detectMultiScale scale loop that fall in the size range
+    private List<Integer> scanLevels(PyramidCache pyramid) {
+        List<Integer> levels = new ArrayList<Integer>();
+        int count = pyramid.getLevelCount(mWindow);
+        for (int k = 0; k < count; k++) {
+            double factor = pyramid.getScale(k);
+            double w = mWindow.width * factor, h = mWindow.height * factor;
+            if (!mMaxSize.empty() && (w > mMaxSize.width || h > mMaxSize.height))
+                break;
+            if (w >= mMinSize.width && h >= mMinSize.height)
+                levels.add(k);
+        }
+        return levels;
+    }
+
+    private Rect levelRoi(Rect p, double factor, Size levelSize) {
+        double mx = p.width * mRoiMargin, my = p.height * mRoiMargin;
+        int w = (int) levelSize.width, h = (int) levelSize.height;
+        int x0 = Math.max(0, (int) Math.floor((p.x - mx) / factor));
+        int y0 = Math.max(0, (int) Math.floor((p.y - my) / factor));
+        int x1 = Math.min(w, (int) Math.ceil((p.x + p.width + mx) / factor));
+        int y1 = Math.min(h, (int) Math.ceil((p.y + p.height + my) / factor));
+        if (x1 - x0 < mWindow.width || y1 - y0 < mWindow.height)
+            return null;
+        return new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private static List<Rect> mergeOverlapping(List<Rect> rois) {
+        List<Rect> merged = new ArrayList<Rect>(rois);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            outer:
+            for (int i = 0; i < merged.size(); i++) {
+                for (int j = i + 1; j < merged.size(); j++) {
+                    Rect a = merged.get(i), b = merged.get(j);
+                    if (a.x < b.x + b.width && b.x < a.x + a.width && a.y < b.y + b.height && b.y < a.y + a.height) {
+                        int x0 = Math.min(a.x, b.x), y0 = Math.min(a.y, b.y);
+                        int x1 = Math.max(a.x + a.width, b.x + b.width), y1 = Math.max(a.y + a.height, b.y + b.height);
+                        merged.set(i, new Rect(x0, y0, x1 - x0, y1 - y0));
+                        merged.remove(j);
+                        changed = true;
+                        break outer;
+                    }
+                }
+            }
+        }
+        return merged;
+    }
+
+    private Callable<List<Rect>> scanTask(final Mat level, final Rect roi, final double factor) {
+        return new Callable<List<Rect>>() {
+            @Override
+            public List<Rect> call() throws InterruptedException {
+                CascadeClassifier cascade = mClassifiers.take();
+                Mat sub = level.submat(roi);
+                MatOfRect found = new MatOfRect();
+                try {
+                    // minNeighbors = 0 returns the raw hits, grouping happens across all levels
+                    cascade.detectMultiScale(sub, found, mScaleFactor, 0, 0, mWindow, mWindow);
+                } finally {
+                    mClassifiers.add(cascade);
+                }
+                Rect[] raw = found.toArray();
+                found.release();
+                sub.release();
+                List<Rect> hits = new ArrayList<Rect>(raw.length);
+                for (Rect r : raw)
+                    hits.add(new Rect((int) Math.round((r.x + roi.x) * factor), (int) Math.round((r.y + roi.y) * factor),
+                            (int) Math.round(r.width * factor), (int) Math.round(r.height * factor)));
+                return hits;
+            }
+        };
+    }
+}
@@ -0,0 +1,405 @@
+package org.opencv.objdetect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Tiled, multi-threaded front-end for ArUco marker, QR code and barcode detection on large frames.
+ * <p>
+ * The frame is converted to grayscale once and split into overlapping tiles that are processed
+ * in parallel, one native detector per worker. Detections are shifted back to frame coordinates
+ * and duplicates found in two tiles of an overlap are merged. The overlap should be at least
+ * the largest expected code size so that every code is seen whole by some tile.
+ * <p>
+ * Several ArUco dictionaries are handled in one pass: candidate quads are thresholded and
+ * extracted once with the first dictionary, and the candidates it rejects are decoded against
+ * the other dictionaries in Java (the multi-dictionary detector constructor has no Java binding).
+ */
+public class TiledCodeDetector {
+
+    public static class Marker {
+        /** Index of the dictionary in the list given to the constructor. */
+        public final int     dictIndex;
+        public final int     id;
+        /** Four corners in clockwise order, frame coordinates. */
+        public final Point[] corners;
+
+        Marker(int dictIndex, int id, Point[] corners) {
+            this.dictIndex = dictIndex;
+            this.id = id;
+            this.corners = corners;
+        }
+    }
+
+    public static class Code {
+        public final String  text;
+        /** Four corners in frame coordinates. */
+        public final Point[] corners;
+
+        Code(String text, Point[] corners) {
+            this.text = text;
+            this.corners = corners;
+        }
+    }
+
+    private final List<Dictionary>              mDictionaries;
+    private final DetectorParameters            mParams;
+    private final int                           mThreads;
+    private final ForkJoinPool                  mPool;
+    private final BlockingQueue<ArucoDetector>  mArucoDetectors;
+    private BlockingQueue<QRCodeDetector>       mQrDetectors;
+    private BlockingQueue<BarcodeDetector>      mBarcodeDetectors;
+    private int                                 mTileSize = 1024;
+    private int                                 mOverlap = 192;
+    private final Mat                           mGray = new Mat();
+
+    /**
+     * @param dictionaries ArUco dictionaries searched in every pass, at least one.
+     * @param params ArUco detector parameters shared by all dictionaries.
+     * @param threads number of workers.
+     */
+    public TiledCodeDetector(List<Dictionary> dictionaries, DetectorParameters params, int threads) {
+        if (dictionaries.isEmpty())
+            throw new IllegalArgumentException("At least one dictionary is required");
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mDictionaries = new ArrayList<Dictionary>(dictionaries);
+        mParams = params;
+        mThreads = threads;
+        mPool = new ForkJoinPool(threads);
+        mArucoDetectors = new ArrayBlockingQueue<ArucoDetector>(threads);
+        for (int i = 0; i < threads; i++)
+            mArucoDetectors.add(new ArucoDetector(mDictionaries.get(0), params));
+    }
+
+    public TiledCodeDetector(List<Dictionary> dictionaries, DetectorParameters params) {
+        this(dictionaries, params, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Tile side and overlap between neighbouring tiles, in pixels.
+     */
+    public void setTiling(int tileSize, int overlap) {
+        if (overlap < 0 || tileSize <= overlap)
+            throw new IllegalArgumentException("Tile size must be larger than the overlap");
+        mTileSize = tileSize;
+        mOverlap = overlap;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    public int getOverlap() {
+        return mOverlap;
+    }
+
+    /**
+     * Detects the markers of all dictionaries.
+     */
+    public List<Marker> detectMarkers(Mat image) {
+        final Mat gray = ObjdetectUtils.toGray(image, mGray);
+        List<Callable<List<Marker>>> tasks = new ArrayList<Callable<List<Marker>>>();
+        for (final Rect tile : tiles(gray.cols(), gray.rows())) {
+            tasks.add(new Callable<List<Marker>>() {
+                @Override
+                public List<Marker> call() throws InterruptedException {
+                    return detectMarkersInTile(gray, tile);
+                }
+            });
+        }
+        List<Marker> merged = new ArrayList<Marker>();
+        for (Marker m : runAll(tasks)) {
+            int dup = findMarker(merged, m);
+            if (dup < 0)
+                merged.add(m);
+            else if (area(m.corners) > area(merged.get(dup).corners))
+                merged.set(dup, m);
+        }
+        return merged;
+    }
+
+    /**
+     * Detects and decodes QR codes with {@link QRCodeDetector#detectAndDecodeMulti}.
+     */
+    public List<Code> detectAndDecodeQR(Mat image) {
+        synchronized (this) {
+            if (mQrDetectors == null) {
+                mQrDetectors = new ArrayBlockingQueue<QRCodeDetector>(mThreads);
+                for (int i = 0; i < mThreads; i++)
+                    mQrDetectors.add(new QRCodeDetector());
+            }
+        }
+        return detectCodes(image, mQrDetectors);
+    }
+
+    /**
+     * Detects and decodes barcodes with {@link BarcodeDetector#detectAndDecodeMulti}.
+     */
+    public List<Code> detectAndDecodeBarcodes(Mat image) {
+        synchronized (this) {
+            if (mBarcodeDetectors == null) {
+                mBarcodeDetectors = new ArrayBlockingQueue<BarcodeDetector>(mThreads);
+                for (int i = 0; i < mThreads; i++)
+                    mBarcodeDetectors.add(new BarcodeDetector());
+            }
+        }
+        return detectCodes(image, mBarcodeDetectors);
+    }
+
+    public void release() {
+        mPool.shutdown();
+        mGray.release();
+    }
+
+    private <T extends GraphicalCodeDetector> List<Code> detectCodes(Mat image, final BlockingQueue<T> detectors) {
+        final Mat gray = ObjdetectUtils.toGray(image, mGray);
+        List<Callable<List<Code>>> tasks = new ArrayList<Callable<List<Code>>>();
+        for (final Rect tile : tiles(gray.cols(), gray.rows())) {
+            tasks.add(new Callable<List<Code>>() {
+                @Override
+                public List<Code> call() throws InterruptedException {
+                    T detector = detectors.take();
+                    Mat sub = gray.submat(tile);
+                    Mat points = new Mat();
+                    List<String> texts = new ArrayList<String>();
+                    try {
+                        detector.detectAndDecodeMulti(sub, texts, points);
+                    } finally {
+                        detectors.add(detector);
+                    }
+                    List<Code> codes = new ArrayList<Code>();
+                    // 4 corners of 2 floats per code, read in one call
+                    float[] all = new float[(int) points.total() * points.channels()];
+                    if (all.length > 0)
+                        points.get(0, 0, all);
+                    float[] pts = new float[8];
+                    for (int i = 0; i < texts.size() && 8 * i + 8 <= all.length; i++) {
+                        if (texts.get(i).isEmpty())
+                            continue;
+                        System.arraycopy(all, 8 * i, pts, 0, 8);
+                        codes.add(new Code(texts.get(i), toPoints(pts, tile)));
+                    }
+                    points.release();
+                    sub.release();
+                    return codes;
+                }
+            });
+        }
+        List<Code> merged = new ArrayList<Code>();
+        for (Code c : runAll(tasks)) {
+            int dup = -1;
+            for (int i = 0; i < merged.size() && dup < 0; i++)
+                if (merged.get(i).text.equals(c.text) && close(merged.get(i).corners, c.corners))
+                    dup = i;
+            if (dup < 0)
+                merged.add(c);
+            else if (area(c.corners) > area(merged.get(dup).corners))
+                merged.set(dup, c);
+        }
+        return merged;
+    }
+
+    private List<Marker> detectMarkersInTile(Mat gray, Rect tile) throws InterruptedException {
+        ArucoDetector detector = mArucoDetectors.take();
+        Mat sub = gray.submat(tile);
+        List<Mat> corners = new ArrayList<Mat>();
+        List<Mat> rejected = new ArrayList<Mat>();
+        Mat ids = new Mat();
+        try {
+            detector.detectMarkers(sub, corners, ids, rejected);
+        } finally {
+            mArucoDetectors.add(detector);
+        }
+
+        List<Marker> markers = new ArrayList<Marker>();
+        float[] pts = new float[8];
+        int[] id = new int[1];
+        for (int i = 0; i < corners.size(); i++) {
+            corners.get(i).get(0, 0, pts);
+            ids.get(i, 0, id);
+            markers.add(new Marker(0, id[0], toPoints(pts, tile)));
+        }
+        if (mDictionaries.size() > 1) {
+            Mat warped = new Mat();
+            Mat binary = new Mat();
+            for (Mat candidate : rejected) {
+                candidate.get(0, 0, pts);
+                for (int d = 1; d < mDictionaries.size(); d++) {
+                    Marker m = identify(sub, pts, d, tile, warped, binary);
+                    if (m != null) {
+                        markers.add(m);
+                        break;
+                    }
+                }
+            }
+            warped.release();
+            binary.release();
+        }
+
+        for (Mat m : corners)
+            m.release();
+        for (Mat m : rejected)
+            m.release();
+        ids.release();
+        sub.release();
+        return markers;
+    }
+
+    // decodes one candidate quad against a dictionary, as the native candidate identification does
+    private Marker identify(Mat gray, float[] pts, int dictIndex, Rect tile, Mat warped, Mat binary) {
+        Dictionary dict = mDictionaries.get(dictIndex);
+        int markerSize = dict.get_markerSize();
+        int border = mParams.get_markerBorderBits();
+        int cells = markerSize + 2 * border;
+        int cellSize = mParams.get_perspectiveRemovePixelPerCell();
+        int cellMargin = (int) (cellSize * mParams.get_perspectiveRemoveIgnoredMarginPerCell());
+        int side = cells * cellSize;
+
+        MatOfPoint2f src = new MatOfPoint2f(new Point(pts[0], pts[1]), new Point(pts[2], pts[3]),
+                new Point(pts[4], pts[5]), new Point(pts[6], pts[7]));
+        MatOfPoint2f dst = new MatOfPoint2f(new Point(0, 0), new Point(side - 1, 0),
+                new Point(side - 1, side - 1), new Point(0, side - 1));
+        Mat h = Imgproc.getPerspectiveTransform(src, dst);
+        Imgproc.warpPerspective(gray, warped, h, new Size(side, side), Imgproc.INTER_NEAREST);
+        src.release();
+        dst.release();
+        h.release();
+
+        Mat bits = new Mat(cells, cells, CvType.CV_8UC1);
+        byte[] bitData = new byte[cells * cells];
+        Mat inner = warped.submat(cellSize / 2, side - cellSize / 2, cellSize / 2, side - cellSize / 2);
+        MatOfDouble mean = new MatOfDouble(), stddev = new MatOfDouble();
+        Core.meanStdDev(inner, mean, stddev);
+        double meanValue = mean.toArray()[0];
+        boolean flat = stddev.toArray()[0] < mParams.get_minOtsuStdDev();
+        inner.release();
+        mean.release();
+        stddev.release();
+        if (flat) {
+            // no contrast inside the quad: every cell takes the global mean
+            byte v = (byte) (meanValue > 127 ? 1 : 0);
+            for (int i = 0; i < bitData.length; i++)
+                bitData[i] = v;
+        } else {
+            Imgproc.threshold(warped, binary, 125, 255, Imgproc.THRESH_BINARY | Imgproc.THRESH_OTSU);
+            int inside = cellSize - 2 * cellMargin;
+            for (int y = 0; y < cells; y++) {
+                for (int x = 0; x < cells; x++) {
+                    Mat square = binary.submat(y * cellSize + cellMargin, y * cellSize + cellMargin + inside,
+                            x * cellSize + cellMargin, x * cellSize + cellMargin + inside);
+                    bitData[y * cells + x] = (byte) (Core.countNonZero(square) > inside * inside / 2 ? 1 : 0);
+                    square.release();
+                }
+            }
+        }
+        bits.put(0, 0, bitData);
+
+        int borderErrors = 0;
+        for (int y = 0; y < cells; y++)
+            for (int x = 0; x < cells; x++)
+                if ((y < border || y >= cells - border || x < border || x >= cells - border) && bitData[y * cells + x] != 0)
+                    borderErrors++;
+        Marker result = null;
+        if (borderErrors <= (int) (markerSize * markerSize * mParams.get_maxErroneousBitsInBorderRate())) {
+            Mat onlyBits = bits.submat(border, cells - border, border, cells - border);
+            int[] idx = new int[1], rotation = new int[1];
+            if (dict.identify(onlyBits, idx, rotation, mParams.get_errorCorrectionRate())) {
+                Point[] corners = toPoints(pts, tile);
+                Point[] rotated = new Point[4];
+                for (int i = 0; i < 4; i++)
+                    rotated[i] = corners[(i + 4 - rotation[0]) % 4];
+                result = new Marker(dictIndex, idx[0], rotated);
+            }
+            onlyBits.release();
+        }
+        bits.release();
+        return result;
+    }
+
+    private <T> List<T> runAll(List<Callable<List<T>>> tasks) {
+        List<T> all = new ArrayList<T>();
+        try {
+            for (Future<List<T>> f : mPool.invokeAll(tasks))
+                all.addAll(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Tiled detection interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Tiled detection failed: " + e.getCause());
+        }
+        return all;
+    }
+
+    private List<Rect> tiles(int width, int height) {
+        List<Rect> tiles = new ArrayList<Rect>();
+        int step = mTileSize - mOverlap;
+        for (int y = 0; y < height; y += step) {
+            int h = Math.min(mTileSize, height - y);
+            for (int x = 0; x < width; x += step) {
+                int w = Math.min(mTileSize, width - x);
+                tiles.add(new Rect(x, y, w, h));
+                if (x + w >= width)
+                    break;
+            }
+            if (y + h >= height)
+                break;
+        }
+        return tiles;
+    }
+
+    private static Point[] toPoints(float[] pts, Rect tile) {
+        Point[] p = new Point[4];
+        for (int i = 0; i < 4; i++)
+            p[i] = new Point(pts[2 * i] + tile.x, pts[2 * i + 1] + tile.y);
+        return p;
+    }
+
+    private static int findMarker(List<Marker> markers, Marker m) {
+        for (int i = 0; i < markers.size(); i++) {
+            Marker o = markers.get(i);
+            if (o.dictIndex == m.dictIndex && o.id == m.id && close(o.corners, m.corners))
+                return i;
+        }
+        return -1;
+    }
+
+    // same object seen from two tiles: centres closer than half the side of the smaller quad
+    private static boolean close(Point[] a, Point[] b) {
+        double ax = 0, ay = 0, bx = 0, by = 0;
+        for (int i = 0; i < 4; i++) {
+            ax += a[i].x / 4;
+            ay += a[i].y / 4;
+            bx += b[i].x / 4;
+            by += b[i].y / 4;
+        }
+        double side = Math.sqrt(Math.min(area(a), area(b)));
+        return Math.hypot(ax - bx, ay - by) < side / 2;
+    }
+
+    private static double area(Point[] p) {
+        double s = 0;
+        for (int i = 0; i < 4; i++) {
+            Point a = p[i], b = p[(i + 1) % 4];
+            s += a.x * b.y - b.x * a.y;
+        }
+        return Math.abs(s) / 2;
+    }
+}
@@ -0,0 +1,377 @@
+package org.opencv.photo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Incremental Mertens exposure fusion for brackets that arrive one frame at a time.
+ * <p>
+ * Instead of holding the whole stack like {@link MergeMertens#process(List, Mat)}, every frame is
+ * folded into the result as soon as it arrives: its Mertens weight map (contrast, saturation and
+ * well-exposedness) is computed, and its Laplacian pyramid, weighted by the Gaussian pyramid of
+ * the weights, is added level by level to an accumulator pyramid together with the weight
+ * pyramid. {@link #process(Mat)} normalizes each level by the accumulated weights and collapses
+ * the pyramid. Memory stays at one result pyramid and one weight pyramid whatever the number of
+ * frames. The per-level normalization replaces the normalization of the full-resolution weights
+ * of the batch version, which gives nearly the same result.
+ * <p>
+ * Each frame is aligned to the previous one with {@link AlignMTB#calculateShift(Mat, Mat)}, the
+ * shifts being chained back to the first frame; only the previous gray frame is kept for that.
+ * With {@link #setReuseShifts(boolean)} the shifts of the previous burst are reused for a burst
+ * taken from the same position. {@link #submit(Mat)} processes the frames on a background
+ * thread, in order, so capture of the next frame overlaps with fusion.
+ */
+public class ExposureFusionStream {
+    private final ExecutorService    mExecutor = Executors.newSingleThreadExecutor();
+    private final AlignMTB           mAlign;
+    private float                    mContrastWeight = 1;
+    private float                    mSaturationWeight = 1;
+    private float                    mExposureWeight;
+    private boolean                  mAlignFrames = true;
+    private boolean                  mReuseShifts;
+
+    private final List<Mat>          mResult = new ArrayList<Mat>();
+    private final List<Mat>          mWeightSum = new ArrayList<Mat>();
+    private final List<Point>        mShifts = new ArrayList<Point>();
+    private final Mat                mPrevGray = new Mat();
+    private int                      mCount;
+    private int                      mChannels;
+    private final List<Future<Void>> mPending = new ArrayList<Future<Void>>();
+
+    public ExposureFusionStream(AlignMTB align) {
+        mAlign = align;
+    }
+
+    public ExposureFusionStream() {
+        this(Photo.createAlignMTB());
+    }
+
+    /** @see MergeMertens#setContrastWeight(float) */
+    public void setContrastWeight(float weight) {
+        mContrastWeight = weight;
+    }
+
+    public float getContrastWeight() {
+        return mContrastWeight;
+    }
+
+    /** @see MergeMertens#setSaturationWeight(float) */
+    public void setSaturationWeight(float weight) {
+        mSaturationWeight = weight;
+    }
+
+    public float getSaturationWeight() {
+        return mSaturationWeight;
+    }
+
+    /** @see MergeMertens#setExposureWeight(float) */
+    public void setExposureWeight(float weight) {
+        mExposureWeight = weight;
+    }
+
+    public float getExposureWeight() {
+        return mExposureWeight;
+    }
+
+    /**
+     * Whether frames are aligned to the previous frame before fusion (default true).
+     */
+    public void setAlign(boolean align) {
+        mAlignFrames = align;
+    }
+
+    public boolean getAlign() {
+        return mAlignFrames;
+    }
+
+    /**
+     * Reuses the shift of the same frame of the previous burst instead of computing it, for
+     * bursts taken from a fixed position.
+     */
+    public void setReuseShifts(boolean reuse) {
+        mReuseShifts = reuse;
+    }
+
+    public boolean getReuseShifts() {
+        return mReuseShifts;
+    }
+
+    /**
+     * Adds the next frame of the burst.
+     *
+     * @param frame 8-bit gray, BGR or 4-channel frame, same size as the first frame.
+     */
+    public synchronized void add(Mat frame) {
+        if (frame.depth() != CvType.CV_8U)
+            throw new IllegalArgumentException("Frames must be 8-bit");
+        Mat src = frame, tmp = null;
+        if (frame.channels() == 4) {
+            tmp = new Mat();
+            Imgproc.cvtColor(frame, tmp, Imgproc.COLOR_BGRA2BGR);
+            src = tmp;
+        } else if (frame.channels() != 1 && frame.channels() != 3) {
+            throw new IllegalArgumentException("Unsupported channel count " + frame.channels());
+        }
+        if (mCount == 0) {
+            mChannels = src.channels();
+            allocate(src.size());
+        } else if (src.channels() != mChannels || src.cols() != mResult.get(0).cols() || src.rows() != mResult.get(0).rows()) {
+            if (tmp != null)
+                tmp.release();
+            throw new IllegalArgumentException("Frame does not match the first frame of the burst");
+        }
+
+        Mat aligned = align(src);
+        if (tmp != null && aligned != tmp)
+            tmp.release();
+        Mat img = new Mat();
+        aligned.convertTo(img, CvType.CV_32F, 1.0 / 255);
+        if (aligned != frame)
+            aligned.release();
+        Mat weight = weights(img);
+        accumulate(img, weight);
+        mCount++;
+    }
+
+    /**
+     * Adds the next frame on the background thread. The frame must not be modified until the
+     * returned future is done.
+     */
+    public synchronized Future<Void> submit(final Mat frame) {
+        Future<Void> f = mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                add(frame);
+                return null;
+            }
+        });
+        mPending.add(f);
+        return f;
+    }
+
+    /**
+     * Number of frames fused so far in the current burst.
+     */
+    public synchronized int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * Shift of every frame of the current burst relative to its first frame.
+     */
+    public synchronized List<Point> getShifts() {
+        List<Point> shifts = new ArrayList<Point>();
+        for (int i = 0; i < mCount && i < mShifts.size(); i++)
+            shifts.add(mShifts.get(i).clone());
+        return shifts;
+    }
+
+    /**
+     * Waits for the submitted frames, writes the fused image and starts a new burst.
+     *
+     * @param dst CV_32F fused image with values around [0, 1], as {@link MergeMertens} gives.
+     */
+    public void process(Mat dst) {
+        List<Future<Void>> pending;
+        synchronized (this) {
+            pending = new ArrayList<Future<Void>>(mPending);
+            mPending.clear();
+        }
+        try {
+            for (Future<Void> f : pending)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Exposure fusion interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Exposure fusion failed: " + e.getCause());
+        }
+        synchronized (this) {
+            if (mCount == 0)
+                throw new IllegalStateException("No frames added");
+            int levels = mResult.size();
+            for (int l = 0; l < levels; l++) {
+                Mat w = expand(mWeightSum.get(l));
+                Core.divide(mResult.get(l), w, mResult.get(l));
+                if (w != mWeightSum.get(l))
+                    w.release();
+            }
+            Mat up = new Mat();
+            for (int l = levels - 1; l > 0; l--) {
+                Imgproc.pyrUp(mResult.get(l), up, mResult.get(l - 1).size());
+                Core.add(mResult.get(l - 1), up, mResult.get(l - 1));
+            }
+            up.release();
+            mResult.get(0).copyTo(dst);
+            mCount = 0;
+            mPrevGray.release();
+            releasePyramids();
+        }
+    }
+
+    /**
+     * Drops the current burst.
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mPrevGray.release();
+        mShifts.clear();
+        releasePyramids();
+    }
+
+    public void release() {
+        mExecutor.shutdown();
+        reset();
+    }
+
+    // shifts the frame to the first frame of the burst, chaining the shifts between neighbours
+    private Mat align(Mat src) {
+        if (!mAlignFrames)
+            return src;
+        Mat gray = new Mat();
+        if (src.channels() == 3)
+            Imgproc.cvtColor(src, gray, Imgproc.COLOR_BGR2GRAY);
+        else
+            src.copyTo(gray);
+        Point shift;
+        if (mCount == 0) {
+            shift = new Point(0, 0);
+        } else if (mReuseShifts && mCount < mShifts.size()) {
+            shift = mShifts.get(mCount);
+        } else {
+            Point step = mAlign.calculateShift(mPrevGray, gray);
+            Point prev = mShifts.get(mCount - 1);
+            shift = new Point(prev.x + step.x, prev.y + step.y);
+        }
+        if (mCount < mShifts.size())
+            mShifts.set(mCount, shift);
+        else
+            mShifts.add(shift);
+        gray.copyTo(mPrevGray);
+        gray.release();
+        if (shift.x == 0 && shift.y == 0)
+            return src;
+        Mat shifted = new Mat();
+        mAlign.shiftMat(src, shifted, shift);
+        return shifted;
+    }
+
+    // Mertens weights: contrast^wc * saturation^ws * well-exposedness^we
+    private Mat weights(Mat img) {
+        List<Mat> planes = new ArrayList<Mat>();
+        Core.split(img, planes);
+        Mat gray = new Mat(), contrast = new Mat();
+        if (mChannels == 3)
+            Imgproc.cvtColor(img, gray, Imgproc.COLOR_RGB2GRAY);
+        else
+            img.copyTo(gray);
+        Imgproc.Laplacian(gray, contrast, CvType.CV_32F);
+        Core.absdiff(contrast, Scalar.all(0), contrast);
+        Core.pow(contrast, mContrastWeight, contrast);
+        gray.release();
+
+        Mat weight = contrast, tmp = new Mat();
+        if (mChannels == 3) {
+            Mat mean = new Mat(), saturation = Mat.zeros(img.size(), CvType.CV_32F);
+            Core.add(planes.get(0), planes.get(1), mean);
+            Core.add(mean, planes.get(2), mean);
+            Core.multiply(mean, Scalar.all(1.0 / 3), mean);
+            for (Mat p : planes) {
+                Core.subtract(p, mean, tmp);
+                Core.multiply(tmp, tmp, tmp);
+                Core.add(saturation, tmp, saturation);
+            }
+            Core.sqrt(saturation, saturation);
+            Core.pow(saturation, mSaturationWeight, saturation);
+            Core.multiply(weight, saturation, weight);
+            mean.release();
+            saturation.release();
+        }
+
+        Mat wellexp = new Mat(img.size(), CvType.CV_32F, Scalar.all(1));
+        for (Mat p : planes) {
+            Core.subtract(p, Scalar.all(0.5), tmp);
+            Core.multiply(tmp, tmp, tmp, -1 / 0.08);
+            Core.exp(tmp, tmp);
+            Core.multiply(wellexp, tmp, wellexp);
+            p.release();
+        }
+        Core.pow(wellexp, mExposureWeight, wellexp);
+        Core.multiply(weight, wellexp, weight);
+        Core.add(weight, Scalar.all(1e-12), weight);
+        wellexp.release();
+        tmp.release();
+        return weight;
+    }
+
+    // adds the weighted Laplacian pyramid of img and the Gaussian pyramid of the weights
+    private void accumulate(Mat img, Mat weight) {
+        int levels = mResult.size();
+        Mat cur = img, w = weight, up = new Mat();
+        for (int l = 0; l < levels; l++) {
+            Mat next = null, nextW = null;
+            if (l < levels - 1) {
+                next = new Mat();
+                Imgproc.pyrDown(cur, next);
+                Imgproc.pyrUp(next, up, cur.size());
+                Core.subtract(cur, up, cur);
+                nextW = new Mat();
+                Imgproc.pyrDown(w, nextW);
+            }
+            Mat w3 = expand(w);
+            Imgproc.accumulateProduct(cur, w3, mResult.get(l));
+            Imgproc.accumulate(w, mWeightSum.get(l));
+            if (w3 != w)
+                w3.release();
+            cur.release();
+            w.release();
+            cur = next;
+            w = nextW;
+        }
+        up.release();
+    }
+
+    private void allocate(Size size) {
+        releasePyramids();
+        int maxLevel = (int) (Math.log(Math.min(size.width, size.height)) / Math.log(2));
+        int type = CvType.makeType(CvType.CV_32F, mChannels);
+        double width = size.width, height = size.height;
+        for (int l = 0; l <= maxLevel; l++) {
+            mResult.add(Mat.zeros((int) height, (int) width, type));
+            mWeightSum.add(Mat.zeros((int) height, (int) width, CvType.CV_32F));
+            width = Math.ceil(width / 2);
+            height = Math.ceil(height / 2);
+        }
+    }
+
+    private Mat expand(Mat w) {
+        if (mChannels == 1)
+            return w;
+        Mat w3 = new Mat();
+        Imgproc.cvtColor(w, w3, Imgproc.COLOR_GRAY2BGR);
+        return w3;
+    }
+
+    private void releasePyramids() {
+        for (Mat m : mResult)
+            m.release();
+        for (Mat m : mWeightSum)
+            m.release();
+        mResult.clear();
+        mWeightSum.clear();
+    }
+}
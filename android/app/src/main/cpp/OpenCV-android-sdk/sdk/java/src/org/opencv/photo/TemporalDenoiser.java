@@ -0,0 +1,288 @@
+package org.opencv.photo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Streaming temporal denoiser for live video, built on
+ * {@link Photo#fastNlMeansDenoisingMulti(List, Mat, int, int, float, int, int)}.
+ * <p>
+ * The filter denoises the frame in the middle of its window, so the output lags the input by
+ * {@code temporalWindowSize / 2} frames (see {@link #getDelay()}): each call adds a frame and
+ * returns the frame that many steps older, denoised with as many past as future frames. The
+ * frames of the last window are kept in a ring, already converted and scaled, so every frame is
+ * prepared once and no window is rebuilt from the source frames.
+ * <p>
+ * Color frames (BGR, or 4-channel camera frames) are denoised on their luma plane only; the
+ * chroma planes are smoothed by subsampling them by 2 and upsampling, as in 4:2:0 video. With
+ * {@link #setScale(double)} below 1 the luma is denoised at reduced resolution and the correction
+ * (denoised minus input) is upsampled and applied to the full-resolution luma, which keeps the
+ * edges sharp. Frames must be 8-bit.
+ */
+public class TemporalDenoiser {
+    private final int    mWindow;
+    private final Mat[]  mRing;
+    private final Mat[]  mFull;
+    private int          mHead;
+    private int          mCount;
+    private float        mH;
+    private int          mTemplateWindowSize = 7;
+    private int          mSearchWindowSize = 21;
+    private double       mScale = 1.0;
+    private double       mLastTime;
+    private Size         mFrameSize;
+    private int          mFrameType = -1;
+
+    private final Mat       mBgr = new Mat();
+    private final Mat       mYCrCb = new Mat();
+    private final List<Mat> mPlanes = new ArrayList<Mat>();
+    private final Mat       mLuma = new Mat();
+    private final Mat       mDenoised = new Mat();
+    private final Mat       mCorrection = new Mat();
+    private final Mat       mUpsampled = new Mat();
+    private final Mat       mChroma = new Mat();
+    private final Mat       mNoMask = new Mat();
+
+    /**
+     * @param temporalWindowSize number of frames each frame is denoised with, odd.
+     * @param h filter strength, see {@link Photo#fastNlMeansDenoisingMulti(List, Mat, int, int, float)}.
+     */
+    public TemporalDenoiser(int temporalWindowSize, float h) {
+        if (temporalWindowSize < 1 || temporalWindowSize % 2 == 0)
+            throw new IllegalArgumentException("Temporal window size must be odd and positive");
+        mWindow = temporalWindowSize;
+        mRing = new Mat[temporalWindowSize];
+        mFull = new Mat[temporalWindowSize];
+        for (int i = 0; i < mRing.length; i++) {
+            mRing[i] = new Mat();
+            mFull[i] = new Mat();
+        }
+        mH = h;
+    }
+
+    public TemporalDenoiser() {
+        this(5, 3);
+    }
+
+    public int getTemporalWindowSize() {
+        return mWindow;
+    }
+
+    /**
+     * Number of frames the output lags the input, {@code temporalWindowSize / 2}.
+     */
+    public int getDelay() {
+        return mWindow / 2;
+    }
+
+    public void setH(float h) {
+        mH = h;
+    }
+
+    public float getH() {
+        return mH;
+    }
+
+    /**
+     * Template patch size, odd (default 7).
+     */
+    public void setTemplateWindowSize(int size) {
+        if (size < 1 || size % 2 == 0)
+            throw new IllegalArgumentException("Template window size must be odd and positive");
+        mTemplateWindowSize = size;
+    }
+
+    public int getTemplateWindowSize() {
+        return mTemplateWindowSize;
+    }
+
+    /**
+     * Search window size, odd (default 21); the cost grows with its area.
+     */
+    public void setSearchWindowSize(int size) {
+        if (size < 1 || size % 2 == 0)
+            throw new IllegalArgumentException("Search window size must be odd and positive");
+        mSearchWindowSize = size;
+    }
+
+    public int getSearchWindowSize() {
+        return mSearchWindowSize;
+    }
+
+    /**
+     * Resolution the luma is denoised at, relative to the frame, in (0, 1]. Changing it restarts
+     * the sequence.
+     */
+    public void setScale(double scale) {
+        if (scale <= 0 || scale > 1)
+            throw new IllegalArgumentException("Scale must be in (0, 1]");
+        if (scale != mScale)
+            reset();
+        mScale = scale;
+    }
+
+    public double getScale() {
+        return mScale;
+    }
+
+    /**
+     * Adds a frame and denoises the one {@link #getDelay()} frames older. While the ring holds no
+     * more than {@link #getDelay()} frames there is nothing to return yet and {@code dst} is left
+     * untouched; until it is full the window is narrowed to the past frames available.
+     *
+     * @param frame 8-bit gray, BGR or 4-channel frame.
+     * @param dst denoised frame, same size and type as {@code frame}.
+     * @return whether a frame was written to {@code dst}.
+     */
+    public boolean apply(Mat frame, Mat dst) {
+        if (frame.depth() != CvType.CV_8U)
+            throw new IllegalArgumentException("Frames must be 8-bit");
+        long start = System.nanoTime();
+        int channels = frame.channels();
+        boolean color = channels == 3 || channels == 4;
+        if (!color && channels != 1)
+            throw new IllegalArgumentException("Unsupported channel count " + channels);
+        if (mCount > 0 && (frame.type() != mFrameType || !frame.size().equals(mFrameSize)))
+            reset();
+        mFrameType = frame.type();
+        mFrameSize = frame.size();
+        Size work = mScale < 1
+                ? new Size(Math.max(1, Math.round(frame.cols() * mScale)), Math.max(1, Math.round(frame.rows() * mScale)))
+                : mFrameSize;
+
+        // the oldest slot of the ring is reused for the new frame: the full-resolution frame is
+        // kept in mFull (as YCrCb for color frames) and its luma at the working scale in mRing
+        int slot = mHead;
+        if (color) {
+            Mat bgr = frame;
+            if (channels == 4) {
+                Imgproc.cvtColor(frame, mBgr, Imgproc.COLOR_BGRA2BGR);
+                bgr = mBgr;
+            }
+            Imgproc.cvtColor(bgr, mFull[slot], Imgproc.COLOR_BGR2YCrCb);
+            Core.extractChannel(mFull[slot], mLuma, 0);
+            scaleLuma(mLuma, work, mRing[slot]);
+        } else if (mScale < 1) {
+            frame.copyTo(mFull[slot]);
+            scaleLuma(mFull[slot], work, mRing[slot]);
+        } else {
+            frame.copyTo(mRing[slot]);
+        }
+        mHead = (mHead + 1) % mRing.length;
+        mCount = Math.min(mCount + 1, mRing.length);
+
+        // the frame getDelay() steps back, with r frames on each side of it
+        int delay = getDelay();
+        if (mCount <= delay) {
+            mLastTime = (System.nanoTime() - start) / 1e6;
+            return false;
+        }
+        int r = Math.min(delay, mCount - 1 - delay);
+        List<Mat> window = new ArrayList<Mat>(2 * r + 1);
+        for (int age = delay + r; age >= delay - r; age--)
+            window.add(mRing[index(age)]);
+        Photo.fastNlMeansDenoisingMulti(window, mDenoised, r, 2 * r + 1, mH, mTemplateWindowSize, mSearchWindowSize);
+
+        int centre = index(delay);
+        Mat luma = mRing[centre];
+        if (color) {
+            releasePlanes();
+            Core.split(mFull[centre], mPlanes);
+            luma = mPlanes.get(0);
+        } else if (mScale < 1) {
+            luma = mFull[centre];
+        }
+
+        Mat outLuma = mDenoised;
+        if (mScale < 1) {
+            Core.subtract(mDenoised, mRing[centre], mCorrection, mNoMask, CvType.CV_16S);
+            Imgproc.resize(mCorrection, mUpsampled, luma.size(), 0, 0, Imgproc.INTER_LINEAR);
+            Core.add(luma, mUpsampled, mCorrection, mNoMask, CvType.CV_8U);
+            outLuma = mCorrection;
+        }
+
+        if (!color) {
+            outLuma.copyTo(dst);
+        } else {
+            outLuma.copyTo(mPlanes.get(0));
+            Size half = new Size(Math.max(1, luma.cols() / 2), Math.max(1, luma.rows() / 2));
+            for (int i = 1; i < 3; i++) {
+                Imgproc.resize(mPlanes.get(i), mChroma, half, 0, 0, Imgproc.INTER_AREA);
+                Imgproc.resize(mChroma, mPlanes.get(i), luma.size(), 0, 0, Imgproc.INTER_LINEAR);
+            }
+            Core.merge(mPlanes, mYCrCb);
+            if (channels == 4) {
+                Imgproc.cvtColor(mYCrCb, mBgr, Imgproc.COLOR_YCrCb2BGR);
+                Imgproc.cvtColor(mBgr, dst, Imgproc.COLOR_BGR2BGRA);
+            } else {
+                Imgproc.cvtColor(mYCrCb, dst, Imgproc.COLOR_YCrCb2BGR);
+            }
+        }
+        mLastTime = (System.nanoTime() - start) / 1e6;
+        return true;
+    }
+
+    /**
+     * Number of frames in the ring, up to {@code temporalWindowSize}; the filter runs at full
+     * strength once the ring is full.
+     */
+    public int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * Duration of the last {@link #apply(Mat, Mat)} in milliseconds.
+     */
+    public double getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * Forgets the previous frames, e.g. after a scene cut.
+     */
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    public void release() {
+        reset();
+        for (int i = 0; i < mRing.length; i++) {
+            mRing[i].release();
+            mFull[i].release();
+        }
+        releasePlanes();
+        mBgr.release();
+        mYCrCb.release();
+        mLuma.release();
+        mDenoised.release();
+        mCorrection.release();
+        mUpsampled.release();
+        mChroma.release();
+        mNoMask.release();
+    }
+
+    // ring slot of the frame added age calls ago
+    private int index(int age) {
+        return (mHead - 1 - age + 2 * mRing.length) % mRing.length;
+    }
+
+    private void scaleLuma(Mat luma, Size work, Mat dst) {
+        if (mScale < 1)
+            Imgproc.resize(luma, dst, work, 0, 0, Imgproc.INTER_AREA);
+        else
+            luma.copyTo(dst);
+    }
+
+    private void releasePlanes() {
+        for (Mat p : mPlanes)
+            p.release();
+        mPlanes.clear();
+    }
+}
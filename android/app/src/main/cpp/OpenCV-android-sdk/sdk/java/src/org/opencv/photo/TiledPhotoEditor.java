@@ -0,0 +1,345 @@
+package org.opencv.photo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Mask-bounded versions of the local editing functions of {@link Photo} for large images.
+ * <p>
+ * The native functions allocate several full-size buffers and, for the gradient-domain ones,
+ * solve over the whole image. Here only the bounding boxes of the mask regions, grown by a
+ * margin and merged where they overlap, are processed. Regions larger than
+ * {@link #setTileSize(int)} are cut into tiles overlapping by {@link #setTileOverlap(int)}
+ * pixels; the tiles are processed in parallel and blended with linear ramps across the
+ * overlaps. Passing the source image as destination edits it in place, so no full-size buffer
+ * is allocated at all.
+ * <p>
+ * Inpainting is local and tiles well. The Poisson solves of {@link #textureFlattening},
+ * {@link #colorChange} and {@link #illuminationChange} take their boundary from the tile edges,
+ * so masks larger than a tile are an approximation whose seams are hidden by the blending.
+ * {@link #seamlessClone} is solved on the destination rectangle of the mask as the native
+ * function does, without tiling, but without its full-size copies.
+ */
+public class TiledPhotoEditor {
+    private final ForkJoinPool mPool;
+    private int                mTileSize = 1024;
+    private int                mTileOverlap = 32;
+    private int                mMargin = 16;
+
+    /** Processes one tile; the tile has the same size as the source crop. */
+    private interface TileOp {
+        void apply(Mat src, Mat mask, Mat dst);
+    }
+
+    /**
+     * @param threads number of workers.
+     */
+    public TiledPhotoEditor(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public TiledPhotoEditor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Maximum tile width and height (default 1024).
+     */
+    public void setTileSize(int size) {
+        if (size < 16)
+            throw new IllegalArgumentException("Tile size must be at least 16");
+        mTileSize = size;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    /**
+     * Overlap between neighbouring tiles, blended across (default 32).
+     */
+    public void setTileOverlap(int overlap) {
+        mTileOverlap = Math.max(0, overlap);
+    }
+
+    public int getTileOverlap() {
+        return mTileOverlap;
+    }
+
+    /**
+     * Context added around the mask regions (default 16).
+     */
+    public void setMargin(int margin) {
+        mMargin = Math.max(0, margin);
+    }
+
+    public int getMargin() {
+        return mMargin;
+    }
+
+    /**
+     * @see Photo#inpaint(Mat, Mat, Mat, double, int)
+     */
+    public void inpaint(Mat src, Mat inpaintMask, Mat dst, final double inpaintRadius, final int flags) {
+        process(src, inpaintMask, dst, Math.max(mMargin, (int) Math.ceil(inpaintRadius) + 1), new TileOp() {
+            @Override
+            public void apply(Mat s, Mat m, Mat d) {
+                Photo.inpaint(s, m, d, inpaintRadius, flags);
+            }
+        });
+    }
+
+    /**
+     * @see Photo#textureFlattening(Mat, Mat, Mat, float, float, int)
+     */
+    public void textureFlattening(Mat src, Mat mask, Mat dst, final float lowThreshold, final float highThreshold,
+            final int kernelSize) {
+        process(src, mask, dst, mMargin, new TileOp() {
+            @Override
+            public void apply(Mat s, Mat m, Mat d) {
+                Photo.textureFlattening(s, m, d, lowThreshold, highThreshold, kernelSize);
+            }
+        });
+    }
+
+    public void textureFlattening(Mat src, Mat mask, Mat dst) {
+        textureFlattening(src, mask, dst, 30, 45, 3);
+    }
+
+    /**
+     * @see Photo#colorChange(Mat, Mat, Mat, float, float, float)
+     */
+    public void colorChange(Mat src, Mat mask, Mat dst, final float redMul, final float greenMul, final float blueMul) {
+        process(src, mask, dst, mMargin, new TileOp() {
+            @Override
+            public void apply(Mat s, Mat m, Mat d) {
+                Photo.colorChange(s, m, d, redMul, greenMul, blueMul);
+            }
+        });
+    }
+
+    /**
+     * @see Photo#illuminationChange(Mat, Mat, Mat, float, float)
+     */
+    public void illuminationChange(Mat src, Mat mask, Mat dst, final float alpha, final float beta) {
+        process(src, mask, dst, mMargin, new TileOp() {
+            @Override
+            public void apply(Mat s, Mat m, Mat d) {
+                Photo.illuminationChange(s, m, d, alpha, beta);
+            }
+        });
+    }
+
+    /**
+     * Seamless cloning restricted to the mask rectangle. {@code blend} may be {@code dst} to
+     * clone in place.
+     *
+     * @see Photo#seamlessClone(Mat, Mat, Mat, Point, Mat, int)
+     */
+    public void seamlessClone(Mat src, Mat dst, Mat mask, Point p, Mat blend, int flags) {
+        // the wide variants do not crop to the mask and an empty mask selects everything
+        if (flags >= Photo.NORMAL_CLONE_WIDE || mask.empty()) {
+            Photo.seamlessClone(src, dst, mask, p, blend, flags);
+            return;
+        }
+        Mat gray = mask, tmp = null;
+        if (mask.channels() > 1) {
+            tmp = new Mat();
+            Imgproc.cvtColor(mask, tmp, mask.channels() == 3 ? Imgproc.COLOR_BGR2GRAY : Imgproc.COLOR_BGRA2GRAY);
+            gray = tmp;
+        }
+        // the native function ignores the outermost pixels of the mask
+        Rect inner = new Rect(1, 1, Math.max(0, gray.cols() - 2), Math.max(0, gray.rows() - 2));
+        Mat innerMask = gray.submat(inner);
+        Rect rs = Imgproc.boundingRect(innerMask);
+        innerMask.release();
+        if (rs.width == 0 || rs.height == 0) {
+            if (tmp != null)
+                tmp.release();
+            if (blend != dst)
+                dst.copyTo(blend);
+            return;
+        }
+        rs.x += 1;
+        rs.y += 1;
+        Rect rd = new Rect((int) p.x - rs.width / 2, (int) p.y - rs.height / 2, rs.width, rs.height);
+        if (rd.x < 0 || rd.y < 0 || rd.x + rd.width > dst.cols() || rd.y + rd.height > dst.rows()) {
+            if (tmp != null)
+                tmp.release();
+            throw new IllegalArgumentException("Cloned region " + rd + " is outside the destination");
+        }
+
+        // one pixel of context keeps the border handling of the native function
+        Rect cs = new Rect(rs.x - 1, rs.y - 1, rs.width + 2, rs.height + 2);
+        Mat srcCrop = src.submat(cs), maskCrop = gray.submat(cs), dstCrop = dst.submat(rd), out = new Mat();
+        Photo.seamlessClone(srcCrop, dstCrop, maskCrop, new Point(rs.width / 2, rs.height / 2), out, flags);
+        if (blend != dst)
+            dst.copyTo(blend);
+        Mat target = blend.submat(rd);
+        out.copyTo(target);
+        target.release();
+        out.release();
+        srcCrop.release();
+        maskCrop.release();
+        dstCrop.release();
+        if (tmp != null)
+            tmp.release();
+    }
+
+    public void release() {
+        mPool.shutdown();
+    }
+
+    private void process(final Mat src, final Mat mask, Mat dst, int margin, final TileOp op) {
+        if (mask.type() != CvType.CV_8UC1)
+            throw new IllegalArgumentException("Mask must be 8-bit single-channel");
+        if (mask.cols() != src.cols() || mask.rows() != src.rows())
+            throw new IllegalArgumentException("Mask and image sizes differ");
+        if (dst != src)
+            src.copyTo(dst);
+        for (Rect region : regions(mask, margin)) {
+            final List<Rect> tiles = tiles(region);
+            final Mat[] out = new Mat[tiles.size()];
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < tiles.size(); i++) {
+                final int index = i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Rect t = tiles.get(index);
+                        Mat m = mask.submat(t);
+                        if (Core.countNonZero(m) > 0) {
+                            Mat s = src.submat(t);
+                            out[index] = new Mat();
+                            op.apply(s, m, out[index]);
+                            s.release();
+                        }
+                        m.release();
+                        return null;
+                    }
+                });
+            }
+            run(tasks);
+            // in place, tiles read the source before any of them is written back
+            for (int i = 0; i < tiles.size(); i++) {
+                if (out[i] == null)
+                    continue;
+                compose(out[i], dst, tiles.get(i), region);
+                out[i].release();
+            }
+        }
+    }
+
+    // blends a tile over what the previous tiles wrote, ramping in over its top and left overlaps
+    private void compose(Mat tile, Mat dst, Rect t, Rect region) {
+        Mat target = dst.submat(t);
+        int left = t.x > region.x ? Math.min(mTileOverlap, t.width) : 0;
+        int top = t.y > region.y ? Math.min(mTileOverlap, t.height) : 0;
+        if (left == 0 && top == 0) {
+            tile.copyTo(target);
+            target.release();
+            return;
+        }
+        Mat rx = new Mat(1, t.width, CvType.CV_32F), ry = new Mat(t.height, 1, CvType.CV_32F);
+        rx.put(0, 0, ramp(t.width, left));
+        ry.put(0, 0, ramp(t.height, top));
+        Mat alpha = new Mat(), beta = new Mat(), blended = new Mat(), none = new Mat();
+        Core.gemm(ry, rx, 1, none, 0, alpha);
+        alpha.convertTo(beta, CvType.CV_32F, -1, 1);
+        Imgproc.blendLinear(tile, target, alpha, beta, blended);
+        blended.copyTo(target);
+        rx.release();
+        ry.release();
+        alpha.release();
+        beta.release();
+        blended.release();
+        none.release();
+        target.release();
+    }
+
+    private static float[] ramp(int length, int overlap) {
+        float[] r = new float[length];
+        for (int i = 0; i < length; i++)
+            r[i] = i < overlap ? (i + 1f) / (overlap + 1f) : 1f;
+        return r;
+    }
+
+    private List<Rect> tiles(Rect region) {
+        List<Rect> tiles = new ArrayList<Rect>();
+        int step = Math.max(1, mTileSize - mTileOverlap);
+        for (int y = region.y; ; y += step) {
+            int h = Math.min(mTileSize, region.y + region.height - y);
+            for (int x = region.x; ; x += step) {
+                int w = Math.min(mTileSize, region.x + region.width - x);
+                tiles.add(new Rect(x, y, w, h));
+                if (x + w >= region.x + region.width)
+                    break;
+            }
+            if (y + h >= region.y + region.height)
+                break;
+        }
+        return tiles;
+    }
+
+    // bounding boxes of the mask blobs grown by the margin, overlapping boxes merged
+    private static List<Rect> regions(Mat mask, int margin) {
+        List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+        Mat hierarchy = new Mat();
+        Imgproc.findContours(mask, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        hierarchy.release();
+        List<Rect> regions = new ArrayList<Rect>();
+        for (MatOfPoint c : contours) {
+            Rect r = Imgproc.boundingRect(c);
+            c.release();
+            int x0 = Math.max(0, r.x - margin), y0 = Math.max(0, r.y - margin);
+            int x1 = Math.min(mask.cols(), r.x + r.width + margin), y1 = Math.min(mask.rows(), r.y + r.height + margin);
+            regions.add(new Rect(x0, y0, x1 - x0, y1 - y0));
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            outer:
+            for (int i = 0; i < regions.size(); i++) {
+                for (int j = i + 1; j < regions.size(); j++) {
+                    Rect a = regions.get(i), b = regions.get(j);
+                    if (a.x < b.x + b.width && b.x < a.x + a.width && a.y < b.y + b.height && b.y < a.y + a.height) {
+                        int x0 = Math.min(a.x, b.x), y0 = Math.min(a.y, b.y);
+                        int x1 = Math.max(a.x + a.width, b.x + b.width), y1 = Math.max(a.y + a.height, b.y + b.height);
+                        regions.set(i, new Rect(x0, y0, x1 - x0, y1 - y0));
+                        regions.remove(j);
+                        changed = true;
+                        break outer;
+                    }
+                }
+            }
+        }
+        return regions;
+    }
+
+    private void run(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : mPool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Editing interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Editing failed: " + e.getCause());
+        }
+    }
+}
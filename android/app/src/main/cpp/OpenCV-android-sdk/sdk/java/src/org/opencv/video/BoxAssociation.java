@@ -0,0 +1,136 @@
+package org.opencv.video;
+
+import java.util.Arrays;
+
+import org.opencv.core.Rect2d;
+
+/**
+ * Box overlap and assignment helpers shared by the multi-object tracking components.
+ */
+public final class BoxAssociation {
+
+    private BoxAssociation() {}
+
+    /**
+     * Intersection over union of two boxes, 0 for disjoint or empty boxes.
+     */
+    public static double iou(Rect2d a, Rect2d b) {
+        return iou(a.x, a.y, a.width, a.height, b.x, b.y, b.width, b.height);
+    }
+
+    public static double iou(double ax, double ay, double aw, double ah,
+                             double bx, double by, double bw, double bh) {
+        double iw = Math.min(ax + aw, bx + bw) - Math.max(ax, bx);
+        double ih = Math.min(ay + ah, by + bh) - Math.max(ay, by);
+        if (iw <= 0 || ih <= 0)
+            return 0;
+        double inter = iw * ih;
+        double union = aw * ah + bw * bh - inter;
+        return union > 0 ? inter / union : 0;
+    }
+
+    /**
+     * Greedy assignment on a row-major score matrix: repeatedly takes the highest remaining score
+     * until no pair reaches {@code minScore}.
+     *
+     * @param scores rows * cols scores, larger is better.
+     * @return for each row the assigned column, or -1.
+     */
+    public static int[] greedy(double[] scores, int rows, int cols, double minScore) {
+        int[] rowToCol = new int[rows];
+        Arrays.fill(rowToCol, -1);
+        boolean[] colUsed = new boolean[cols];
+        int pairs = Math.min(rows, cols);
+        for (int n = 0; n < pairs; n++) {
+            double best = minScore;
+            int bestRow = -1, bestCol = -1;
+            for (int r = 0; r < rows; r++) {
+                if (rowToCol[r] >= 0)
+                    continue;
+                int base = r * cols;
+                for (int c = 0; c < cols; c++) {
+                    if (!colUsed[c] && scores[base + c] >= best && (bestRow < 0 || scores[base + c] > best)) {
+                        best = scores[base + c];
+                        bestRow = r;
+                        bestCol = c;
+                    }
+                }
+            }
+            if (bestRow < 0)
+                break;
+            rowToCol[bestRow] = bestCol;
+            colUsed[bestCol] = true;
+        }
+        return rowToCol;
+    }
+
+    /**
+     * Optimal assignment on a row-major score matrix (Hungarian method): maximizes the sum of the
+     * scores of the assigned pairs, counting only pairs that reach {@code minScore}. Runs in
+     * O(n^3) with n = max(rows, cols).
+     *
+     * @param scores rows * cols scores, larger is better.
+     * @return for each row the assigned column, or -1.
+     */
+    public static int[] hungarian(double[] scores, int rows, int cols, double minScore) {
+        int n = Math.max(rows, cols);
+        // minimization over a square cost matrix, 1-based potentials as in the classic formulation
+        double[] u = new double[n + 1], v = new double[n + 1], minv = new double[n + 1];
+        int[] p = new int[n + 1], way = new int[n + 1];
+        boolean[] used = new boolean[n + 1];
+        for (int i = 1; i <= n; i++) {
+            p[0] = i;
+            int j0 = 0;
+            Arrays.fill(minv, Double.MAX_VALUE);
+            Arrays.fill(used, false);
+            do {
+                used[j0] = true;
+                int i0 = p[j0], j1 = 0;
+                double delta = Double.MAX_VALUE;
+                for (int j = 1; j <= n; j++) {
+                    if (used[j])
+                        continue;
+                    double cur = cost(scores, rows, cols, minScore, i0 - 1, j - 1) - u[i0] - v[j];
+                    if (cur < minv[j]) {
+                        minv[j] = cur;
+                        way[j] = j0;
+                    }
+                    if (minv[j] < delta) {
+                        delta = minv[j];
+                        j1 = j;
+                    }
+                }
+                for (int j = 0; j <= n; j++) {
+                    if (used[j]) {
+                        u[p[j]] += delta;
+                        v[j] -= delta;
+                    } else {
+                        minv[j] -= delta;
+                    }
+                }
+                j0 = j1;
+            } while (p[j0] != 0);
+            do {
+                int j1 = way[j0];
+                p[j0] = p[j1];
+                j0 = j1;
+            } while (j0 != 0);
+        }
+        int[] rowToCol = new int[rows];
+        Arrays.fill(rowToCol, -1);
+        for (int j = 1; j <= n; j++) {
+            int r = p[j] - 1, c = j - 1;
+            if (r < rows && c < cols && scores[r * cols + c] >= minScore)
+                rowToCol[r] = c;
+        }
+        return rowToCol;
+    }
+
+    // pairs below minScore and padding cells cost nothing, i.e. they are equivalent to no match
+    private static double cost(double[] scores, int rows, int cols, double minScore, int r, int c) {
+        if (r >= rows || c >= cols)
+            return 0;
+        double s = scores[r * cols + c];
+        return s >= minScore ? -s : 0;
+    }
+}
@@ -0,0 +1,301 @@
+package org.opencv.video;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Incremental dense optical flow between consecutive frames.
+ * <p>
+ * Each call computes the flow from the previous frame to the given one with a
+ * {@link DISOpticalFlow} or {@link FarnebackOpticalFlow}, warm-started from the previous flow
+ * field (DIS uses a valid input flow as its initialization, Farneback gets
+ * {@link Video#OPTFLOW_USE_INITIAL_FLOW}). Computation can be restricted to regions of interest
+ * or to the bounding box of a motion mask; the flow outside them is zero. With
+ * {@link #setScale(double)} below 1 the flow is computed on downscaled frames and upsampled. The
+ * gray working frames are kept from call to call, so each frame is converted and resized once.
+ * <p>
+ * Every call reports its duration, the fraction of the frame processed and, when enabled with
+ * {@link #setComputeQuality(boolean)}, the mean photometric residual of the flow (the absolute
+ * difference between the previous frame and the new frame warped back by the flow).
+ */
+public class DenseFlowService {
+    private final DenseOpticalFlow mFlow;
+    private final int              mBaseFlags;
+    private boolean                mWarmStart = true;
+    private double                 mScale = 1.0;
+    private int                    mMargin = 16;
+    private boolean                mComputeQuality;
+
+    private Mat                    mPrevGray = new Mat();
+    private Mat                    mGray = new Mat();
+    private Mat                    mPrevFlow = new Mat();
+    private Mat                    mWorkFlow = new Mat();
+    private final Mat              mGrid = new Mat();
+    private double                 mLastTime;
+    private double                 mLastCoverage;
+    private double                 mLastResidual = -1;
+
+    /**
+     * @param flow {@link DISOpticalFlow} or {@link FarnebackOpticalFlow} instance.
+     */
+    public DenseFlowService(DenseOpticalFlow flow) {
+        mFlow = flow;
+        mBaseFlags = flow instanceof FarnebackOpticalFlow
+                ? ((FarnebackOpticalFlow) flow).getFlags() & ~Video.OPTFLOW_USE_INITIAL_FLOW : 0;
+    }
+
+    public DenseFlowService() {
+        this(DISOpticalFlow.create(DISOpticalFlow.PRESET_FAST));
+    }
+
+    /**
+     * Whether each flow field is initialized from the previous one (default true).
+     */
+    public void setWarmStart(boolean warmStart) {
+        mWarmStart = warmStart;
+    }
+
+    public boolean getWarmStart() {
+        return mWarmStart;
+    }
+
+    /**
+     * Working resolution relative to the frame, in (0, 1]. Changing it restarts the sequence.
+     */
+    public void setScale(double scale) {
+        if (scale <= 0 || scale > 1)
+            throw new IllegalArgumentException("Scale must be in (0, 1]");
+        if (scale != mScale)
+            reset();
+        mScale = scale;
+    }
+
+    public double getScale() {
+        return mScale;
+    }
+
+    /**
+     * Margin in frame pixels added around each region of interest.
+     */
+    public void setRoiMargin(int margin) {
+        mMargin = Math.max(0, margin);
+    }
+
+    public int getRoiMargin() {
+        return mMargin;
+    }
+
+    /**
+     * Enables the photometric residual reported by {@link #getLastResidual()}; costs one remap.
+     */
+    public void setComputeQuality(boolean computeQuality) {
+        mComputeQuality = computeQuality;
+    }
+
+    public boolean getComputeQuality() {
+        return mComputeQuality;
+    }
+
+    /**
+     * Flow over the whole frame.
+     *
+     * @param frame next frame.
+     * @param flow CV_32FC2 flow from the previous frame, zero for the first frame.
+     */
+    public void calc(Mat frame, Mat flow) {
+        calc(frame, (List<Rect>) null, flow);
+    }
+
+    /**
+     * Flow over the bounding box of the non-zero pixels of a motion mask.
+     */
+    public void calc(Mat frame, Mat motionMask, Mat flow) {
+        List<Rect> rois = new ArrayList<Rect>();
+        Rect r = Imgproc.boundingRect(motionMask);
+        if (r.width > 0 && r.height > 0)
+            rois.add(r);
+        calc(frame, rois, flow);
+    }
+
+    /**
+     * Flow over the given regions of interest in frame coordinates; null means the whole frame.
+     */
+    public void calc(Mat frame, List<Rect> rois, Mat flow) {
+        long start = System.nanoTime();
+        Mat gray = scaledGray(frame);
+        int width = gray.cols(), height = gray.rows();
+        if (mPrevGray.empty() || mPrevGray.size().width != width || mPrevGray.size().height != height) {
+            // first frame of a sequence: nothing to compare with
+            mPrevFlow.release();
+            keep(gray);
+            flow.create(frame.rows(), frame.cols(), CvType.CV_32FC2);
+            flow.setTo(Scalar.all(0));
+            mLastCoverage = 0;
+            mLastResidual = -1;
+            mLastTime = (System.nanoTime() - start) / 1e6;
+            return;
+        }
+
+        mWorkFlow.create(height, width, CvType.CV_32FC2);
+        mWorkFlow.setTo(Scalar.all(0));
+        boolean warm = mWarmStart && mPrevFlow.rows() == height && mPrevFlow.cols() == width;
+        long area = 0;
+        for (Rect roi : workRegions(rois, width, height)) {
+            Mat init = warm ? mPrevFlow.submat(roi).clone() : new Mat();
+            Mat i0 = mPrevGray.submat(roi), i1 = gray.submat(roi);
+            if (mFlow instanceof FarnebackOpticalFlow)
+                ((FarnebackOpticalFlow) mFlow).setFlags(mBaseFlags | (warm ? Video.OPTFLOW_USE_INITIAL_FLOW : 0));
+            mFlow.calc(i0, i1, init);
+            Mat dst = mWorkFlow.submat(roi);
+            init.copyTo(dst);
+            dst.release();
+            init.release();
+            i0.release();
+            i1.release();
+            area += (long) roi.width * roi.height;
+        }
+        mLastCoverage = (double) area / ((long) width * height);
+        mLastResidual = mComputeQuality ? residual(gray) : -1;
+
+        Mat t = mPrevFlow;
+        mPrevFlow = mWorkFlow;
+        mWorkFlow = t;
+        keep(gray);
+
+        if (mScale < 1) {
+            Imgproc.resize(mPrevFlow, flow, frame.size(), 0, 0, Imgproc.INTER_LINEAR);
+            Core.multiply(flow, Scalar.all(1 / mScale), flow);
+        } else {
+            mPrevFlow.copyTo(flow);
+        }
+        mLastTime = (System.nanoTime() - start) / 1e6;
+    }
+
+    /**
+     * Duration of the last call in milliseconds.
+     */
+    public double getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * Fraction of the frame the last flow was computed on.
+     */
+    public double getLastCoverage() {
+        return mLastCoverage;
+    }
+
+    /**
+     * Mean absolute photometric residual of the last flow in gray levels, -1 when not computed.
+     */
+    public double getLastResidual() {
+        return mLastResidual;
+    }
+
+    /**
+     * Forgets the previous frame and flow.
+     */
+    public void reset() {
+        mPrevGray.release();
+        mPrevFlow.release();
+    }
+
+    public void release() {
+        reset();
+        mGray.release();
+        mWorkFlow.release();
+        mGrid.release();
+    }
+
+    private List<Rect> workRegions(List<Rect> rois, int width, int height) {
+        List<Rect> regions = new ArrayList<Rect>();
+        if (rois == null) {
+            regions.add(new Rect(0, 0, width, height));
+            return regions;
+        }
+        for (Rect r : rois) {
+            int x0 = Math.max(0, (int) Math.floor((r.x - mMargin) * mScale));
+            int y0 = Math.max(0, (int) Math.floor((r.y - mMargin) * mScale));
+            int x1 = Math.min(width, (int) Math.ceil((r.x + r.width + mMargin) * mScale));
+            int y1 = Math.min(height, (int) Math.ceil((r.y + r.height + mMargin) * mScale));
+            if (x1 > x0 && y1 > y0)
+                regions.add(new Rect(x0, y0, x1 - x0, y1 - y0));
+        }
+        // overlapping regions would be computed twice, merge them into their bounding boxes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            outer:
+            for (int i = 0; i < regions.size(); i++) {
+                for (int j = i + 1; j < regions.size(); j++) {
+                    Rect a = regions.get(i), b = regions.get(j);
+                    if (a.x < b.x + b.width && b.x < a.x + a.width && a.y < b.y + b.height && b.y < a.y + a.height) {
+                        int x0 = Math.min(a.x, b.x), y0 = Math.min(a.y, b.y);
+                        int x1 = Math.max(a.x + a.width, b.x + b.width), y1 = Math.max(a.y + a.height, b.y + b.height);
+                        regions.set(i, new Rect(x0, y0, x1 - x0, y1 - y0));
+                        regions.remove(j);
+                        changed = true;
+                        break outer;
+                    }
+                }
+            }
+        }
+        return regions;
+    }
+
+    // mean |prev(x) - next(x + flow(x))| over the frame
+    private double residual(Mat gray) {
+        int width = gray.cols(), height = gray.rows();
+        if (mGrid.rows() != height || mGrid.cols() != width) {
+            float[] grid = new float[width * height * 2];
+            for (int y = 0, k = 0; y < height; y++)
+                for (int x = 0; x < width; x++) {
+                    grid[k++] = x;
+                    grid[k++] = y;
+                }
+            mGrid.create(height, width, CvType.CV_32FC2);
+            mGrid.put(0, 0, grid);
+        }
+        Mat map = new Mat(), none = new Mat(), warped = new Mat(), diff = new Mat();
+        Core.add(mGrid, mWorkFlow, map);
+        Imgproc.remap(gray, warped, map, none, Imgproc.INTER_LINEAR, Core.BORDER_REPLICATE);
+        Core.absdiff(warped, mPrevGray, diff);
+        double mean = Core.mean(diff).val[0];
+        map.release();
+        none.release();
+        warped.release();
+        diff.release();
+        return mean;
+    }
+
+    // a gray frame of the caller is copied, since it may be reused before the next call
+    private void keep(Mat gray) {
+        if (gray != mGray) {
+            gray.copyTo(mPrevGray);
+            return;
+        }
+        Mat t = mPrevGray;
+        mPrevGray = mGray;
+        mGray = t;
+    }
+
+    // gray frame at the working scale, the frame itself when it is gray and not scaled
+    private Mat scaledGray(Mat image) {
+        if (mScale >= 1)
+            return VideoUtils.toGray(image, mGray);
+        Mat tmp = new Mat();
+        Mat src = VideoUtils.toGray(image, tmp);
+        Imgproc.resize(src, mGray, new Size(Math.max(1, Math.round(image.cols() * mScale)),
+                Math.max(1, Math.round(image.rows() * mScale))), 0, 0, Imgproc.INTER_AREA);
+        tmp.release();
+        return mGray;
+    }
+}
@@ -0,0 +1,352 @@
+package org.opencv.video;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Rect2d;
+import org.opencv.core.Size;
+import org.opencv.dnn.DetectionModel;
+import org.opencv.objdetect.CascadeClassifier;
+import org.opencv.objdetect.FaceDetectorYN;
+
+/**
+ * Detect-then-track scheduler.
+ * <p>
+ * The full detector runs on keyframes only: every {@link #setKeyframeInterval(int)} frames, when
+ * there is nothing to track, or when the confidence of a track drops below
+ * {@link #setMinConfidence(double)}. Between keyframes the boxes are propagated by a cheap
+ * {@link Propagator} ({@link TrackerPropagator} or {@link FlowPropagator}). On keyframes the
+ * detections are associated with the live tracks by IoU so that track ids stay stable; tracks
+ * that are not re-detected for {@link #setMaxMissed(int)} keyframes expire. Until then the
+ * confidence of a missed track is scaled by {@link #setMissDecay(double)} per missed keyframe, so
+ * it triggers an early keyframe only once its propagation also becomes unreliable.
+ */
+public class DetectionScheduler {
+
+    /**
+     * Full-frame detector run on keyframes.
+     */
+    public interface Detector {
+        void detect(Mat frame, List<Detection> detections);
+    }
+
+    /**
+     * Moves the boxes of live tracks from one frame to the next.
+     */
+    public interface Propagator {
+        /** Called on keyframes after association, with the tracks in their detected state. */
+        void reset(Mat frame, List<Track> tracks);
+
+        /** Updates {@link Track#box} and {@link Track#confidence} of every track for a new frame. */
+        void propagate(Mat frame, List<Track> tracks);
+
+        void release();
+    }
+
+    public static class Detection {
+        public Rect2d box;
+        public float  score;
+        public int    classId;
+
+        public Detection(Rect2d box, float score, int classId) {
+            this.box = box;
+            this.score = score;
+            this.classId = classId;
+        }
+    }
+
+    public static class Track {
+        public final int id;
+        public Rect2d    box;
+        public int       classId;
+        /** Score of the last matching detection. */
+        public float     score;
+        /**
+     * Propagation confidence scaled by the miss decay, reset to 1 whenever the track is
+     * re-detected.
+     */
+        public double    confidence;
+        /** Keyframes the track has been matched on. */
+        public int       hits;
+        /** Consecutive keyframes without a matching detection. */
+        public int       missed;
+        /** Frames since the last matching detection. */
+        public int       framesSinceDetection;
+
+        Track(int id, Detection d) {
+            this.id = id;
+            this.box = d.box.clone();
+            this.classId = d.classId;
+            this.score = d.score;
+            this.confidence = 1;
+            this.hits = 1;
+        }
+
+        public Rect getRect() {
+            return new Rect((int) Math.round(box.x), (int) Math.round(box.y),
+                    (int) Math.round(box.width), (int) Math.round(box.height));
+        }
+    }
+
+    private final Detector       mDetector;
+    private final Propagator     mPropagator;
+    private final List<Track>    mTracks = new ArrayList<Track>();
+    private final List<Detection> mDetections = new ArrayList<Detection>();
+    private int                  mKeyframeInterval = 10;
+    private double               mMinConfidence = 0.5;
+    private double               mIouThreshold = 0.3;
+    private int                  mMaxMissed = 2;
+    private double               mMissDecay = 0.8;
+    private int                  mNextId = 1;
+    private long                 mFrameCount;
+    private long                 mDetectorRuns;
+    private int                  mFramesSinceKeyframe;
+
+    public DetectionScheduler(Detector detector, Propagator propagator) {
+        mDetector = detector;
+        mPropagator = propagator;
+    }
+
+    /**
+     * Maximum number of frames between two detector runs.
+     */
+    public void setKeyframeInterval(int interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("Keyframe interval must be positive");
+        mKeyframeInterval = interval;
+    }
+
+    public int getKeyframeInterval() {
+        return mKeyframeInterval;
+    }
+
+    /**
+     * Propagation confidence below which the next frame becomes a keyframe.
+     */
+    public void setMinConfidence(double minConfidence) {
+        mMinConfidence = minConfidence;
+    }
+
+    public double getMinConfidence() {
+        return mMinConfidence;
+    }
+
+    /**
+     * Minimum IoU between a detection and a track box for them to be associated.
+     */
+    public void setIouThreshold(double iouThreshold) {
+        mIouThreshold = iouThreshold;
+    }
+
+    public double getIouThreshold() {
+        return mIouThreshold;
+    }
+
+    /**
+     * Number of consecutive keyframes a track may go undetected before it expires.
+     */
+    public void setMaxMissed(int maxMissed) {
+        mMaxMissed = maxMissed;
+    }
+
+    public int getMaxMissed() {
+        return mMaxMissed;
+    }
+
+    /**
+     * Factor in (0, 1] applied to the confidence of a track for every consecutive keyframe it was
+     * not re-detected on.
+     */
+    public void setMissDecay(double missDecay) {
+        if (missDecay <= 0 || missDecay > 1)
+            throw new IllegalArgumentException("Miss decay must be in (0, 1]");
+        mMissDecay = missDecay;
+    }
+
+    public double getMissDecay() {
+        return mMissDecay;
+    }
+
+    /**
+     * Processes one frame and returns the live tracks.
+     */
+    public List<Track> process(Mat frame) {
+        mFrameCount++;
+        if (needsKeyframe()) {
+            detect(frame);
+        } else {
+            mFramesSinceKeyframe++;
+            mPropagator.propagate(frame, mTracks);
+            for (Track t : mTracks) {
+                t.framesSinceDetection++;
+                if (t.missed > 0)
+                    t.confidence *= Math.pow(mMissDecay, t.missed);
+            }
+        }
+        return Collections.unmodifiableList(mTracks);
+    }
+
+    /**
+     * Forces the detector to run on the next frame.
+     */
+    public void requestKeyframe() {
+        mFramesSinceKeyframe = mKeyframeInterval;
+    }
+
+    public List<Track> getTracks() {
+        return Collections.unmodifiableList(mTracks);
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getDetectorRuns() {
+        return mDetectorRuns;
+    }
+
+    /**
+     * Fraction of processed frames on which the detector ran.
+     */
+    public double getDetectionRatio() {
+        return mFrameCount > 0 ? (double) mDetectorRuns / mFrameCount : 0;
+    }
+
+    public void reset() {
+        mTracks.clear();
+        mFramesSinceKeyframe = 0;
+        mFrameCount = 0;
+        mDetectorRuns = 0;
+    }
+
+    public void release() {
+        reset();
+        mPropagator.release();
+    }
+
+    private boolean needsKeyframe() {
+        if (mTracks.isEmpty() || mFramesSinceKeyframe + 1 >= mKeyframeInterval)
+            return true;
+        for (Track t : mTracks)
+            if (t.confidence < mMinConfidence)
+                return true;
+        return false;
+    }
+
+    private void detect(Mat frame) {
+        mDetectorRuns++;
+        mFramesSinceKeyframe = 0;
+        mDetections.clear();
+        mDetector.detect(frame, mDetections);
+
+        int rows = mTracks.size(), cols = mDetections.size();
+        double[] scores = new double[rows * cols];
+        for (int r = 0; r < rows; r++) {
+            Track t = mTracks.get(r);
+            for (int c = 0; c < cols; c++) {
+                Detection d = mDetections.get(c);
+                scores[r * cols + c] = d.classId == t.classId ? BoxAssociation.iou(t.box, d.box) : 0;
+            }
+        }
+        int[] match = BoxAssociation.greedy(scores, rows, cols, mIouThreshold);
+
+        boolean[] used = new boolean[cols];
+        List<Track> alive = new ArrayList<Track>(rows + cols);
+        for (int r = 0; r < rows; r++) {
+            Track t = mTracks.get(r);
+            if (match[r] >= 0) {
+                Detection d = mDetections.get(match[r]);
+                used[match[r]] = true;
+                t.box = d.box.clone();
+                t.score = d.score;
+                t.confidence = 1;
+                t.hits++;
+                t.missed = 0;
+                t.framesSinceDetection = 0;
+                alive.add(t);
+            } else if (++t.missed <= mMaxMissed) {
+                // keep the propagated box; the track is re-checked on the next regular keyframe
+                // unless the decayed confidence falls below the threshold first
+                t.confidence *= mMissDecay;
+                t.framesSinceDetection++;
+                alive.add(t);
+            }
+        }
+        for (int c = 0; c < cols; c++)
+            if (!used[c])
+                alive.add(new Track(mNextId++, mDetections.get(c)));
+
+        mTracks.clear();
+        mTracks.addAll(alive);
+        mPropagator.reset(frame, mTracks);
+    }
+
+    /**
+     * Wraps {@link CascadeClassifier#detectMultiScale}; detections get score 1 and class 0.
+     */
+    public static Detector cascadeDetector(final CascadeClassifier cascade, final double scaleFactor,
+                                           final int minNeighbors, final Size minSize) {
+        return new Detector() {
+            private final MatOfRect mObjects = new MatOfRect();
+
+            @Override
+            public void detect(Mat frame, List<Detection> detections) {
+                cascade.detectMultiScale(frame, mObjects, scaleFactor, minNeighbors, 0, minSize);
+                for (Rect r : mObjects.toArray())
+                    detections.add(new Detection(new Rect2d(r.x, r.y, r.width, r.height), 1.f, 0));
+            }
+        };
+    }
+
+    /**
+     * Wraps {@link FaceDetectorYN#detect}, adjusting the detector input size to the frame.
+     */
+    public static Detector faceDetector(final FaceDetectorYN detector) {
+        return new Detector() {
+            private final Mat mFaces = new Mat();
+
+            @Override
+            public void detect(Mat frame, List<Detection> detections) {
+                Size size = frame.size();
+                if (!size.equals(detector.getInputSize()))
+                    detector.setInputSize(size);
+                detector.detect(frame, mFaces);
+                float[] row = new float[15];
+                for (int i = 0; i < mFaces.rows(); i++) {
+                    mFaces.get(i, 0, row);
+                    detections.add(new Detection(new Rect2d(row[0], row[1], row[2], row[3]), row[14], 0));
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps {@link DetectionModel#detect}.
+     */
+    public static Detector modelDetector(final DetectionModel model, final float confThreshold,
+                                         final float nmsThreshold) {
+        return new Detector() {
+            private final MatOfInt   mClassIds = new MatOfInt();
+            private final MatOfFloat mConfidences = new MatOfFloat();
+            private final MatOfRect  mBoxes = new MatOfRect();
+
+            @Override
+            public void detect(Mat frame, List<Detection> detections) {
+                model.detect(frame, mClassIds, mConfidences, mBoxes, confThreshold, nmsThreshold);
+                int[] ids = mClassIds.toArray();
+                float[] conf = mConfidences.toArray();
+                Rect[] boxes = mBoxes.toArray();
+                for (int i = 0; i < boxes.length; i++) {
+                    Rect r = boxes[i];
+                    detections.add(new Detection(new Rect2d(r.x, r.y, r.width, r.height), conf[i], ids[i]));
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,302 @@
+package org.opencv.video;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.features2d.GridFeatureDetector;
+
+/**
+ * Keypoint tracker that carries features from frame to frame instead of re-detecting them.
+ * <p>
+ * The keypoints of the previous frame are moved with {@link SparsePyrLKOpticalFlow} (optionally
+ * checked forward-backward) and keep the descriptor computed when they were first detected.
+ * New keypoints are detected and described with a {@link GridFeatureDetector} only in grid cells
+ * that lost all their points, or in every under-filled cell once the number of tracked points
+ * falls below {@link #setMinTracks(int)}. Every keypoint carries a stable id, see
+ * {@link #getTrackIds()}.
+ */
+public class FeatureTracker {
+    private final GridFeatureDetector    mDetector;
+    private final SparsePyrLKOpticalFlow mFlow;
+    private int                          mMinTracks = 200;
+    private double                       mMaxFbError = 1.0;
+    private double                       mMinDistance = 8;
+    private int                          mBorder = 16;
+
+    private Mat                          mPrevGray = new Mat();
+    private Mat                          mGray = new Mat();
+    private final List<KeyPoint>         mKeypoints = new ArrayList<KeyPoint>();
+    private final List<Integer>          mIds = new ArrayList<Integer>();
+    private final Mat                    mDescriptors = new Mat();
+    private int                          mNextId;
+    private int                          mLastTracked;
+    private int                          mLastDetected;
+
+    /**
+     * @param detector grid detector used for the initial and refill detections.
+     * @param flow LK flow instance, e.g. {@code SparsePyrLKOpticalFlow.create()}.
+     */
+    public FeatureTracker(GridFeatureDetector detector, SparsePyrLKOpticalFlow flow) {
+        mDetector = detector;
+        mFlow = flow;
+    }
+
+    public FeatureTracker(GridFeatureDetector detector) {
+        this(detector, SparsePyrLKOpticalFlow.create());
+    }
+
+    /**
+     * Number of tracked points below which every under-filled cell is refilled.
+     */
+    public void setMinTracks(int minTracks) {
+        mMinTracks = minTracks;
+    }
+
+    public int getMinTracks() {
+        return mMinTracks;
+    }
+
+    /**
+     * Forward-backward error in pixels above which a point is dropped, 0 disables the check.
+     */
+    public void setMaxFbError(double maxFbError) {
+        mMaxFbError = maxFbError;
+    }
+
+    public double getMaxFbError() {
+        return mMaxFbError;
+    }
+
+    /**
+     * Minimum distance between a new keypoint and the tracked ones.
+     */
+    public void setMinDistance(double minDistance) {
+        mMinDistance = minDistance;
+    }
+
+    public double getMinDistance() {
+        return mMinDistance;
+    }
+
+    /**
+     * Points closer than this to the image border are dropped, so that their descriptors stay
+     * meaningful.
+     */
+    public void setBorder(int border) {
+        mBorder = Math.max(0, border);
+    }
+
+    public int getBorder() {
+        return mBorder;
+    }
+
+    /**
+     * Tracks the keypoints into the frame and refills empty cells.
+     *
+     * @param frame next frame.
+     * @param keypoints keypoints of the frame, tracked ones first.
+     * @param descriptors descriptor rows matching {@code keypoints}.
+     */
+    public void process(Mat frame, MatOfKeyPoint keypoints, Mat descriptors) {
+        Mat gray = VideoUtils.toGray(frame, mGray);
+        track(gray);
+        refill(gray);
+        keep(gray);
+
+        if (mKeypoints.isEmpty()) {
+            keypoints.release();
+            descriptors.release();
+        } else {
+            keypoints.fromList(mKeypoints);
+            mDescriptors.copyTo(descriptors);
+        }
+    }
+
+    /**
+     * Ids of the keypoints returned by the last {@link #process} call; a tracked keypoint keeps
+     * its id.
+     */
+    public int[] getTrackIds() {
+        int[] ids = new int[mIds.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = mIds.get(i);
+        return ids;
+    }
+
+    /**
+     * Number of keypoints carried over from the previous frame in the last call.
+     */
+    public int getLastTrackedCount() {
+        return mLastTracked;
+    }
+
+    /**
+     * Number of keypoints detected in the last call.
+     */
+    public int getLastDetectedCount() {
+        return mLastDetected;
+    }
+
+    /**
+     * Drops all tracks; the next frame is detected from scratch.
+     */
+    public void reset() {
+        mKeypoints.clear();
+        mIds.clear();
+        mDescriptors.release();
+        mPrevGray.release();
+    }
+
+    public void release() {
+        reset();
+        mGray.release();
+    }
+
+    private void track(Mat gray) {
+        int n = mKeypoints.size();
+        mLastTracked = 0;
+        if (n == 0 || mPrevGray.empty())
+            return;
+        Point[] pts = new Point[n];
+        for (int i = 0; i < n; i++)
+            pts[i] = mKeypoints.get(i).pt;
+        MatOfPoint2f prevPts = new MatOfPoint2f(pts);
+        MatOfPoint2f nextPts = new MatOfPoint2f();
+        MatOfByte status = new MatOfByte();
+        MatOfFloat err = new MatOfFloat();
+        mFlow.calc(mPrevGray, gray, prevPts, nextPts, status, err);
+        byte[] ok = status.toArray();
+        Point[] next = nextPts.toArray();
+        if (mMaxFbError > 0) {
+            MatOfPoint2f backPts = new MatOfPoint2f();
+            MatOfByte backStatus = new MatOfByte();
+            mFlow.calc(gray, mPrevGray, nextPts, backPts, backStatus, err);
+            byte[] backOk = backStatus.toArray();
+            Point[] back = backPts.toArray();
+            for (int i = 0; i < n; i++) {
+                double dx = back[i].x - pts[i].x, dy = back[i].y - pts[i].y;
+                if (backOk[i] == 0 || dx * dx + dy * dy > mMaxFbError * mMaxFbError)
+                    ok[i] = 0;
+            }
+            backPts.release();
+            backStatus.release();
+        }
+        prevPts.release();
+        nextPts.release();
+        status.release();
+        err.release();
+
+        List<KeyPoint> kept = new ArrayList<KeyPoint>();
+        List<Integer> ids = new ArrayList<Integer>();
+        List<Mat> rows = new ArrayList<Mat>();
+        int width = gray.cols(), height = gray.rows();
+        for (int i = 0; i < n; i++) {
+            Point p = next[i];
+            if (ok[i] == 0 || p.x < mBorder || p.y < mBorder || p.x >= width - mBorder || p.y >= height - mBorder)
+                continue;
+            KeyPoint kp = mKeypoints.get(i);
+            kp.pt = p;
+            kept.add(kp);
+            ids.add(mIds.get(i));
+            rows.add(mDescriptors.row(i));
+        }
+        setTracks(kept, ids, rows);
+        mLastTracked = kept.size();
+    }
+
+    private void refill(Mat gray) {
+        int width = gray.cols(), height = gray.rows();
+        int cells = mDetector.getGridCols() * mDetector.getGridRows();
+        int cellQuota = mDetector.getCellQuota();
+        List<List<Point>> occupied = new ArrayList<List<Point>>();
+        for (int i = 0; i < cells; i++)
+            occupied.add(new ArrayList<Point>());
+        for (KeyPoint kp : mKeypoints)
+            occupied.get(mDetector.cellIndex(kp.pt.x, kp.pt.y, width, height)).add(kp.pt);
+
+        boolean starved = mKeypoints.size() < mMinTracks;
+        int[] quota = new int[cells];
+        boolean any = false;
+        for (int i = 0; i < cells; i++) {
+            int have = occupied.get(i).size();
+            quota[i] = have == 0 || starved ? Math.max(0, cellQuota - have) : 0;
+            any |= quota[i] > 0;
+        }
+        mLastDetected = 0;
+        if (!any)
+            return;
+
+        MatOfKeyPoint found = new MatOfKeyPoint();
+        mDetector.detect(gray, quota, found);
+        List<KeyPoint> fresh = new ArrayList<KeyPoint>();
+        for (KeyPoint kp : found.toArray())
+            if (isFree(kp.pt, occupied.get(mDetector.cellIndex(kp.pt.x, kp.pt.y, width, height))))
+                fresh.add(kp);
+        Mat desc = new Mat();
+        if (fresh.isEmpty()) {
+            found.release();
+        } else {
+            found.fromList(fresh);
+            mDetector.compute(found, desc);
+        }
+
+        List<KeyPoint> all = new ArrayList<KeyPoint>(mKeypoints);
+        List<Integer> ids = new ArrayList<Integer>(mIds);
+        List<Mat> rows = new ArrayList<Mat>();
+        for (int i = 0; i < mKeypoints.size(); i++)
+            rows.add(mDescriptors.row(i));
+        KeyPoint[] added = found.toArray();
+        for (int i = 0; i < added.length && i < desc.rows(); i++) {
+            all.add(added[i]);
+            ids.add(mNextId++);
+            rows.add(desc.row(i));
+        }
+        mLastDetected = all.size() - mKeypoints.size();
+        setTracks(all, ids, rows);
+        found.release();
+        desc.release();
+    }
+
+    private boolean isFree(Point p, List<Point> taken) {
+        double d2 = mMinDistance * mMinDistance;
+        for (Point q : taken) {
+            double dx = p.x - q.x, dy = p.y - q.y;
+            if (dx * dx + dy * dy < d2)
+                return false;
+        }
+        return true;
+    }
+
+    private void setTracks(List<KeyPoint> keypoints, List<Integer> ids, List<Mat> rows) {
+        Mat desc = new Mat();
+        if (!rows.isEmpty())
+            Core.vconcat(rows, desc);
+        for (Mat r : rows)
+            r.release();
+        desc.copyTo(mDescriptors);
+        desc.release();
+        mKeypoints.clear();
+        mKeypoints.addAll(keypoints);
+        mIds.clear();
+        mIds.addAll(ids);
+    }
+
+    // keeps the frame for the next flow step; only a gray frame of the caller needs a copy
+    private void keep(Mat gray) {
+        if (gray != mGray) {
+            gray.copyTo(mPrevGray);
+            return;
+        }
+        Mat t = mPrevGray;
+        mPrevGray = mGray;
+        mGray = t;
+    }
+}
@@ -0,0 +1,173 @@
+package org.opencv.video;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect2d;
+
+/**
+ * {@link DetectionScheduler.Propagator} based on sparse Lucas-Kanade flow (median flow).
+ * <p>
+ * A regular grid of points is placed in every box and tracked forward and backward with a single
+ * {@link SparsePyrLKOpticalFlow#calc} call for all tracks. Points with a large forward-backward
+ * error are rejected; the box moves by the median displacement of the remaining points and is
+ * scaled by the median change of their pairwise distances. The confidence is the fraction of
+ * points that survived.
+ */
+public class FlowPropagator implements DetectionScheduler.Propagator {
+    private final SparsePyrLKOpticalFlow mFlow;
+    private final int                    mGrid;
+    private double                       mMaxFbError = 2.0;
+    private Mat                          mPrevGray = new Mat();
+    private Mat                          mGray = new Mat();
+    private final MatOfPoint2f           mPrevPts = new MatOfPoint2f();
+    private final MatOfPoint2f           mNextPts = new MatOfPoint2f();
+    private final MatOfPoint2f           mBackPts = new MatOfPoint2f();
+    private final MatOfByte              mStatus = new MatOfByte();
+    private final MatOfByte              mBackStatus = new MatOfByte();
+    private final MatOfFloat             mErr = new MatOfFloat();
+
+    /**
+     * @param flow LK flow instance, e.g. {@code SparsePyrLKOpticalFlow.create()}.
+     * @param grid number of points per box side.
+     */
+    public FlowPropagator(SparsePyrLKOpticalFlow flow, int grid) {
+        if (grid < 2)
+            throw new IllegalArgumentException("Grid must have at least 2 points per side");
+        mFlow = flow;
+        mGrid = grid;
+    }
+
+    public FlowPropagator() {
+        this(SparsePyrLKOpticalFlow.create(), 8);
+    }
+
+    /**
+     * Forward-backward error in pixels above which a point is rejected.
+     */
+    public void setMaxFbError(double maxFbError) {
+        mMaxFbError = maxFbError;
+    }
+
+    public double getMaxFbError() {
+        return mMaxFbError;
+    }
+
+    @Override
+    public void reset(Mat frame, List<DetectionScheduler.Track> tracks) {
+        keep(VideoUtils.toGray(frame, mGray));
+    }
+
+    @Override
+    public void propagate(Mat frame, List<DetectionScheduler.Track> tracks) {
+        Mat gray = VideoUtils.toGray(frame, mGray);
+        int perTrack = mGrid * mGrid;
+        int n = tracks.size() * perTrack;
+        if (n > 0 && !mPrevGray.empty()) {
+            float[] prev = new float[n * 2];
+            for (int i = 0; i < tracks.size(); i++) {
+                Rect2d b = tracks.get(i).box;
+                int base = i * perTrack * 2;
+                for (int gy = 0; gy < mGrid; gy++) {
+                    for (int gx = 0; gx < mGrid; gx++) {
+                        int k = base + (gy * mGrid + gx) * 2;
+                        prev[k] = (float) (b.x + b.width * (gx + 0.5) / mGrid);
+                        prev[k + 1] = (float) (b.y + b.height * (gy + 0.5) / mGrid);
+                    }
+                }
+            }
+            mPrevPts.alloc(n);
+            mPrevPts.put(0, 0, prev);
+            mFlow.calc(mPrevGray, gray, mPrevPts, mNextPts, mStatus, mErr);
+            mFlow.calc(gray, mPrevGray, mNextPts, mBackPts, mBackStatus, mErr);
+
+            float[] next = new float[n * 2];
+            float[] back = new float[n * 2];
+            byte[] status = new byte[n];
+            byte[] backStatus = new byte[n];
+            mNextPts.get(0, 0, next);
+            mBackPts.get(0, 0, back);
+            mStatus.get(0, 0, status);
+            mBackStatus.get(0, 0, backStatus);
+
+            double maxFb2 = mMaxFbError * mMaxFbError;
+            float[] dx = new float[perTrack];
+            float[] dy = new float[perTrack];
+            int[] valid = new int[perTrack];
+            for (int i = 0; i < tracks.size(); i++) {
+                DetectionScheduler.Track t = tracks.get(i);
+                int count = 0;
+                for (int p = 0; p < perTrack; p++) {
+                    int idx = i * perTrack + p;
+                    if (status[idx] == 0 || backStatus[idx] == 0)
+                        continue;
+                    float ex = back[idx * 2] - prev[idx * 2], ey = back[idx * 2 + 1] - prev[idx * 2 + 1];
+                    if (ex * ex + ey * ey > maxFb2)
+                        continue;
+                    dx[count] = next[idx * 2] - prev[idx * 2];
+                    dy[count] = next[idx * 2 + 1] - prev[idx * 2 + 1];
+                    valid[count++] = idx;
+                }
+                t.confidence = (double) count / perTrack;
+                if (count == 0)
+                    continue;
+                double scale = medianScale(prev, next, valid, count);
+                double mx = median(dx, count), my = median(dy, count);
+                Rect2d b = t.box;
+                double cx = b.x + b.width / 2 + mx, cy = b.y + b.height / 2 + my;
+                double w = b.width * scale, h = b.height * scale;
+                t.box = new Rect2d(cx - w / 2, cy - h / 2, w, h);
+            }
+        }
+        keep(gray);
+    }
+
+    @Override
+    public void release() {
+        mPrevGray.release();
+        mGray.release();
+        mPrevPts.release();
+        mNextPts.release();
+        mBackPts.release();
+        mStatus.release();
+        mBackStatus.release();
+        mErr.release();
+    }
+
+    // the frame is needed as the previous one on the next call; a gray frame of the caller may
+    // change in the meantime and is copied, a converted one is kept by swapping the buffers
+    private void keep(Mat gray) {
+        if (gray != mGray) {
+            gray.copyTo(mPrevGray);
+            return;
+        }
+        Mat tmp = mPrevGray;
+        mPrevGray = mGray;
+        mGray = tmp;
+    }
+
+    private static double medianScale(float[] prev, float[] next, int[] valid, int count) {
+        if (count < 2)
+            return 1;
+        // ratios of consecutive pairs keep this linear in the number of points
+        float[] ratios = new float[count - 1];
+        int m = 0;
+        for (int k = 1; k < count; k++) {
+            int a = valid[k - 1] * 2, b = valid[k] * 2;
+            double d0 = Math.hypot(prev[a] - prev[b], prev[a + 1] - prev[b + 1]);
+            double d1 = Math.hypot(next[a] - next[b], next[a + 1] - next[b + 1]);
+            if (d0 > 1e-3)
+                ratios[m++] = (float) (d1 / d0);
+        }
+        return m > 0 ? median(ratios, m) : 1;
+    }
+
+    static float median(float[] values, int count) {
+        Arrays.sort(values, 0, count);
+        return (count & 1) != 0 ? values[count / 2] : (values[count / 2 - 1] + values[count / 2]) * 0.5f;
+    }
+}
@@ -0,0 +1,324 @@
+package org.opencv.video;
+
+import java.util.Arrays;
+
+/**
+ * A bank of N small Kalman filters with constant-velocity or constant-acceleration motion,
+ * stored as structure-of-arrays and updated together.
+ * <p>
+ * Every measured coordinate (e.g. x, y, w, h of a box) follows an independent 1D motion model
+ * with diagonal noise, so the state of a filter splits into per-coordinate blocks of 2 (position,
+ * velocity) or 3 (plus acceleration) values with a small symmetric covariance. Each state and
+ * covariance component is kept in its own {@code double[]} indexed by filter slot, and
+ * {@link #predict(double)} and {@link #correct(int[], float[], int)} run plain loops over the
+ * slots, with no native call and no allocation per filter. The result equals
+ * {@link KalmanFilter} with the corresponding block-diagonal transition, measurement and noise
+ * matrices.
+ * <p>
+ * Removed slots are reused by later {@link #add(float[], int)} calls; the arrays grow when the
+ * bank is full.
+ */
+public class KalmanFilterBank {
+    /** State per coordinate: position, velocity. */
+    public static final int MODEL_CONSTANT_VELOCITY     = 2;
+    /** State per coordinate: position, velocity, acceleration. */
+    public static final int MODEL_CONSTANT_ACCELERATION = 3;
+
+    private final int  mOrder;
+    private final int  mDims;
+    private final int  mCovs;
+    private double     mProcessNoise = 1.0;
+    private double     mMeasurementNoise = 1.0;
+    private double     mInitialPositionVariance = 10.0;
+    private double     mInitialRateVariance = 1000.0;
+
+    private int        mCapacity;
+    private int        mCount;
+    private int        mLive;
+    // mX[d * order + s][slot] and mP[d * covs + c][slot], c over the upper triangle row by row
+    private double[][] mX;
+    private double[][] mP;
+    private boolean[]  mActive;
+    private int[]      mFree;
+    private int        mFreeCount;
+
+    /**
+     * @param model {@link #MODEL_CONSTANT_VELOCITY} or {@link #MODEL_CONSTANT_ACCELERATION}.
+     * @param measureDims number of measured coordinates per filter, e.g. 4 for boxes.
+     * @param capacity initial number of slots.
+     */
+    public KalmanFilterBank(int model, int measureDims, int capacity) {
+        if (model != MODEL_CONSTANT_VELOCITY && model != MODEL_CONSTANT_ACCELERATION)
+            throw new IllegalArgumentException("Unknown motion model " + model);
+        if (measureDims < 1)
+            throw new IllegalArgumentException("At least one measured coordinate is needed");
+        mOrder = model;
+        mDims = measureDims;
+        mCovs = model * (model + 1) / 2;
+        mX = new double[mDims * mOrder][];
+        mP = new double[mDims * mCovs][];
+        grow(Math.max(capacity, 16));
+    }
+
+    public KalmanFilterBank(int model, int measureDims) {
+        this(model, measureDims, 64);
+    }
+
+    public int getModel() {
+        return mOrder;
+    }
+
+    public int getMeasureDims() {
+        return mDims;
+    }
+
+    /**
+     * Spectral density of the white acceleration (constant velocity) or jerk (constant
+     * acceleration) driving each coordinate.
+     */
+    public void setProcessNoise(double q) {
+        mProcessNoise = q;
+    }
+
+    public double getProcessNoise() {
+        return mProcessNoise;
+    }
+
+    /**
+     * Variance of each measured coordinate.
+     */
+    public void setMeasurementNoise(double r) {
+        mMeasurementNoise = r;
+    }
+
+    public double getMeasurementNoise() {
+        return mMeasurementNoise;
+    }
+
+    /**
+     * Initial variances of new filters: position, and velocity/acceleration.
+     */
+    public void setInitialCovariance(double position, double rate) {
+        mInitialPositionVariance = position;
+        mInitialRateVariance = rate;
+    }
+
+    /**
+     * Number of live filters.
+     */
+    public int size() {
+        return mLive;
+    }
+
+    /**
+     * Upper bound (exclusive) of the slots in use.
+     */
+    public int slotLimit() {
+        return mCount;
+    }
+
+    public boolean isActive(int slot) {
+        return slot >= 0 && slot < mCount && mActive[slot];
+    }
+
+    /**
+     * Starts a filter at the measurement {@code z[offset .. offset + measureDims)} with zero
+     * velocity and returns its slot.
+     */
+    public int add(float[] z, int offset) {
+        int slot;
+        if (mFreeCount > 0) {
+            slot = mFree[--mFreeCount];
+        } else {
+            if (mCount == mCapacity)
+                grow(mCapacity * 2);
+            slot = mCount++;
+        }
+        for (int d = 0; d < mDims; d++) {
+            for (int s = 0; s < mOrder; s++)
+                mX[d * mOrder + s][slot] = s == 0 ? z[offset + d] : 0;
+            for (int c = 0; c < mCovs; c++)
+                mP[d * mCovs + c][slot] = 0;
+            mP[d * mCovs][slot] = mInitialPositionVariance;
+            mP[d * mCovs + mOrder][slot] = mInitialRateVariance;
+            if (mOrder == 3)
+                mP[d * mCovs + 5][slot] = mInitialRateVariance;
+        }
+        mActive[slot] = true;
+        mLive++;
+        return slot;
+    }
+
+    public void remove(int slot) {
+        if (!isActive(slot))
+            return;
+        mActive[slot] = false;
+        mFree[mFreeCount++] = slot;
+        mLive--;
+    }
+
+    public void clear() {
+        Arrays.fill(mActive, false);
+        mCount = 0;
+        mLive = 0;
+        mFreeCount = 0;
+    }
+
+    /**
+     * Advances all filters by {@code dt}.
+     */
+    public void predict(double dt) {
+        int n = mCount;
+        double q = mProcessNoise;
+        if (mOrder == 2) {
+            // continuous white-noise acceleration, like the jerk model below
+            double q00 = q * dt * dt * dt / 3, q01 = q * dt * dt / 2, q11 = q * dt;
+            for (int d = 0; d < mDims; d++) {
+                double[] x0 = mX[d * 2], x1 = mX[d * 2 + 1];
+                double[] p00 = mP[d * 3], p01 = mP[d * 3 + 1], p11 = mP[d * 3 + 2];
+                for (int i = 0; i < n; i++) {
+                    x0[i] += dt * x1[i];
+                    double a = p00[i], b = p01[i], c = p11[i];
+                    p00[i] = a + 2 * dt * b + dt * dt * c + q00;
+                    p01[i] = b + dt * c + q01;
+                    p11[i] = c + q11;
+                }
+            }
+        } else {
+            double h = dt * dt / 2;
+            double dt2 = dt * dt, dt3 = dt2 * dt, dt4 = dt3 * dt, dt5 = dt4 * dt;
+            double q00 = q * dt5 / 20, q01 = q * dt4 / 8, q02 = q * dt3 / 6;
+            double q11 = q * dt3 / 3, q12 = q * dt2 / 2, q22 = q * dt;
+            for (int d = 0; d < mDims; d++) {
+                double[] x0 = mX[d * 3], x1 = mX[d * 3 + 1], x2 = mX[d * 3 + 2];
+                double[] p00 = mP[d * 6], p01 = mP[d * 6 + 1], p02 = mP[d * 6 + 2];
+                double[] p11 = mP[d * 6 + 3], p12 = mP[d * 6 + 4], p22 = mP[d * 6 + 5];
+                for (int i = 0; i < n; i++) {
+                    x0[i] += dt * x1[i] + h * x2[i];
+                    x1[i] += dt * x2[i];
+                    double a00 = p00[i], a01 = p01[i], a02 = p02[i];
+                    double a11 = p11[i], a12 = p12[i], a22 = p22[i];
+                    // rows of F * P
+                    double r00 = a00 + dt * a01 + h * a02, r01 = a01 + dt * a11 + h * a12, r02 = a02 + dt * a12 + h * a22;
+                    double r11 = a11 + dt * a12, r12 = a12 + dt * a22;
+                    p00[i] = r00 + dt * r01 + h * r02 + q00;
+                    p01[i] = r01 + dt * r02 + q01;
+                    p02[i] = r02 + q02;
+                    p11[i] = r11 + dt * r12 + q11;
+                    p12[i] = r12 + q12;
+                    p22[i] = a22 + q22;
+                }
+            }
+        }
+    }
+
+    /**
+     * Corrects the given filters with their measurements.
+     *
+     * @param slots filter slots.
+     * @param z measurements, {@code measureDims} values per slot in the order of {@code slots}.
+     * @param count number of slots to correct.
+     */
+    public void correct(int[] slots, float[] z, int count) {
+        double r = mMeasurementNoise;
+        for (int d = 0; d < mDims; d++) {
+            if (mOrder == 2) {
+                double[] x0 = mX[d * 2], x1 = mX[d * 2 + 1];
+                double[] p00 = mP[d * 3], p01 = mP[d * 3 + 1], p11 = mP[d * 3 + 2];
+                for (int k = 0; k < count; k++) {
+                    int i = slots[k];
+                    double a = p00[i], b = p01[i];
+                    double s = a + r;
+                    double k0 = a / s, k1 = b / s;
+                    double y = z[k * mDims + d] - x0[i];
+                    x0[i] += k0 * y;
+                    x1[i] += k1 * y;
+                    p00[i] = a - k0 * a;
+                    p01[i] = b - k0 * b;
+                    p11[i] -= k1 * b;
+                }
+            } else {
+                double[] x0 = mX[d * 3], x1 = mX[d * 3 + 1], x2 = mX[d * 3 + 2];
+                double[] p00 = mP[d * 6], p01 = mP[d * 6 + 1], p02 = mP[d * 6 + 2];
+                double[] p11 = mP[d * 6 + 3], p12 = mP[d * 6 + 4], p22 = mP[d * 6 + 5];
+                for (int k = 0; k < count; k++) {
+                    int i = slots[k];
+                    double a = p00[i], b = p01[i], c = p02[i];
+                    double s = a + r;
+                    double k0 = a / s, k1 = b / s, k2 = c / s;
+                    double y = z[k * mDims + d] - x0[i];
+                    x0[i] += k0 * y;
+                    x1[i] += k1 * y;
+                    x2[i] += k2 * y;
+                    p00[i] = a - k0 * a;
+                    p01[i] = b - k0 * b;
+                    p02[i] = c - k0 * c;
+                    p11[i] -= k1 * b;
+                    p12[i] -= k1 * c;
+                    p22[i] -= k2 * c;
+                }
+            }
+        }
+    }
+
+    /**
+     * Current position estimate of a filter, {@code measureDims} values written at {@code offset}.
+     */
+    public void getPosition(int slot, float[] out, int offset) {
+        for (int d = 0; d < mDims; d++)
+            out[offset + d] = (float) mX[d * mOrder][slot];
+    }
+
+    /**
+     * Current velocity estimate of a filter, {@code measureDims} values written at {@code offset}.
+     */
+    public void getVelocity(int slot, float[] out, int offset) {
+        for (int d = 0; d < mDims; d++)
+            out[offset + d] = (float) mX[d * mOrder + 1][slot];
+    }
+
+    /**
+     * Associates detection boxes with the filters of a box bank ({@code measureDims == 4}, each
+     * filter tracking x, y, width, height) by the IoU of the detections with the predicted boxes.
+     *
+     * @param boxes detections, x, y, width, height per box.
+     * @param count number of detections.
+     * @param minIou minimum IoU of an accepted pair.
+     * @param optimal true for the Hungarian assignment, false for greedy.
+     * @return for each detection the matched slot, or -1.
+     */
+    public int[] associate(float[] boxes, int count, double minIou, boolean optimal) {
+        if (mDims != 4)
+            throw new IllegalStateException("Box association needs 4 measured coordinates");
+        int[] slots = new int[mLive];
+        int live = 0;
+        for (int i = 0; i < mCount; i++)
+            if (mActive[i])
+                slots[live++] = i;
+        double[] x = mX[0], y = mX[mOrder], w = mX[2 * mOrder], h = mX[3 * mOrder];
+        double[] scores = new double[count * live];
+        for (int k = 0; k < count; k++) {
+            double bx = boxes[k * 4], by = boxes[k * 4 + 1], bw = boxes[k * 4 + 2], bh = boxes[k * 4 + 3];
+            for (int j = 0; j < live; j++) {
+                int i = slots[j];
+                scores[k * live + j] = BoxAssociation.iou(bx, by, bw, bh, x[i], y[i], w[i], h[i]);
+            }
+        }
+        int[] match = optimal ? BoxAssociation.hungarian(scores, count, live, minIou)
+                              : BoxAssociation.greedy(scores, count, live, minIou);
+        for (int k = 0; k < count; k++)
+            if (match[k] >= 0)
+                match[k] = slots[match[k]];
+        return match;
+    }
+
+    private void grow(int capacity) {
+        for (int i = 0; i < mX.length; i++)
+            mX[i] = mX[i] == null ? new double[capacity] : Arrays.copyOf(mX[i], capacity);
+        for (int i = 0; i < mP.length; i++)
+            mP[i] = mP[i] == null ? new double[capacity] : Arrays.copyOf(mP[i], capacity);
+        mActive = mActive == null ? new boolean[capacity] : Arrays.copyOf(mActive, capacity);
+        mFree = mFree == null ? new int[capacity] : Arrays.copyOf(mFree, capacity);
+        mCapacity = capacity;
+    }
+}
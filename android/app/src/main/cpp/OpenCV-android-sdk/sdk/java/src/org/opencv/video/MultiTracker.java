@@ -0,0 +1,297 @@
+package org.opencv.video;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Runs one {@link Tracker} per object, updating all of them in parallel on a fixed pool.
+ * <p>
+ * The frame is prepared once per call and shared by all trackers: RGB(A) frames (Android camera
+ * frames, see {@link #setRgbInput(boolean)}), BGRA and gray frames are converted to the BGR input
+ * the trackers expect, and with {@link #setProcessingScale(double)} the frame is downscaled once
+ * and the boxes are mapped back to frame coordinates. A track whose update fails, or whose score
+ * falls below {@link #setMinScore(double)} for trackers that report one, is marked lost and
+ * removed after {@link #setMaxLost(int)} consecutive lost frames. Each track records the latency
+ * of its last update and a running mean.
+ */
+public class MultiTracker {
+
+    /**
+     * State of one tracked object, in frame coordinates.
+     */
+    public static class Track {
+        public final int id;
+        public Rect      box;
+        public double    score;
+        public boolean   lost;
+        public int       lostFrames;
+        public int       age;
+        /** Duration of the last update in milliseconds. */
+        public double    latency;
+        /** Mean update duration in milliseconds. */
+        public double    meanLatency;
+
+        final Tracker    tracker;
+
+        Track(int id, Tracker tracker, Rect box) {
+            this.id = id;
+            this.tracker = tracker;
+            this.box = box;
+        }
+    }
+
+    private final ForkJoinPool                mPool;
+    private final TrackerPropagator.Factory   mFactory;
+    private final Map<Integer, Track>         mTracks = new LinkedHashMap<Integer, Track>();
+    private final List<Integer>               mRemoved = new ArrayList<Integer>();
+    private int                               mNextId;
+    private double                            mScale = 1.0;
+    private double                            mMinScore = 0.3;
+    private int                               mMaxLost = 10;
+    private boolean                           mRgbInput = true;
+
+    private final Mat                         mConverted = new Mat();
+    private final Mat                         mScaled = new Mat();
+
+    /**
+     * @param factory creates the tracker of every new object.
+     * @param threads number of workers.
+     */
+    public MultiTracker(TrackerPropagator.Factory factory, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mFactory = factory;
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public MultiTracker(TrackerPropagator.Factory factory) {
+        this(factory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Scale of the frame given to the trackers, in (0, 1]. Changing it drops the current tracks.
+     */
+    public void setProcessingScale(double scale) {
+        if (scale <= 0 || scale > 1)
+            throw new IllegalArgumentException("Processing scale must be in (0, 1]");
+        if (scale != mScale)
+            mTracks.clear();
+        mScale = scale;
+    }
+
+    public double getProcessingScale() {
+        return mScale;
+    }
+
+    /**
+     * Score below which a track counts as lost, for trackers that report a score.
+     */
+    public void setMinScore(double minScore) {
+        mMinScore = minScore;
+    }
+
+    public double getMinScore() {
+        return mMinScore;
+    }
+
+    /**
+     * Number of consecutive lost frames after which a track is removed.
+     */
+    public void setMaxLost(int frames) {
+        mMaxLost = Math.max(0, frames);
+    }
+
+    public int getMaxLost() {
+        return mMaxLost;
+    }
+
+    /**
+     * Whether colour frames are in RGB(A) order, as camera frames and bitmaps on Android (default),
+     * or in BGR(A) order, as frames from {@code Imgcodecs} or {@link org.opencv.videoio.VideoCapture}.
+     */
+    public void setRgbInput(boolean rgb) {
+        mRgbInput = rgb;
+    }
+
+    public boolean isRgbInput() {
+        return mRgbInput;
+    }
+
+    /**
+     * Starts tracking an object and returns its id.
+     */
+    public int add(Mat frame, Rect box) {
+        List<Rect> boxes = new ArrayList<Rect>();
+        boxes.add(box);
+        return add(frame, boxes)[0];
+    }
+
+    /**
+     * Starts tracking several objects of the same frame, initializing their trackers in parallel.
+     */
+    public int[] add(Mat frame, List<Rect> boxes) {
+        final Mat input = prepare(frame);
+        int[] ids = new int[boxes.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < ids.length; i++) {
+            final Rect box = boxes.get(i);
+            final Track t = new Track(mNextId++, mFactory.create(), box.clone());
+            ids[i] = t.id;
+            mTracks.put(t.id, t);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    t.tracker.init(input, toProcessing(box));
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+        return ids;
+    }
+
+    public void remove(int id) {
+        mTracks.remove(id);
+    }
+
+    public void clear() {
+        mTracks.clear();
+    }
+
+    /**
+     * Updates every track with the next frame; lost tracks past the limit are removed.
+     */
+    public void update(Mat frame) {
+        final Mat input = prepare(frame);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Track t : mTracks.values()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    updateTrack(t, input);
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        mRemoved.clear();
+        for (Track t : new ArrayList<Track>(mTracks.values())) {
+            if (t.lostFrames > mMaxLost) {
+                mTracks.remove(t.id);
+                mRemoved.add(t.id);
+            }
+        }
+    }
+
+    /**
+     * Current tracks in the order they were added.
+     */
+    public List<Track> getTracks() {
+        return new ArrayList<Track>(mTracks.values());
+    }
+
+    public Track getTrack(int id) {
+        return mTracks.get(id);
+    }
+
+    public int size() {
+        return mTracks.size();
+    }
+
+    /**
+     * Ids of the tracks removed by the last {@link #update(Mat)}.
+     */
+    public List<Integer> getLastRemoved() {
+        return new ArrayList<Integer>(mRemoved);
+    }
+
+    public void release() {
+        mPool.shutdown();
+        mTracks.clear();
+        mConverted.release();
+        mScaled.release();
+    }
+
+    private void updateTrack(Track t, Mat input) {
+        Rect r = new Rect();
+        long start = System.nanoTime();
+        boolean ok = t.tracker.update(input, r);
+        double ms = (System.nanoTime() - start) / 1e6;
+        t.latency = ms;
+        t.age++;
+        t.meanLatency += (ms - t.meanLatency) / t.age;
+        t.score = ok ? TrackerPropagator.score(t.tracker) : 0;
+        ok &= !hasScore(t.tracker) || t.score >= mMinScore;
+        if (ok) {
+            t.box = toFrame(r);
+            t.lost = false;
+            t.lostFrames = 0;
+        } else {
+            t.lost = true;
+            t.lostFrames++;
+        }
+    }
+
+    private Mat prepare(Mat frame) {
+        Mat input = frame;
+        if (frame.channels() == 4) {
+            Imgproc.cvtColor(frame, mConverted, mRgbInput ? Imgproc.COLOR_RGBA2BGR : Imgproc.COLOR_BGRA2BGR);
+            input = mConverted;
+        } else if (frame.channels() == 3 && mRgbInput) {
+            Imgproc.cvtColor(frame, mConverted, Imgproc.COLOR_RGB2BGR);
+            input = mConverted;
+        } else if (frame.channels() == 1) {
+            Imgproc.cvtColor(frame, mConverted, Imgproc.COLOR_GRAY2BGR);
+            input = mConverted;
+        }
+        if (mScale < 1) {
+            Imgproc.resize(input, mScaled, new Size(Math.round(input.cols() * mScale), Math.round(input.rows() * mScale)),
+                    0, 0, Imgproc.INTER_AREA);
+            input = mScaled;
+        }
+        return input;
+    }
+
+    private Rect toProcessing(Rect r) {
+        if (mScale >= 1)
+            return r.clone();
+        return new Rect((int) Math.round(r.x * mScale), (int) Math.round(r.y * mScale),
+                Math.max(1, (int) Math.round(r.width * mScale)), Math.max(1, (int) Math.round(r.height * mScale)));
+    }
+
+    private Rect toFrame(Rect r) {
+        if (mScale >= 1)
+            return r;
+        return new Rect((int) Math.round(r.x / mScale), (int) Math.round(r.y / mScale),
+                (int) Math.round(r.width / mScale), (int) Math.round(r.height / mScale));
+    }
+
+    private static boolean hasScore(Tracker tracker) {
+        return tracker instanceof TrackerNano || tracker instanceof TrackerVit || tracker instanceof TrackerDaSiamRPN;
+    }
+
+    private void run(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : mPool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Tracking interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Tracking failed: " + e.getCause());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.opencv.video;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Background subtraction split into tiles that are processed in parallel.
+ * <p>
+ * Both {@link BackgroundSubtractorMOG2} and {@link BackgroundSubtractorKNN} model every pixel
+ * independently, so the frame can be cut into tiles with one subtractor each, all updated on a
+ * work-stealing pool. With {@link #setModelScale(double)} below 1 the model runs on a downscaled
+ * frame and the mask is brought back to full size with bilinear interpolation, so its edges hold
+ * intermediate values. A tile whose content barely changed since its last update (cheap frame
+ * differencing) keeps its previous mask and skips the model update, up to
+ * {@link #setMaxSkippedFrames(int)} frames in a row so that the model still learns slow changes.
+ */
+public class TiledBackgroundSubtractor {
+    /**
+     * Creates the subtractor of one tile, e.g. {@code Video.createBackgroundSubtractorMOG2()}.
+     */
+    public interface Factory {
+        BackgroundSubtractor create();
+    }
+
+    private static final int DIFF_THRESHOLD = 25;
+
+    private final ForkJoinPool            mPool;
+    private final Factory                 mFactory;
+    private final int                     mTileCols;
+    private final int                     mTileRows;
+    private double                        mModelScale = 1.0;
+    private double                        mStaticFraction = 0.002;
+    private int                           mMaxSkipped = 10;
+
+    private final Mat                     mSmall = new Mat();
+    private final Mat                     mSmallMask = new Mat();
+    private Size                          mModelSize;
+    private Tile[]                        mTiles;
+    private int                           mLastUpdated;
+
+    private static class Tile {
+        Rect                 rect;
+        BackgroundSubtractor model;
+        final Mat            reference = new Mat();
+        final Mat            mask = new Mat();
+        int                  skipped;
+    }
+
+    /**
+     * @param factory creates one subtractor per tile.
+     * @param tileCols number of tile columns.
+     * @param tileRows number of tile rows.
+     * @param threads number of workers.
+     */
+    public TiledBackgroundSubtractor(Factory factory, int tileCols, int tileRows, int threads) {
+        if (tileCols < 1 || tileRows < 1)
+            throw new IllegalArgumentException("Tiling must have at least one tile");
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be positive");
+        mFactory = factory;
+        mTileCols = tileCols;
+        mTileRows = tileRows;
+        mPool = new ForkJoinPool(threads);
+    }
+
+    public TiledBackgroundSubtractor(Factory factory, int tileCols, int tileRows) {
+        this(factory, tileCols, tileRows, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Resolution of the model relative to the frame, in (0, 1]. Changing it resets the model.
+     */
+    public void setModelScale(double scale) {
+        if (scale <= 0 || scale > 1)
+            throw new IllegalArgumentException("Model scale must be in (0, 1]");
+        mModelScale = scale;
+        reset();
+    }
+
+    public double getModelScale() {
+        return mModelScale;
+    }
+
+    /**
+     * Fraction of changed pixels below which a tile counts as static; 0 disables skipping.
+     */
+    public void setStaticFraction(double fraction) {
+        mStaticFraction = fraction;
+    }
+
+    public double getStaticFraction() {
+        return mStaticFraction;
+    }
+
+    /**
+     * Maximum number of consecutive frames a static tile may skip its update.
+     */
+    public void setMaxSkippedFrames(int frames) {
+        mMaxSkipped = Math.max(0, frames);
+    }
+
+    public int getMaxSkippedFrames() {
+        return mMaxSkipped;
+    }
+
+    /**
+     * Updates the model with the frame and computes its foreground mask.
+     *
+     * @see BackgroundSubtractor#apply(Mat, Mat, double)
+     */
+    public void apply(Mat image, Mat fgmask, final double learningRate) {
+        Mat input = image;
+        if (mModelScale < 1) {
+            Imgproc.resize(image, mSmall, new Size(Math.max(1, Math.round(image.cols() * mModelScale)),
+                    Math.max(1, Math.round(image.rows() * mModelScale))), 0, 0, Imgproc.INTER_AREA);
+            input = mSmall;
+        }
+        if (mTiles == null || mModelSize.width != input.cols() || mModelSize.height != input.rows())
+            createTiles(input.size());
+
+        final Mat frame = input;
+        final Mat mask = mModelScale < 1 ? mSmallMask : fgmask;
+        mask.create(input.rows(), input.cols(), CvType.CV_8UC1);
+        final int[] updated = new int[mTiles.length];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < mTiles.length; i++) {
+            final int index = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    updated[index] = processTile(mTiles[index], frame, mask, learningRate) ? 1 : 0;
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> f : mPool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Background subtraction interrupted");
+        } catch (ExecutionException e) {
+            throw new CvException("Background subtraction failed: " + e.getCause());
+        }
+        mLastUpdated = 0;
+        for (int u : updated)
+            mLastUpdated += u;
+        if (mModelScale < 1)
+            Imgproc.resize(mSmallMask, fgmask, image.size(), 0, 0, Imgproc.INTER_LINEAR);
+    }
+
+    public void apply(Mat image, Mat fgmask) {
+        apply(image, fgmask, -1);
+    }
+
+    /**
+     * Assembles the background image of all tiles, at model resolution.
+     *
+     * @see BackgroundSubtractor#getBackgroundImage(Mat)
+     */
+    public void getBackgroundImage(Mat backgroundImage) {
+        if (mTiles == null) {
+            backgroundImage.release();
+            return;
+        }
+        Mat part = new Mat();
+        for (Tile t : mTiles) {
+            t.model.getBackgroundImage(part);
+            if (backgroundImage.empty() || backgroundImage.type() != part.type()
+                    || backgroundImage.cols() != (int) mModelSize.width || backgroundImage.rows() != (int) mModelSize.height)
+                backgroundImage.create((int) mModelSize.height, (int) mModelSize.width, part.type());
+            Mat dst = backgroundImage.submat(t.rect);
+            part.copyTo(dst);
+            dst.release();
+        }
+        part.release();
+    }
+
+    /**
+     * Number of tiles whose model was updated in the last frame.
+     */
+    public int getLastUpdatedTiles() {
+        return mLastUpdated;
+    }
+
+    public int getTileCount() {
+        return mTileCols * mTileRows;
+    }
+
+    /**
+     * Drops the models; they are recreated on the next frame.
+     */
+    public void reset() {
+        if (mTiles != null)
+            for (Tile t : mTiles) {
+                t.reference.release();
+                t.mask.release();
+            }
+        mTiles = null;
+    }
+
+    public void release() {
+        mPool.shutdown();
+        reset();
+        mSmall.release();
+        mSmallMask.release();
+    }
+
+    private void createTiles(Size size) {
+        reset();
+        mModelSize = size;
+        int width = (int) size.width, height = (int) size.height;
+        mTiles = new Tile[mTileCols * mTileRows];
+        for (int ty = 0; ty < mTileRows; ty++) {
+            for (int tx = 0; tx < mTileCols; tx++) {
+                int x0 = tx * width / mTileCols, x1 = (tx + 1) * width / mTileCols;
+                int y0 = ty * height / mTileRows, y1 = (ty + 1) * height / mTileRows;
+                Tile t = new Tile();
+                t.rect = new Rect(x0, y0, x1 - x0, y1 - y0);
+                t.model = mFactory.create();
+                mTiles[ty * mTileCols + tx] = t;
+            }
+        }
+    }
+
+    // returns whether the model of the tile was updated
+    private boolean processTile(Tile t, Mat frame, Mat mask, double learningRate) {
+        if (t.rect.width == 0 || t.rect.height == 0)
+            return false;
+        Mat sub = frame.submat(t.rect);
+        Mat dst = mask.submat(t.rect);
+        try {
+            if (mStaticFraction > 0 && t.skipped < mMaxSkipped && !t.reference.empty() && isStatic(sub, t.reference)) {
+                t.skipped++;
+                t.mask.copyTo(dst);
+                return false;
+            }
+            t.model.apply(sub, t.mask, learningRate);
+            t.mask.copyTo(dst);
+            sub.copyTo(t.reference);
+            t.skipped = 0;
+            return true;
+        } finally {
+            sub.release();
+            dst.release();
+        }
+    }
+
+    private boolean isStatic(Mat tile, Mat reference) {
+        Mat diff = new Mat();
+        Core.absdiff(tile, reference, diff);
+        Mat flat = diff.reshape(1);
+        Imgproc.threshold(flat, flat, DIFF_THRESHOLD, 255, Imgproc.THRESH_BINARY);
+        int changed = Core.countNonZero(flat);
+        long total = flat.total();
+        flat.release();
+        diff.release();
+        return changed < mStaticFraction * total;
+    }
+}
@@ -0,0 +1,80 @@
+package org.opencv.video;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Rect2d;
+
+/**
+ * {@link DetectionScheduler.Propagator} running one {@link Tracker} per track.
+ * <p>
+ * Trackers are re-initialized on every keyframe from the detected box. The propagation
+ * confidence is the tracker score for trackers that report one ({@link TrackerNano},
+ * {@link TrackerVit}, {@link TrackerDaSiamRPN}) and 1 or 0 from {@link Tracker#update} otherwise.
+ */
+public class TrackerPropagator implements DetectionScheduler.Propagator {
+
+    /**
+     * Creates a fresh tracker instance, e.g. {@code TrackerMIL::create}.
+     */
+    public interface Factory {
+        Tracker create();
+    }
+
+    private final Factory               mFactory;
+    private final Map<Integer, Tracker> mTrackers = new HashMap<Integer, Tracker>();
+    private final Rect                  mRect = new Rect();
+
+    public TrackerPropagator(Factory factory) {
+        mFactory = factory;
+    }
+
+    @Override
+    public void reset(Mat frame, List<DetectionScheduler.Track> tracks) {
+        Map<Integer, Tracker> previous = new HashMap<Integer, Tracker>(mTrackers);
+        mTrackers.clear();
+        for (DetectionScheduler.Track t : tracks) {
+            if (t.framesSinceDetection > 0 && previous.containsKey(t.id)) {
+                // not re-detected: keep following the object with the running tracker
+                mTrackers.put(t.id, previous.get(t.id));
+                continue;
+            }
+            Tracker tracker = previous.containsKey(t.id) ? previous.get(t.id) : mFactory.create();
+            tracker.init(frame, t.getRect());
+            mTrackers.put(t.id, tracker);
+        }
+    }
+
+    @Override
+    public void propagate(Mat frame, List<DetectionScheduler.Track> tracks) {
+        for (DetectionScheduler.Track t : tracks) {
+            Tracker tracker = mTrackers.get(t.id);
+            if (tracker == null) {
+                t.confidence = 0;
+                continue;
+            }
+            boolean ok = tracker.update(frame, mRect);
+            if (ok)
+                t.box = new Rect2d(mRect.x, mRect.y, mRect.width, mRect.height);
+            t.confidence = ok ? score(tracker) : 0;
+        }
+    }
+
+    @Override
+    public void release() {
+        mTrackers.clear();
+    }
+
+    static double score(Tracker tracker) {
+        if (tracker instanceof TrackerNano)
+            return ((TrackerNano) tracker).getTrackingScore();
+        if (tracker instanceof TrackerVit)
+            return ((TrackerVit) tracker).getTrackingScore();
+        if (tracker instanceof TrackerDaSiamRPN)
+            return ((TrackerDaSiamRPN) tracker).getTrackingScore();
+        return 1;
+    }
+}
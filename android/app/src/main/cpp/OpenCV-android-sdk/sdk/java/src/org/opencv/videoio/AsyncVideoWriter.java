@@ -0,0 +1,250 @@
+package org.opencv.videoio;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Records video without running the encoder on the caller's thread.
+ * <p>
+ * {@link #write(Mat)} copies the frame into a pooled Mat and queues it; a dedicated thread feeds
+ * the queue to {@link VideoWriter#write(Mat)}. The pool and the queue are bounded; when the
+ * encoder falls behind the policy decides whether the caller waits ({@link #BLOCK}), the new
+ * frame is dropped ({@link #DROP_NEWEST}) or the oldest queued frame is replaced
+ * ({@link #DROP_OLDEST}). A camera pipeline should drop rather than block.
+ */
+public class AsyncVideoWriter {
+    /** Wait for a free frame. */
+    public static final int BLOCK = 0;
+    /** Drop the frame being written. */
+    public static final int DROP_NEWEST = 1;
+    /** Drop the oldest frame waiting to be encoded. */
+    public static final int DROP_OLDEST = 2;
+
+    private static class Slot {
+        final Mat mat = new Mat();
+        long      queued;
+    }
+
+    private static final Slot STOP = new Slot();
+
+    private final VideoWriter           mWriter;
+    private final int                   mPolicy;
+    private final BlockingQueue<Slot>   mFree;
+    private final BlockingQueue<Slot>   mQueue;
+    private final Thread                mThread;
+    private volatile Throwable          mError;
+    private boolean                     mClosed;
+
+    private long                        mWritten;
+    private long                        mDropped;
+    private double                      mEncodeTotal;
+    private double                      mEncodeMax;
+    private double                      mLatencyTotal;
+    private double                      mLastEncode;
+
+    /**
+     * @param writer opened writer, owned and released by this object.
+     * @param queueSize number of frames that can wait for the encoder.
+     * @param policy {@link #BLOCK}, {@link #DROP_NEWEST} or {@link #DROP_OLDEST}.
+     */
+    public AsyncVideoWriter(VideoWriter writer, int queueSize, int policy) {
+        if (!writer.isOpened())
+            throw new IllegalArgumentException("Writer is not opened");
+        if (queueSize < 1)
+            throw new IllegalArgumentException("Queue size must be positive");
+        if (policy != BLOCK && policy != DROP_NEWEST && policy != DROP_OLDEST)
+            throw new IllegalArgumentException("Unknown policy " + policy);
+        mWriter = writer;
+        mPolicy = policy;
+        // one frame can be in the encoder while the queue is full
+        mFree = new ArrayBlockingQueue<Slot>(queueSize + 1);
+        for (int i = 0; i <= queueSize; i++)
+            mFree.add(new Slot());
+        // every slot plus the stop marker
+        mQueue = new ArrayBlockingQueue<Slot>(queueSize + 2);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeLoop();
+            }
+        }, "AsyncVideoWriter");
+        mThread.start();
+    }
+
+    /**
+     * Opens a writer, see {@link VideoWriter#VideoWriter(String, int, double, Size, boolean)}.
+     */
+    public AsyncVideoWriter(String filename, int fourcc, double fps, Size frameSize, boolean isColor, int queueSize,
+            int policy) {
+        this(open(filename, fourcc, fps, frameSize, isColor), queueSize, policy);
+    }
+
+    /**
+     * Queues a frame.
+     *
+     * @return false if the frame was dropped.
+     */
+    public boolean write(Mat frame) {
+        if (mError != null)
+            throw new CvException("Video encoding failed: " + mError);
+        synchronized (this) {
+            checkOpen();
+        }
+        Slot slot = mFree.poll();
+        if (slot == null) {
+            if (mPolicy == DROP_NEWEST) {
+                dropped();
+                return false;
+            }
+            if (mPolicy == DROP_OLDEST) {
+                synchronized (this) {
+                    checkOpen();
+                    // STOP is only queued once closed, so this is a frame
+                    slot = mQueue.poll();
+                    if (slot != null)
+                        mDropped++;
+                }
+            }
+            if (slot == null)
+                slot = take(mFree);
+        }
+        if (slot == STOP) {
+            // close() wakes blocked writers with the stop marker; pass it on to the next one
+            mFree.add(STOP);
+            throw new IllegalStateException("Writer is closed");
+        }
+        frame.copyTo(slot.mat);
+        slot.queued = System.nanoTime();
+        synchronized (this) {
+            if (mClosed) {
+                slot.mat.release();
+                throw new IllegalStateException("Writer is closed");
+            }
+            mQueue.add(slot);
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the queued frames, stops the encoder thread and releases the writer. Writers
+     * blocked on a free frame fail with {@link IllegalStateException}.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mClosed)
+                return;
+            mClosed = true;
+            // queued under the lock, so no frame can follow it
+            mQueue.add(STOP);
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Video writer close interrupted");
+        } finally {
+            Slot s;
+            while ((s = mFree.poll()) != null)
+                s.mat.release();
+            while ((s = mQueue.poll()) != null)
+                s.mat.release();
+            mFree.add(STOP);
+        }
+        mWriter.release();
+        if (mError != null)
+            throw new CvException("Video encoding failed: " + mError);
+    }
+
+    /**
+     * Number of frames waiting for the encoder.
+     */
+    public int getQueueLength() {
+        return mQueue.size();
+    }
+
+    public synchronized long getWrittenFrames() {
+        return mWritten;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return mDropped;
+    }
+
+    /**
+     * Duration of the last {@link VideoWriter#write(Mat)} in milliseconds.
+     */
+    public synchronized double getLastEncodeTime() {
+        return mLastEncode;
+    }
+
+    public synchronized double getMeanEncodeTime() {
+        return mWritten > 0 ? mEncodeTotal / mWritten : 0;
+    }
+
+    public synchronized double getMaxEncodeTime() {
+        return mEncodeMax;
+    }
+
+    /**
+     * Mean time from {@link #write(Mat)} until the frame was encoded, in milliseconds.
+     */
+    public synchronized double getMeanLatency() {
+        return mWritten > 0 ? mLatencyTotal / mWritten : 0;
+    }
+
+    private void encodeLoop() {
+        for (;;) {
+            Slot slot = take(mQueue);
+            if (slot == STOP)
+                return;
+            try {
+                if (mError == null) {
+                    long start = System.nanoTime();
+                    mWriter.write(slot.mat);
+                    long end = System.nanoTime();
+                    synchronized (this) {
+                        mWritten++;
+                        mLastEncode = (end - start) / 1e6;
+                        mEncodeTotal += mLastEncode;
+                        mEncodeMax = Math.max(mEncodeMax, mLastEncode);
+                        mLatencyTotal += (end - slot.queued) / 1e6;
+                    }
+                }
+            } catch (RuntimeException e) {
+                // later frames are discarded and the error reported to the writer's thread
+                mError = e;
+            } finally {
+                mFree.add(slot);
+            }
+        }
+    }
+
+    private synchronized void dropped() {
+        mDropped++;
+    }
+
+    private void checkOpen() {
+        if (mClosed)
+            throw new IllegalStateException("Writer is closed");
+    }
+
+    private static Slot take(BlockingQueue<Slot> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CvException("Video writer interrupted");
+        }
+    }
+
+    private static VideoWriter open(String filename, int fourcc, double fps, Size frameSize, boolean isColor) {
+        VideoWriter writer = new VideoWriter(filename, fourcc, fps, frameSize, isColor);
+        if (!writer.isOpened())
+            throw new CvException("Cannot open " + filename);
+        return writer;
+    }
+}